@@ -22,26 +22,40 @@ package gnu.java.zrtp;
 import gnu.java.zrtp.ZrtpConstants.SupportedSASTypes;
 import gnu.java.zrtp.packets.*;
 import gnu.java.zrtp.utils.Base32;
+import gnu.java.zrtp.utils.Curve25519Coordinates;
 import gnu.java.zrtp.utils.EmojiBase32;
+import gnu.java.zrtp.utils.ZrtpEntropyHarvester;
+import gnu.java.zrtp.utils.ZrtpHmac;
 import gnu.java.zrtp.utils.ZrtpSecureRandom;
 import gnu.java.zrtp.utils.ZrtpUtils;
+import gnu.java.zrtp.zidfile.ZidCache;
 import gnu.java.zrtp.zidfile.ZidFile;
 import gnu.java.zrtp.zidfile.ZidRecord;
 import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.digests.SHA384Digest;
-import org.bouncycastle.crypto.macs.HMac;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.params.ParametersWithIV;
 import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.BasicAgreement;
+import org.bouncycastle.crypto.BufferedBlockCipher;
 import org.bouncycastle.crypto.params.DHPublicKeyParameters;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
 import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.params.X25519PrivateKeyParameters;
+import org.bouncycastle.crypto.params.X25519PublicKeyParameters;
 import org.bouncycastle.math.ec.ECPoint;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * The main ZRTP class.
@@ -202,14 +216,22 @@ public class ZRtp {
 
     private Digest hashCtxFunction;
 
-    private HMac hmacFunction;
+    private ZrtpHmac hmacFunction;
 
     // These are implicit hash and HMAC settings.
     private int hashLengthImpl = ZrtpConstants.SHA256_DIGEST_LENGTH;
 
     private Digest hashFunctionImpl = new SHA256Digest();
 
-    private HMac hmacFunctionImpl = new HMac(new SHA256Digest());
+    private ZrtpHmac hmacFunctionImpl = new ZrtpHmac(new SHA256Digest());
+
+    /*
+     * Scratch buffers for HMAC results and the KDF's integer fields, thus
+     * computing and checking a HMAC does not allocate memory.
+     */
+    private final byte[] macBuffer = new byte[ZrtpConstants.MAX_DIGEST_LENGTH];
+
+    private final byte[] kdfInt = new byte[4];
 
     /**
      * Committed Hash, Cipher, and public key algorithms
@@ -218,6 +240,13 @@ public class ZRtp {
 
     private ZrtpConstants.SupportedSymCiphers cipher;
 
+    /*
+     * The session's own cipher to encrypt and decrypt Confirm and SASRelay
+     * packets, and the algorithm it was created for.
+     */
+    private BufferedBlockCipher symCipher = null;
+    private ZrtpConstants.SupportedSymCiphers symCipherType = null;
+
     private ZrtpConstants.SupportedPubKeys pubKey;
 
     /**
@@ -244,6 +273,10 @@ public class ZRtp {
     private byte[] H3 = new byte[ZrtpConstants.MAX_DIGEST_LENGTH];
 
     private byte[] peerHelloHash = new byte[ZrtpConstants.MAX_DIGEST_LENGTH];
+
+    // Algorithms offered in the peer's Hello and the hash of this Hello
+    private HelloCapabilities peerCapabilities = null;
+    private byte[] peerCapabilitiesHash = new byte[ZrtpConstants.MAX_DIGEST_LENGTH];
     private byte[] peerHelloVersion = null;
 
     // need 128 bits only to store peer's values
@@ -259,7 +292,7 @@ public class ZRtp {
     /**
      * The s0
      */
-    private byte[] s0 = new byte[ZrtpConstants.MAX_DIGEST_LENGTH];
+    private byte[] s0 = null;
 
     /**
      * The new Retained Secret
@@ -353,31 +386,36 @@ public class ZRtp {
     private ZrtpPacketHello zrtpHello_11 = new ZrtpPacketHello();
     private ZrtpPacketHello zrtpHello_12 = new ZrtpPacketHello();
 
-    private ZrtpPacketHelloAck zrtpHelloAck = new ZrtpPacketHelloAck();
+    /*
+     * The other packets are allocated when ZRtp uses them the first time.
+     * Entering SecureState releases the handshake packets, compact() also
+     * releases the others.
+     */
+    private ZrtpPacketHelloAck zrtpHelloAck = null;
 
-    private ZrtpPacketConf2Ack zrtpConf2Ack = new ZrtpPacketConf2Ack();
+    private ZrtpPacketConf2Ack zrtpConf2Ack = null;
 
     // ZrtpPacketClearAck zrtpClearAck;
     // ZrtpPacketGoClear zrtpGoClear;
-    private ZrtpPacketError zrtpError = new ZrtpPacketError();
+    private ZrtpPacketError zrtpError = null;
 
-    private ZrtpPacketErrorAck zrtpErrorAck = new ZrtpPacketErrorAck();
+    private ZrtpPacketErrorAck zrtpErrorAck = null;
 
-    private ZrtpPacketDHPart zrtpDH1 = new ZrtpPacketDHPart();
+    private ZrtpPacketDHPart zrtpDH1 = null;
 
-    private ZrtpPacketDHPart zrtpDH2 = new ZrtpPacketDHPart();
+    private ZrtpPacketDHPart zrtpDH2 = null;
 
-    private ZrtpPacketCommit zrtpCommit = new ZrtpPacketCommit();
+    private ZrtpPacketCommit zrtpCommit = null;
 
-    private ZrtpPacketConfirm zrtpConfirm1 = new ZrtpPacketConfirm();
+    private ZrtpPacketConfirm zrtpConfirm1 = null;
 
-    private ZrtpPacketConfirm zrtpConfirm2 = new ZrtpPacketConfirm();
+    private ZrtpPacketConfirm zrtpConfirm2 = null;
 
-    private ZrtpPacketPingAck zrtpPingAck = new ZrtpPacketPingAck();
+    private ZrtpPacketPingAck zrtpPingAck = null;
 
-    private ZrtpPacketSASRelay zrtpSasRelay = new ZrtpPacketSASRelay();
+    private ZrtpPacketSASRelay zrtpSasRelay = null;
 
-    private ZrtpPacketRelayAck zrtpRelayAck = new ZrtpPacketRelayAck();
+    private ZrtpPacketRelayAck zrtpRelayAck = null;
 
     HelloPacketVersion helloPackets[] = new HelloPacketVersion[MAX_ZRTP_VERSIONS];
     int highestZrtpVersion;
@@ -390,7 +428,7 @@ public class ZRtp {
      */
     private byte[] randomIV = new byte[16];
 
-    private byte[] tempMsgBuffer = new byte[1024];
+    private byte[] tempMsgBuffer = null;
 
     private int lengthOfMsgData;
 
@@ -436,6 +474,34 @@ public class ZRtp {
     
     private ZrtpConfigure configureAlgos;
 
+    /*
+     * The ZID cache that stores the peer's ZID record
+     */
+    private ZidCache zidCache;
+
+    /*
+     * The shared timer service and this session's timer if the
+     * configuration sets a timer service, otherwise null
+     */
+    private ZrtpTimerService timerService;
+    private ZrtpTimerService.Timeout timeout;
+
+    /*
+     * The mailbox of this session if the configuration sets an event loop,
+     * otherwise null
+     */
+    private ZrtpEventLoop.Mailbox mailbox;
+
+    /*
+     * The executor for the DH computations if the configuration sets one,
+     * the running DH computation, and the key pair generated while ZRtp
+     * exchanges the Hello packets
+     */
+    private Executor cryptoExecutor;
+    private volatile CryptoJob cryptoJob;
+    private FutureTask<AsymmetricCipherKeyPair> keyPairTask;
+    private ZrtpConstants.SupportedPubKeys keyPairTaskType;
+
     public ZRtp(byte[] myZid, ZrtpCallback cb, String id, ZrtpConfigure config) {
         this(myZid, cb, id, config, false, false);
     }
@@ -447,10 +513,29 @@ public class ZRtp {
      * Constructor initializes all relevant data but does not start the engine.
      */
     public ZRtp(byte[] myZid, ZrtpCallback cb, String id, ZrtpConfigure config, boolean mitmMode, boolean sasSignSupport) {
+        this(myZid, cb, id, config, mitmMode, sasSignSupport, null);
+    }
+
+    /**
+     * Constructor initializes all relevant data but does not start the engine.
+     *
+     * @param cache
+     *    The ZID cache to use. If null use the ZID cache set in the configuration
+     *    or, if the configuration has none, the ZidFile singleton.
+     */
+    public ZRtp(byte[] myZid, ZrtpCallback cb, String id, ZrtpConfigure config, boolean mitmMode, boolean sasSignSupport,
+                ZidCache cache) {
 
         secRand = ZrtpSecureRandom.getInstance();
 
+        if (cache == null) {
+            cache = config.getZidCache();
+        }
+        zidCache = (cache != null) ? cache : ZidFile.getInstance();
+
         configureAlgos = config;
+        timerService = config.getTimerService();
+        cryptoExecutor = config.getCryptoExecutor();
         enableMitmEnrollment = config.isTrustedMitM();
         paranoidMode = config.isParanoidMode();
 
@@ -507,6 +592,14 @@ public class ZRtp {
         currentHelloPacket = helloPackets[SUPPORTED_ZRTP_VERSIONS-1].packet;  // start with supported available version
 
         stateEngine = new ZrtpStateClass(this);
+
+        ZrtpEventLoop eventLoop = configureAlgos.getEventLoop();
+        if (eventLoop != null) {
+            mailbox = eventLoop.newMailbox(stateEngine);
+        }
+        if (timerService != null) {
+            timeout = new ZrtpTimerService.Timeout(this, mailbox != null);
+        }
     }
 
     /*
@@ -521,9 +614,8 @@ public class ZRtp {
      */
     public void startZrtpEngine() {
         if (stateEngine != null && stateEngine.isInState(ZrtpStateClass.ZrtpStates.Initial)) {
-            ZrtpStateClass.Event ev = stateEngine.new Event(ZrtpStateClass.EventDataType.ZrtpInitial, null);
-
-            stateEngine.processEvent(ev);
+            startKeyPairTask();
+            postEvent(ZrtpStateClass.EventDataType.ZrtpInitial, null);
         }
     }
 
@@ -533,9 +625,7 @@ public class ZRtp {
      */
     public void stopZrtp() {
         if (stateEngine != null) {
-            ZrtpStateClass.Event ev = stateEngine.new Event(ZrtpStateClass.EventDataType.ZrtpClose, null);
-
-            stateEngine.processEvent(ev);
+            postEvent(ZrtpStateClass.EventDataType.ZrtpClose, null);
         }
     }
 
@@ -555,11 +645,86 @@ public class ZRtp {
      *            RFC3550.
      */
     public void processZrtpMessage(byte[] extHeader, int ssrc) {
+        processZrtpMessage(extHeader, 0, ssrc);
+    }
+
+    /**
+     * Process a ZRTP message inside a larger buffer.
+     *
+     * The ZRTP message starts at <code>offset</code>, usually the start of
+     * the extension header inside the received RTP packet. The state engine
+     * parses the message in place, thus the caller does not need to copy
+     * the message into a separate array.
+     *
+     * @param buffer
+     *            The buffer that holds the received packet.
+     * @param offset
+     *            The offset of the first byte of the extension header.
+     * @param ssrc
+     *            The peer's SSRC.
+     */
+    public void processZrtpMessage(byte[] buffer, int offset, int ssrc) {
+        processZrtpMessage(buffer, offset, buffer.length - offset, ssrc);
+    }
+
+    /**
+     * Process a ZRTP message inside a larger buffer.
+     *
+     * The ZRTP message starts at <code>offset</code> and may use at most
+     * <code>length</code> bytes. The method drops a message if its length
+     * field exceeds these bytes.
+     *
+     * @param buffer
+     *            The buffer that holds the received packet.
+     * @param offset
+     *            The offset of the first byte of the extension header.
+     * @param length
+     *            The number of valid bytes from offset on.
+     * @param ssrc
+     *            The peer's SSRC.
+     */
+    public void processZrtpMessage(byte[] buffer, int offset, int length, int ssrc) {
+        if (!ZrtpPacketBase.isMessageInside(length, buffer, offset)) {
+            return;
+        }
         peerSSRC = ssrc;
 
+        ZrtpEntropyHarvester harvester = configureAlgos.getEntropyHarvester();
+        if (harvester != null) {
+            harvester.addPacketTiming();
+        }
+
         if (stateEngine != null) {
-            ZrtpStateClass.Event ev = stateEngine.new Event(ZrtpStateClass.EventDataType.ZrtpPacket, extHeader);
-            stateEngine.processEvent(ev);
+            // The caller may reuse the buffer while the event waits in the mailbox
+            if (mailbox != null) {
+                buffer = Arrays.copyOfRange(buffer, offset, offset + length);
+                offset = 0;
+            }
+            postEvent(ZrtpStateClass.EventDataType.ZrtpPacket, buffer, offset);
+        }
+    }
+
+    /**
+     * Process a ZRTP message in a ByteBuffer.
+     *
+     * The ZRTP message starts at the buffer's position and ends at the
+     * buffer's limit. A heap buffer is processed in place, the content of a
+     * direct buffer is copied once. This method does not change the
+     * buffer's position.
+     *
+     * @param buffer
+     *            The buffer that holds the received packet.
+     * @param ssrc
+     *            The peer's SSRC.
+     */
+    public void processZrtpMessage(ByteBuffer buffer, int ssrc) {
+        if (buffer.hasArray()) {
+            processZrtpMessage(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), ssrc);
+        }
+        else {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            processZrtpMessage(data, 0, data.length, ssrc);
         }
     }
 
@@ -572,9 +737,96 @@ public class ZRtp {
      */
     public void processTimeout() {
         if (stateEngine != null) {
-            ZrtpStateClass.Event ev = stateEngine.new Event(ZrtpStateClass.EventDataType.Timer, null);
+            postEvent(ZrtpStateClass.EventDataType.Timer, null);
+        }
+    }
+
+    /*
+     * Generate the key pair for the preferred public key algorithm on the
+     * crypto executor while ZRtp exchanges the Hello packets. If ZRtp
+     * negotiates this algorithm fillPubKey() uses the key pair, otherwise
+     * fillPubKey() generates a key pair as usual. Not required if a key
+     * pair pool provides the key pairs.
+     */
+    private void startKeyPairTask() {
+        if (cryptoExecutor == null || configureAlgos.getKeyPairPool() != null || multiStream) {
+            return;
+        }
+        for (ZrtpConstants.SupportedPubKeys pk : configureAlgos.publicKeyAlgos()) {
+            if (pk == ZrtpConstants.SupportedPubKeys.MULT) {
+                continue;
+            }
+            final ZrtpConstants.SupportedPubKeys type = pk;
+            FutureTask<AsymmetricCipherKeyPair> task = new FutureTask<AsymmetricCipherKeyPair>(
+                    new Callable<AsymmetricCipherKeyPair>() {
+                        public AsymmetricCipherKeyPair call() {
+                            return type.newKeyPairGenerator().generateKeyPair();
+                        }
+                    });
+            try {
+                cryptoExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+            keyPairTaskType = type;
+            keyPairTask = task;
+            return;
+        }
+    }
 
-            stateEngine.processEvent(ev);
+    /**
+     * The timer service calls this method if the session's timer expired.
+     *
+     * The state engine checks if the timer is still valid when it processes
+     * the event, see isTimerExpired().
+     */
+    void timerExpired() {
+        if (stateEngine != null) {
+            postEvent(ZrtpStateClass.EventDataType.ServiceTimer, null);
+        }
+    }
+
+    /**
+     * Check if the timer of the timer service expired and the state engine
+     * did not re-arm or cancel it meanwhile.
+     *
+     * @return true if the timeout is valid
+     */
+    protected boolean isTimerExpired() {
+        return timerService != null && timerService.isExpired(timeout);
+    }
+
+    /**
+     * Forward an event to the protocol state engine.
+     *
+     * If the configuration sets an event loop post the event to this
+     * session's mailbox, otherwise process it immediately.
+     *
+     * @param type
+     *            The event type.
+     * @param packet
+     *            The received packet or null.
+     */
+    private void postEvent(ZrtpStateClass.EventDataType type, byte[] packet) {
+        postEvent(type, packet, 0);
+    }
+
+    /**
+     * Forward an event to the protocol state engine.
+     *
+     * @param type
+     *            The event type.
+     * @param packet
+     *            The buffer that holds the received packet or null.
+     * @param offset
+     *            The offset of the ZRTP message inside the buffer.
+     */
+    private void postEvent(ZrtpStateClass.EventDataType type, byte[] packet, int offset) {
+        if (mailbox != null) {
+            mailbox.post(stateEngine.new Event(type, packet, offset));
+        }
+        else {
+            stateEngine.processEvent(type, packet, offset);
         }
     }
 
@@ -667,6 +919,9 @@ public class ZRtp {
             ekey = zrtpKeyI;
         }
         secRand.nextBytes(randomIV);
+        if (zrtpSasRelay == null) {
+            zrtpSasRelay = new ZrtpPacketSASRelay();
+        }
         zrtpSasRelay.setIv(randomIV);
         zrtpSasRelay.setTrustedSas(sh);
         zrtpSasRelay.setSasType(render.name);
@@ -674,9 +929,10 @@ public class ZRtp {
         // Encrypt and HMAC with selectedkey
         byte[] dataToSecure = zrtpSasRelay.getDataToSecure();
         try {
-            cipher.cipher.init(true, new ParametersWithIV(new KeyParameter(ekey, 0, cipher.keyLength), randomIV));
-            int done = cipher.cipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
-            cipher.cipher.doFinal(dataToSecure, done);
+            BufferedBlockCipher symCipher = getSymCipher();
+            symCipher.init(true, new ParametersWithIV(new KeyParameter(ekey, 0, cipher.keyLength), randomIV));
+            int done = symCipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
+            symCipher.doFinal(dataToSecure, done);
         } catch (Exception e) {
             sendInfo(ZrtpCodes.MessageSeverity.Severe, EnumSet.of(ZrtpCodes.SevereCodes.SevereSecurityException));
             return false;
@@ -720,6 +976,24 @@ public class ZRtp {
         return stateEngine != null && stateEngine.isInState(state);
     }
 
+    /**
+     * Release the memory a secure session does not need anymore.
+     *
+     * When ZRTP enters secure state it already releases the handshake
+     * packets and the key agreement data. This method also releases the
+     * packets ZRTP may need later, for example Error, PingAck or RelayAck,
+     * and the decoded peer Hello. ZRTP allocates them again on demand.
+     * Applications that keep many secure sessions should call this method
+     * after the session is secure.
+     *
+     * @return true if ZRTP is in secure state and released the data,
+     *         false otherwise.
+     */
+    @SuppressWarnings("unused")
+    public boolean compact() {
+        return stateEngine != null && stateEngine.compact();
+    }
+
     /**
      * Set SAS as verified.
      * 
@@ -731,7 +1005,7 @@ public class ZRtp {
             return;
 
         zidRec.setSasVerified();
-        ZidFile.getInstance().saveRecord(zidRec);
+        zidCache.saveRecord(zidRec);
     }
 
     /**
@@ -739,14 +1013,14 @@ public class ZRtp {
      */
     public void resetSASVerified() {
         zidRec.resetSasVerified();
-        ZidFile.getInstance().saveRecord(zidRec);
+        zidCache.saveRecord(zidRec);
     }
 
 
     public void setRs2Valid() {
         if (zidRec != null) {
             zidRec.setRs2Valid();
-            ZidFile.getInstance().saveRecord(zidRec);
+            zidCache.saveRecord(zidRec);
         }
     }
     /**
@@ -953,7 +1227,7 @@ public class ZRtp {
             callback.zrtpInformEnrollment(ZrtpCodes.InfoEnrollment.EnrollmentFailed);
             return;
         }
-        ZidFile.getInstance().saveRecord(zidRec);
+        zidCache.saveRecord(zidRec);
     }
 
     /**
@@ -973,7 +1247,19 @@ public class ZRtp {
     public boolean setSignatureData(byte[] data) {
         if ((data.length % 4) != 0)
             return false;
-        ZrtpPacketConfirm conf = (myRole == ZrtpCallback.Role.Responder) ? zrtpConfirm1 : zrtpConfirm2;
+        ZrtpPacketConfirm conf;
+        if (myRole == ZrtpCallback.Role.Responder) {
+            if (zrtpConfirm1 == null) {
+                zrtpConfirm1 = new ZrtpPacketConfirm();
+            }
+            conf = zrtpConfirm1;
+        }
+        else {
+            if (zrtpConfirm2 == null) {
+                zrtpConfirm2 = new ZrtpPacketConfirm();
+            }
+            conf = zrtpConfirm2;
+        }
 
         conf.setSignatureLength(data.length / 4);
         return conf.setSignatureData(data);
@@ -1014,9 +1300,10 @@ public class ZRtp {
      */
     public void conf2AckSecure() {
         if (stateEngine != null) {
-            ZrtpStateClass.Event ev = stateEngine.new Event(ZrtpStateClass.EventDataType.ZrtpPacket,
-                            zrtpConf2Ack.getHeaderBase());
-            stateEngine.processEvent(ev);
+            if (zrtpConf2Ack == null) {
+                zrtpConf2Ack = new ZrtpPacketConf2Ack();
+            }
+            postEvent(ZrtpStateClass.EventDataType.ZrtpPacket, zrtpConf2Ack.getHeaderBase());
         }
     }
 
@@ -1094,25 +1381,34 @@ public class ZRtp {
     }
 
     /**
-     * Activate a Timer using the host callback.
+     * Activate a Timer using the timer service or the host callback.
      * 
      * @param tm
      *            The time in milliseconds.
      * @return zero if activation failed, one if timer was activated
      */
     protected int activateTimer(int tm) {
+        if (timerService != null) {
+            timerService.arm(timeout, tm);
+            return 1;
+        }
         return callback.activateTimer(tm);
     }
 
     /**
-     * Cancel the active Timer using the host callback.
+     * Cancel the active Timer using the timer service or the host callback.
      * 
      * @return zero if activation failed, one if timer was activated
      */
     protected int cancelTimer() {
+        if (timerService != null) {
+            timerService.cancel(timeout);
+            return 1;
+        }
         return callback.cancelTimer();
     }
 
+
     /**
      * Prepare a Hello packet.
      * 
@@ -1134,6 +1430,9 @@ public class ZRtp {
      * @return A pointer to the initialized HelloAck packet.
      */
     protected ZrtpPacketHelloAck prepareHelloAck() {
+        if (zrtpHelloAck == null) {
+            zrtpHelloAck = new ZrtpPacketHelloAck();
+        }
         return zrtpHelloAck;
     }
 
@@ -1170,7 +1469,7 @@ public class ZRtp {
         // Thus compute digest only for the real message length.
         // Use implicit hash algo
         int helloLen = hello.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE;
-        hashFunctionImpl.update(hello.getHeaderBase(), 0, helloLen);
+        hashFunctionImpl.update(hello.getHeaderBase(), hello.getHeaderOffset(), helloLen);
         hashFunctionImpl.doFinal(peerHelloHash, 0);
         peerHelloVersion = hello.getVersion();
 
@@ -1182,23 +1481,24 @@ public class ZRtp {
          * (optional) algos then replace these with mandatory algos and put them into the Commit packet. Refer to the
          * findBest*() functions.
          */
-        sasType = hello.findBestSASType(configureAlgos);
+        NegotiationCache cache = configureAlgos.getNegotiationCache();
+        NegotiatedAlgorithms algos = (cache != null) ? cache.negotiate(hello, configureAlgos)
+                : getPeerCapabilities(hello).negotiate(configureAlgos);
+        sasType = algos.getSasType();
 
         if (!multiStream) {
-            pubKey = hello.findBestPubkey(configureAlgos);
-            hash = hello.getSelectedHash();
+            pubKey = algos.getPubKey();
+            hash = algos.getHash();
             if (hash == null) {
                 errMsg[0] = ZrtpCodes.ZrtpErrorCodes.UnsuppHashType;
                 return null;               
             }
-            cipher = hello.getSelectedCipher();
-            if (cipher == null)
-                cipher = hello.findBestCipher(configureAlgos, pubKey);
-            authLength = hello.findBestAuthLen(configureAlgos);
-            multiStreamAvailable = hello.checkMultiStream();
+            cipher = algos.getCipher();
+            authLength = algos.getAuthLength();
+            multiStreamAvailable = algos.isMultiStream();
         }
         else {
-            if (hello.checkMultiStream()) {
+            if (algos.isMultiStream()) {
                 return prepareCommitMultiStream(hello);
             }
             else {
@@ -1222,7 +1522,7 @@ public class ZRtp {
          * packet later in prepareDHPart2(). To create this DH packet we have to compute the retained secret ids first.
          * Thus get our peer's retained secret data first.
          */
-        zidRec = ZidFile.getInstance().getRecord(peerZid);
+        zidRec = zidCache.getRecord(peerZid);
 
         // Compute the Initator's and Responder's retained secret ids.
         computeSharedSecretSet();
@@ -1241,6 +1541,9 @@ public class ZRtp {
         // chapter 5.4.1.1.
 
         // Fill the values in the DHPart2 packet
+        if (zrtpDH2 == null) {
+            zrtpDH2 = new ZrtpPacketDHPart();
+        }
         zrtpDH2.setPubKeyType(pubKey);
         zrtpDH2.setMessageType(ZrtpConstants.DHPart2Msg);
         zrtpDH2.setRs1Id(rs1IDi);
@@ -1252,12 +1555,15 @@ public class ZRtp {
 
         // Compute HMAC over Hello, excluding the HMAC field (2*ZTP_WORD_SIZE)
         // and store in DH2
-        byte[] hmac = computeMsgHmac(H0, zrtpDH2);
-        zrtpDH2.setHMAC(hmac);
+        computeMsgHmacInto(H0, zrtpDH2, macBuffer, 0);
+        zrtpDH2.setHMAC(macBuffer);
 
         // Compute the HVI, refer to chapter 5.4.1.1 of the specification
         computeHvi(zrtpDH2, hello);
 
+        if (zrtpCommit == null) {
+            zrtpCommit = new ZrtpPacketCommit();
+        }
         zrtpCommit.setZid(zid);
         zrtpCommit.setHashType(hash.name);
         zrtpCommit.setCipherType(cipher.name);
@@ -1269,16 +1575,16 @@ public class ZRtp {
 
         // Compute HMAC over Commit, excluding the HMAC field (2*ZTP_WORD_SIZE)
         // and store in Hello
-        hmac = computeMsgHmac(H1, zrtpCommit);
-        zrtpCommit.setHMAC(hmac);
+        computeMsgHmacInto(H1, zrtpCommit, macBuffer, 0);
+        zrtpCommit.setHMAC(macBuffer);
 
         // hash first messages to produce overall message hash
         // First the Responder's Hello message, second the Commit
         // (always Initator's)
         // Use negotiated hash algo.
-        hashCtxFunction.update(hello.getHeaderBase(), 0, hello.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
+        hashCtxFunction.update(hello.getHeaderBase(), hello.getHeaderOffset(), hello.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
         final int len = zrtpCommit.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE;
-        hashCtxFunction.update(zrtpCommit.getHeaderBase(), 0, len);
+        hashCtxFunction.update(zrtpCommit.getHeaderBase(), zrtpCommit.getHeaderOffset(), len);
 
         // store Hello data temporarily until we can check HMAC after receiving
         // Commit as
@@ -1288,13 +1594,45 @@ public class ZRtp {
         return zrtpCommit;
     }
 
+    /*
+     * Get the session's cipher for the negotiated algorithm, create it if
+     * necessary.
+     */
+    private BufferedBlockCipher getSymCipher() {
+        if (symCipher == null || symCipherType != cipher) {
+            symCipher = cipher.newCipher();
+            symCipherType = cipher;
+        }
+        return symCipher;
+    }
+
+    /*
+     * Get a fresh key pair, from the key pair pool if one is configured.
+     */
+    private AsymmetricCipherKeyPair generateKeyPair() {
+        FutureTask<AsymmetricCipherKeyPair> task = keyPairTask;
+        keyPairTask = null;
+        if (task != null && keyPairTaskType == pubKey) {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // fall through and generate the key pair here
+            }
+        }
+        ZrtpKeyPairPool pool = configureAlgos.getKeyPairPool();
+        AsymmetricCipherKeyPair kp = (pool != null) ? pool.getKeyPair(pubKey) : null;
+        return (kp != null) ? kp : pubKey.newKeyPairGenerator().generateKeyPair();
+    }
+
     private boolean fillPubKey() {
         // Generate the standard DH data and keys according to the selected
         // DH algorithm
 
         if (pubKey == ZrtpConstants.SupportedPubKeys.DH2K || pubKey == ZrtpConstants.SupportedPubKeys.DH3K) {
 
-            dhKeyPair = pubKey.keyPairGen.generateKeyPair();
+            dhKeyPair = generateKeyPair();
             pubKeyBytes = ((DHPublicKeyParameters) dhKeyPair.getPublic()).getY().toByteArray();
 
             if (pubKeyBytes.length != pubKey.pubKeySize) {
@@ -1304,15 +1642,22 @@ public class ZRtp {
         }
         // Here produce the ECDH stuff
         else if (pubKey == ZrtpConstants.SupportedPubKeys.EC25
-                || pubKey == ZrtpConstants.SupportedPubKeys.EC38
-                || pubKey == ZrtpConstants.SupportedPubKeys.E255) {
+                || pubKey == ZrtpConstants.SupportedPubKeys.EC38) {
 
-            ecKeyPair = pubKey.keyPairGen.generateKeyPair();
-            byte[] encoded = ((ECPublicKeyParameters) ecKeyPair.getPublic()).getQ()
-                    .getEncoded(pubKey == ZrtpConstants.SupportedPubKeys.E255);
+            ecKeyPair = generateKeyPair();
+            byte[] encoded = ((ECPublicKeyParameters) ecKeyPair.getPublic()).getQ().getEncoded(false);
             pubKeyBytes = new byte[pubKey.pubKeySize];
             System.arraycopy(encoded, 1, pubKeyBytes, 0, pubKey.pubKeySize);
         }
+        // E255 uses X25519, the public value is the x-coordinate of the
+        // Weierstrass form
+        else if (pubKey == ZrtpConstants.SupportedPubKeys.E255) {
+
+            ecKeyPair = generateKeyPair();
+            byte[] u = ((X25519PublicKeyParameters) ecKeyPair.getPublic()).getEncoded();
+            pubKeyBytes = new byte[pubKey.pubKeySize];
+            Curve25519Coordinates.montgomeryToWeierstrass(u, 0, pubKeyBytes, 0);
+        }
         else {
             return false;
         }
@@ -1324,6 +1669,9 @@ public class ZRtp {
         hvi = new byte[ZrtpPacketBase.ZRTP_WORD_SIZE * 4];
         secRand.nextBytes(hvi);
 
+        if (zrtpCommit == null) {
+            zrtpCommit = new ZrtpPacketCommit();
+        }
         zrtpCommit.setZid(zid);
         zrtpCommit.setHashType(hash.name);
         zrtpCommit.setCipherType(cipher.name);
@@ -1337,14 +1685,14 @@ public class ZRtp {
 
         // Compute HMAC over Commit, excluding the HMAC field (2*ZTP_WORD_SIZE)
         // and store in Hello
-        byte[] hmac = computeMsgHmac(H1, zrtpCommit);
-        zrtpCommit.setHMACMulti(hmac);
+        computeMsgHmacInto(H1, zrtpCommit, macBuffer, 0);
+        zrtpCommit.setHMACMulti(macBuffer);
 
         // hash first messages to produce overall message hash
         // First the Responder's Hello message, second the Commit
         // (always Initator's). Use negotiated Hash algo.
-        hashCtxFunction.update(hello.getHeaderBase(), 0, hello.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
-        hashCtxFunction.update(zrtpCommit.getHeaderBase(), 0, len);
+        hashCtxFunction.update(hello.getHeaderBase(), hello.getHeaderOffset(), hello.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
+        hashCtxFunction.update(zrtpCommit.getHeaderBase(), zrtpCommit.getHeaderOffset(), len);
 
         // store Hello data temporarily until we can check HMAC after receiving
         // Commit as Responder or DHPart1 as Initiator
@@ -1357,13 +1705,32 @@ public class ZRtp {
         // Thus compute digest only for the real message length.
         // Use implicit hash algo
         int helloLen = hello.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE;
-        hashFunctionImpl.update(hello.getHeaderBase(), 0, helloLen);
+        hashFunctionImpl.update(hello.getHeaderBase(), hello.getHeaderOffset(), helloLen);
         hashFunctionImpl.doFinal(peerHelloHash, 0);
         peerHelloVersion = hello.getVersion();
 
         return zrtpCommit;
     }
 
+    /**
+     * Get the algorithms offered in the peer's Hello.
+     *
+     * The peer repeats its Hello until it gets our HelloAck or Commit. If
+     * the Hello has the same hash as before reuse the decoded algorithms
+     * and their negotiation result. Requires the peer's Hello hash.
+     *
+     * @param hello
+     *            The peer's Hello packet
+     * @return the peer's algorithms
+     */
+    private HelloCapabilities getPeerCapabilities(ZrtpPacketHello hello) {
+        if (peerCapabilities == null || !Arrays.equals(peerCapabilitiesHash, peerHelloHash)) {
+            peerCapabilities = hello.getCapabilities();
+            System.arraycopy(peerHelloHash, 0, peerCapabilitiesHash, 0, peerHelloHash.length);
+        }
+        return peerCapabilities;
+    }
+
     /**
      * Prepare the DHPart1 packet.
      * 
@@ -1469,6 +1836,9 @@ public class ZRtp {
         sendInfo(ZrtpCodes.MessageSeverity.Info, EnumSet.of(ZrtpCodes.InfoCodes.InfoDH1DHGenerated));
 
         // Setup a DHPart1 packet.
+        if (zrtpDH1 == null) {
+            zrtpDH1 = new ZrtpPacketDHPart();
+        }
         zrtpDH1.setPubKeyType(pubKey);
         zrtpDH1.setMessageType(ZrtpConstants.DHPart1Msg);
         zrtpDH1.setRs1Id(rs1IDr);
@@ -1480,8 +1850,8 @@ public class ZRtp {
 
         // Compute HMAC over DHPart1, excluding the HMAC field (2*ZTP_WORD_SIZE)
         // and store in DHPart1
-        byte[] hmac = computeMsgHmac(H0, zrtpDH1);
-        zrtpDH1.setHMAC(hmac);
+        computeMsgHmacInto(H0, zrtpDH1, macBuffer, 0);
+        zrtpDH1.setHMAC(macBuffer);
 
         // We are definitly responder. Save the peer's hvi for later compare.
         myRole = ZrtpCallback.Role.Responder;
@@ -1495,9 +1865,9 @@ public class ZRtp {
         // First the Responder's (my) Hello message, second the Commit
         // (always Initator's), then the DH1 message (which is always a
         // Responder's message)
-        hashCtxFunction.update(currentHelloPacket.getHeaderBase(), 0, currentHelloPacket.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
-        hashCtxFunction.update(commit.getHeaderBase(), 0, commit.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
-        hashCtxFunction.update(zrtpDH1.getHeaderBase(), 0, zrtpDH1.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
+        hashCtxFunction.update(currentHelloPacket.getHeaderBase(), currentHelloPacket.getHeaderOffset(), currentHelloPacket.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
+        hashCtxFunction.update(commit.getHeaderBase(), commit.getHeaderOffset(), commit.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
+        hashCtxFunction.update(zrtpDH1.getHeaderBase(), zrtpDH1.getHeaderOffset(), zrtpDH1.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
 
         // store Commit data temporarily until we can check HMAC after receiving
         // DHPart2
@@ -1516,11 +1886,55 @@ public class ZRtp {
      * 
      */
     protected ZrtpPacketDHPart prepareDHPart2(ZrtpPacketDHPart dhPart1, ZrtpCodes.ZrtpErrorCodes[] errMsg) {
+        if (!checkDHPart1(dhPart1, errMsg)) {
+            return null;
+        }
+        byte[] ss = computeSharedSecret(dhPart1.getPv(), errMsg);
+        if (ss == null) {
+            return null;
+        }
+        return finishDHPart2(dhPart1, ss);
+    }
+
+    /**
+     * Start to prepare the DHPart2 packet asynchronously.
+     *
+     * This method checks the DHPart1 packet and then computes the DH shared
+     * secret using the crypto executor. When the computation is done the
+     * state engine gets a CryptoDone event and calls completeDHPart2().
+     *
+     * @return true if the computation started, false on error
+     */
+    protected boolean prepareDHPart2Async(ZrtpPacketDHPart dhPart1, ZrtpCodes.ZrtpErrorCodes[] errMsg) {
+        if (!checkDHPart1(dhPart1, errMsg)) {
+            return false;
+        }
+        return startCryptoJob(dhPart1, errMsg);
+    }
+
+    /**
+     * Complete the DHPart2 packet after the asynchronous computation.
+     *
+     * @return the DHPart2 packet or null. An error code of IgnorePacket
+     *         denotes a stale or not yet finished computation.
+     */
+    protected ZrtpPacketDHPart completeDHPart2(ZrtpCodes.ZrtpErrorCodes[] errMsg) {
+        CryptoJob job = takeCryptoResult(errMsg);
+        if (job == null) {
+            return null;
+        }
+        return finishDHPart2(job.packet, job.secret);
+    }
+
+    /*
+     * Check the DHPart1 packet, the first part of prepareDHPart2().
+     */
+    private boolean checkDHPart1(ZrtpPacketDHPart dhPart1, ZrtpCodes.ZrtpErrorCodes[] errMsg) {
         sendInfo(ZrtpCodes.MessageSeverity.Info, EnumSet.of(ZrtpCodes.InfoCodes.InfoInitDH1Received));
 
         if (!dhPart1.isLengthOk()) {
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
-            return null;
+            return false;
         }
         // Because we are initiator the protocol engine didn't receive Commit
         // thus could not store a peer's H2. A two step hash is required to
@@ -1538,7 +1952,7 @@ public class ZRtp {
         if (ZrtpUtils.byteArrayCompare(tmpHash, peerH3,
                 ZrtpPacketBase.HASH_IMAGE_SIZE) != 0) {
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.IgnorePacket;
-            return null;
+            return false;
         }
 
         // Check HMAC of previous Hello packet stored in temporary buffer. The
@@ -1547,61 +1961,25 @@ public class ZRtp {
         if (!checkMsgHmac(peerH2)) {
             sendInfo(ZrtpCodes.MessageSeverity.Severe, EnumSet.of(ZrtpCodes.SevereCodes.SevereHelloHMACFailed));
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
-            return null;
+            return false;
         }
-        // get and check Responder's public value, see chap. 5.4.3 in the spec
-        byte[] pvrBytes = dhPart1.getPv();
-        int dhSize;
-        
-        if (pubKey == ZrtpConstants.SupportedPubKeys.DH2K || pubKey == ZrtpConstants.SupportedPubKeys.DH3K) {
+        return true;
+    }
 
-            // generate the resonpder's public key from the pvr data and the key
-            // specs, then compute the shared secret.
-            BigInteger pvrBigInt = new BigInteger(1, pvrBytes);
-            if (!checkPubKey(pvrBigInt, pubKey)) {
-                errMsg[0] = ZrtpCodes.ZrtpErrorCodes.DHErrorWrongPV;
-                return null;
-            }
-            pubKey.dhContext.init(dhKeyPair.getPrivate());
-            DHPublicKeyParameters pvr = new DHPublicKeyParameters(pvrBigInt, pubKey.specDh);
-            dhSize = pubKey.pubKeySize;
-            BigInteger bi = pubKey.dhContext.calculateAgreement(pvr);
-            DHss = bi.toByteArray();
-        }
-        // Here produce the ECDH stuff
-        else if (pubKey == ZrtpConstants.SupportedPubKeys.EC25
-                || pubKey == ZrtpConstants.SupportedPubKeys.EC38
-                || pubKey == ZrtpConstants.SupportedPubKeys.E255) {
-
-            byte[] encoded = new byte[pvrBytes.length + 1];
-            encoded[0] = (byte)(pubKey == ZrtpConstants.SupportedPubKeys.E255
-                    ? 0x02   // compressed, i.e. X only
-                    : 0x04); // uncompressed
-            System.arraycopy(pvrBytes, 0, encoded, 1, pvrBytes.length);
-            ECPoint point = pubKey.curve.decodePoint(encoded);
-            dhSize = pubKey.pubKeySize / 2;
-            pubKey.dhContext.init(ecKeyPair.getPrivate());
-            BigInteger bi = pubKey.dhContext.calculateAgreement(new ECPublicKeyParameters(point, null));
-            DHss = bi.toByteArray();
-        }
-        else {
-            errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
-            return null;
-        }
-        if (DHss.length != dhSize) {
-            if ((DHss = adjustBigBytes(DHss, dhSize)) == null) {
-                errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
-                return null;
-            }
-        }
+    /*
+     * Finish the DHPart2 packet using the DH shared secret, the last part
+     * of prepareDHPart2().
+     */
+    private ZrtpPacketDHPart finishDHPart2(ZrtpPacketDHPart dhPart1, byte[] ss) {
+        DHss = ss;
         myRole = ZrtpCallback.Role.Initiator;
 
         // We are Inititaor: the Responder's Hello and the Initiator's (our)
         // Commit are already hashed in the context. Now hash the
         // Responder's DH1 and then the Initiator's (our) DH2 in that order.
         // Use negotiated hash algo.
-        hashCtxFunction.update(dhPart1.getHeaderBase(), 0, dhPart1.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
-        hashCtxFunction.update(zrtpDH2.getHeaderBase(), 0, zrtpDH2.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
+        hashCtxFunction.update(dhPart1.getHeaderBase(), dhPart1.getHeaderOffset(), dhPart1.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
+        hashCtxFunction.update(zrtpDH2.getHeaderBase(), zrtpDH2.getHeaderOffset(), zrtpDH2.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
 
         // Compute the message Hash
         hashCtxFunction.doFinal(messageHash, 0);
@@ -1629,12 +2007,55 @@ public class ZRtp {
      * 
      */
     protected ZrtpPacketConfirm prepareConfirm1(ZrtpPacketDHPart dhPart2, ZrtpCodes.ZrtpErrorCodes[] errMsg) {
+        if (!checkDHPart2(dhPart2, errMsg)) {
+            return null;
+        }
+        byte[] ss = computeSharedSecret(dhPart2.getPv(), errMsg);
+        if (ss == null) {
+            return null;
+        }
+        return finishConfirm1(dhPart2, ss, errMsg);
+    }
 
+    /**
+     * Start to prepare the Confirm1 packet asynchronously.
+     *
+     * This method checks the DHPart2 packet and then computes the DH shared
+     * secret using the crypto executor. When the computation is done the
+     * state engine gets a CryptoDone event and calls completeConfirm1().
+     *
+     * @return true if the computation started, false on error
+     */
+    protected boolean prepareConfirm1Async(ZrtpPacketDHPart dhPart2, ZrtpCodes.ZrtpErrorCodes[] errMsg) {
+        if (!checkDHPart2(dhPart2, errMsg)) {
+            return false;
+        }
+        return startCryptoJob(dhPart2, errMsg);
+    }
+
+    /**
+     * Complete the Confirm1 packet after the asynchronous computation.
+     *
+     * @return the Confirm1 packet or null. An error code of IgnorePacket
+     *         denotes a stale or not yet finished computation.
+     */
+    protected ZrtpPacketConfirm completeConfirm1(ZrtpCodes.ZrtpErrorCodes[] errMsg) {
+        CryptoJob job = takeCryptoResult(errMsg);
+        if (job == null) {
+            return null;
+        }
+        return finishConfirm1(job.packet, job.secret, errMsg);
+    }
+
+    /*
+     * Check the DHPart2 packet, the first part of prepareConfirm1().
+     */
+    private boolean checkDHPart2(ZrtpPacketDHPart dhPart2, ZrtpCodes.ZrtpErrorCodes[] errMsg) {
         sendInfo(ZrtpCodes.MessageSeverity.Info, EnumSet.of(ZrtpCodes.InfoCodes.InfoRespDH2Received));
 
         if (!dhPart2.isLengthOk()) {
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
-            return null;
+            return false;
         }
         // Because we are responder we received a Commit and stored its H2.
         // Now re-compute H2 from received H1 and compare with stored peer's H2.
@@ -1644,7 +2065,7 @@ public class ZRtp {
 
         if (ZrtpUtils.byteArrayCompare(tmpHash, peerH2, ZrtpPacketBase.HASH_IMAGE_SIZE) != 0) {
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.IgnorePacket;
-            return null;
+            return false;
         }
         // Because we are responder re-compute my
         // hvi using my Hello packet and the Initiator's DHPart2 and compare
@@ -1653,7 +2074,7 @@ public class ZRtp {
         computeHvi(dhPart2, currentHelloPacket);
         if (ZrtpUtils.byteArrayCompare(hvi, peerHvi, ZrtpPacketBase.HVI_SIZE) != 0) {
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.DHErrorWrongHVI;
-            return null;
+            return false;
         }
         // Check HMAC of Commit packet stored in temporary buffer. The
         // HMAC key of the Commit packet is peer's H1 that is contained in.
@@ -1661,57 +2082,21 @@ public class ZRtp {
         if (!checkMsgHmac(dhPart2.getH1())) {
             sendInfo(ZrtpCodes.MessageSeverity.Severe, EnumSet.of(ZrtpCodes.SevereCodes.SevereCommitHMACFailed));
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
-            return null;
+            return false;
         }
-        // Get and check the Initiator's public value, see chap. 5.4.2 of the
-        // spec
-        byte[] pviBytes = dhPart2.getPv();
-        int dhSize;
+        return true;
+    }
 
-        if (pubKey == ZrtpConstants.SupportedPubKeys.DH2K || pubKey == ZrtpConstants.SupportedPubKeys.DH3K) {
+    /*
+     * Finish the Confirm1 packet using the DH shared secret, the last part
+     * of prepareConfirm1().
+     */
+    private ZrtpPacketConfirm finishConfirm1(ZrtpPacketDHPart dhPart2, byte[] ss, ZrtpCodes.ZrtpErrorCodes[] errMsg) {
+        DHss = ss;
 
-            // generate the resonpder's public key from the pvi data and the key
-            // specs, then compute the shared secret.
-            BigInteger pviBigInt = new BigInteger(1, pviBytes);
-            if (!checkPubKey(pviBigInt, pubKey)) {
-                errMsg[0] = ZrtpCodes.ZrtpErrorCodes.DHErrorWrongPV;
-                return null;
-            }
-            pubKey.dhContext.init(dhKeyPair.getPrivate());
-            DHPublicKeyParameters pvi = new DHPublicKeyParameters(pviBigInt, pubKey.specDh);
-            dhSize = pubKey.pubKeySize;
-            BigInteger bi = pubKey.dhContext.calculateAgreement(pvi);
-            DHss = bi.toByteArray();
-        }
-        // Here produce the ECDH stuff
-        else if (pubKey == ZrtpConstants.SupportedPubKeys.EC25
-                || pubKey == ZrtpConstants.SupportedPubKeys.EC38
-                || pubKey == ZrtpConstants.SupportedPubKeys.E255) {
-
-            byte[] encoded = new byte[pviBytes.length + 1];
-            encoded[0] = (byte)(pubKey == ZrtpConstants.SupportedPubKeys.E255
-                    ? 0x02   // compressed, i.e. X only
-                    : 0x04); // uncompressed
-            System.arraycopy(pviBytes, 0, encoded, 1, pviBytes.length);
-            ECPoint pubPoint = pubKey.curve.decodePoint(encoded);
-            dhSize = pubKey.pubKeySize / 2;
-            pubKey.dhContext.init(ecKeyPair.getPrivate());
-            BigInteger bi = pubKey.dhContext.calculateAgreement(new ECPublicKeyParameters(pubPoint, null));
-            DHss = bi.toByteArray();
-        }
-        else {
-            errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
-            return null;
-        }
-        if (DHss.length != dhSize) {
-            if ((DHss = adjustBigBytes(DHss, dhSize)) == null) {
-                errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
-                return null;
-            }
-        }
         // Hash the Initiator's DH2 into the message Hash (other messages
         // already prepared, see method prepareDHPart1().
-        hashCtxFunction.update(dhPart2.getHeaderBase(), 0, dhPart2.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
+        hashCtxFunction.update(dhPart2.getHeaderBase(), dhPart2.getHeaderOffset(), dhPart2.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
         hashCtxFunction.doFinal(messageHash, 0);
         hashCtxFunction = null;
 
@@ -1723,6 +2108,9 @@ public class ZRtp {
         generateKeysResponder(dhPart2);
 
         // Fill in Confirm1 packet.
+        if (zrtpConfirm1 == null) {
+            zrtpConfirm1 = new ZrtpPacketConfirm();
+        }
         zrtpConfirm1.setMessageType(ZrtpConstants.Confirm1Msg);
 
         // Check if user verfied the SAS in a previous call and thus verfied
@@ -1747,17 +2135,18 @@ public class ZRtp {
         // see ZRTP specification chapter
         byte[] dataToSecure = zrtpConfirm1.getDataToSecure();
         try {
-            cipher.cipher.init(true, new ParametersWithIV(new KeyParameter(zrtpKeyR, 0, cipher.keyLength), randomIV));
-            int done = cipher.cipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
-            cipher.cipher.doFinal(dataToSecure, done);
+            BufferedBlockCipher symCipher = getSymCipher();
+            symCipher.init(true, new ParametersWithIV(new KeyParameter(zrtpKeyR, 0, cipher.keyLength), randomIV));
+            int done = symCipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
+            symCipher.doFinal(dataToSecure, done);
         } catch (Exception e) {
             sendInfo(ZrtpCodes.MessageSeverity.Severe, EnumSet.of(ZrtpCodes.SevereCodes.SevereSecurityException));
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
             return null;
         }
-        byte[] confMac = computeHmac(hmacKeyR, hashLength, dataToSecure, dataToSecure.length);
+        computeHmacInto(hmacKeyR, hashLength, dataToSecure, dataToSecure.length, macBuffer, 0);
         zrtpConfirm1.setDataToSecure(dataToSecure);
-        zrtpConfirm1.setHmac(confMac);
+        zrtpConfirm1.setHmac(macBuffer);
 
         // store DHPart2 data temporarily until we can check HMAC after
         // receiving Confirm2
@@ -1765,6 +2154,190 @@ public class ZRtp {
         return zrtpConfirm1;
     }
 
+    /*
+     * Check the peer's public value and compute the DH shared secret, see
+     * chap. 5.4.2 and 5.4.3 of the spec. This method only reads the key
+     * pair and the negotiated public key algorithm, thus the crypto executor
+     * may run it.
+     *
+     * Returns the shared secret adjusted to the DH size or null on error.
+     */
+    private byte[] computeSharedSecret(byte[] pvBytes, ZrtpCodes.ZrtpErrorCodes[] errMsg) {
+        byte[] ss;
+        int dhSize;
+
+        if (pubKey == ZrtpConstants.SupportedPubKeys.DH2K || pubKey == ZrtpConstants.SupportedPubKeys.DH3K) {
+
+            // generate the peer's public key from the pv data and the key
+            // specs, then compute the shared secret.
+            BigInteger pvBigInt = new BigInteger(1, pvBytes);
+            if (!checkPubKey(pvBigInt, pubKey)) {
+                errMsg[0] = ZrtpCodes.ZrtpErrorCodes.DHErrorWrongPV;
+                return null;
+            }
+            BasicAgreement dhContext = pubKey.newAgreement();
+            dhContext.init(dhKeyPair.getPrivate());
+            DHPublicKeyParameters pv = new DHPublicKeyParameters(pvBigInt, pubKey.specDh);
+            dhSize = pubKey.pubKeySize;
+            BigInteger bi = dhContext.calculateAgreement(pv);
+            ss = bi.toByteArray();
+        }
+        // Here produce the ECDH stuff
+        else if (pubKey == ZrtpConstants.SupportedPubKeys.EC25
+                || pubKey == ZrtpConstants.SupportedPubKeys.EC38) {
+
+            byte[] encoded = new byte[pvBytes.length + 1];
+            encoded[0] = 0x04; // uncompressed
+            System.arraycopy(pvBytes, 0, encoded, 1, pvBytes.length);
+            ECPoint point = pubKey.curve.decodePoint(encoded);
+            dhSize = pubKey.pubKeySize / 2;
+            ECPrivateKeyParameters ecPrivate = (ECPrivateKeyParameters) ecKeyPair.getPrivate();
+            BasicAgreement dhContext = pubKey.newAgreement();
+            dhContext.init(ecPrivate);
+            BigInteger bi = dhContext.calculateAgreement(new ECPublicKeyParameters(point, ecPrivate.getParameters()));
+            ss = bi.toByteArray();
+        }
+        else if (pubKey == ZrtpConstants.SupportedPubKeys.E255) {
+            dhSize = pubKey.pubKeySize;
+            if ((ss = computeX25519Secret(pvBytes)) == null) {
+                errMsg[0] = ZrtpCodes.ZrtpErrorCodes.DHErrorWrongPV;
+                return null;
+            }
+        }
+        else {
+            errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
+            return null;
+        }
+        if (ss.length != dhSize) {
+            if ((ss = adjustBigBytes(ss, dhSize)) == null) {
+                errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
+                return null;
+            }
+        }
+        return ss;
+    }
+
+    /**
+     * Check if ZRtp computes the DH shared secret asynchronously.
+     *
+     * @return true if the configuration sets a crypto executor.
+     */
+    protected boolean isCryptoAsync() {
+        return cryptoExecutor != null;
+    }
+
+    /**
+     * Check if an asynchronous DH computation is in progress.
+     *
+     * @return true if the state engine waits for a CryptoDone event.
+     */
+    protected boolean isCryptoPending() {
+        return cryptoJob != null;
+    }
+
+    /**
+     * Forget an asynchronous DH computation, the state engine left the
+     * state that started it.
+     */
+    protected void cancelCryptoJob() {
+        cryptoJob = null;
+    }
+
+    /*
+     * Start the DH computation for the peer's DHPart packet on the crypto
+     * executor. The job works on a copy of the packet because the caller
+     * may reuse the packet's buffer.
+     */
+    private boolean startCryptoJob(ZrtpPacketDHPart dhPart, ZrtpCodes.ZrtpErrorCodes[] errMsg) {
+        int offset = dhPart.getHeaderOffset();
+        byte[] data = Arrays.copyOfRange(dhPart.getHeaderBase(), offset,
+                offset + dhPart.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
+        CryptoJob job = new CryptoJob(new ZrtpPacketDHPart(data));
+        cryptoJob = job;
+        try {
+            cryptoExecutor.execute(job);
+        } catch (RejectedExecutionException e) {
+            cryptoJob = null;
+            errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Get the finished DH computation, returns null if there is none or the
+     * computation failed.
+     */
+    private CryptoJob takeCryptoResult(ZrtpCodes.ZrtpErrorCodes[] errMsg) {
+        CryptoJob job = cryptoJob;
+        if (job == null || !job.done) {
+            errMsg[0] = ZrtpCodes.ZrtpErrorCodes.IgnorePacket;
+            return null;
+        }
+        cryptoJob = null;
+        if (job.secret == null) {
+            errMsg[0] = job.error;
+            return null;
+        }
+        return job;
+    }
+
+    /*
+     * Computes the DH shared secret on the crypto executor and then
+     * re-enters the state engine with a CryptoDone event.
+     */
+    private final class CryptoJob implements Runnable {
+        final ZrtpPacketDHPart packet;
+        byte[] secret;
+        ZrtpCodes.ZrtpErrorCodes error;
+        volatile boolean done = false;
+
+        CryptoJob(ZrtpPacketDHPart pkt) {
+            packet = pkt;
+        }
+
+        public void run() {
+            ZrtpCodes.ZrtpErrorCodes[] errMsg = new ZrtpCodes.ZrtpErrorCodes[1];
+            try {
+                secret = computeSharedSecret(packet.getPv(), errMsg);
+                error = errMsg[0];
+            } catch (RuntimeException e) {
+                secret = null;
+                error = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
+            }
+            done = true;
+            if (cryptoJob == this && stateEngine != null) {
+                postEvent(ZrtpStateClass.EventDataType.CryptoDone, null);
+            }
+        }
+    }
+
+    /*
+     * Compute the E255 shared secret with X25519. The peer's public value
+     * and the result use the x-coordinate of the Weierstrass form, thus
+     * convert from and to the Montgomery u-coordinate.
+     *
+     * Returns null if the public value is invalid.
+     */
+    private byte[] computeX25519Secret(byte[] pv) {
+        byte[] u = new byte[Curve25519Coordinates.COORDINATE_SIZE];
+        if (pv.length != Curve25519Coordinates.COORDINATE_SIZE
+                || !Curve25519Coordinates.weierstrassToMontgomery(pv, 0, u, 0)) {
+            return null;
+        }
+        byte[] secret = new byte[Curve25519Coordinates.COORDINATE_SIZE];
+        try {
+            ((X25519PrivateKeyParameters) ecKeyPair.getPrivate())
+                    .generateSecret(new X25519PublicKeyParameters(u, 0), secret, 0);
+        } catch (IllegalStateException e) {
+            return null;            // low order point, the secret is zero
+        }
+        byte[] ss = new byte[Curve25519Coordinates.COORDINATE_SIZE];
+        Curve25519Coordinates.montgomeryToWeierstrass(secret, 0, ss, 0);
+        Arrays.fill(secret, (byte) 0);
+        return ss;
+    }
+
     private byte[] adjustBigBytes(byte[] in, int size) {
         // adjust byte arry if we have a leading zero
         byte[] tmp;
@@ -1844,14 +2417,17 @@ public class ZRtp {
         // Hash messages to produce overall message hash:
         // First the Responder's (my) Hello message, second the Commit
         // (always Initator's)
-        hashCtxFunction.update(currentHelloPacket.getHeaderBase(), 0, currentHelloPacket.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
-        hashCtxFunction.update(commit.getHeaderBase(), 0, commit.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
+        hashCtxFunction.update(currentHelloPacket.getHeaderBase(), currentHelloPacket.getHeaderOffset(), currentHelloPacket.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
+        hashCtxFunction.update(commit.getHeaderBase(), commit.getHeaderOffset(), commit.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE);
         hashCtxFunction.doFinal(messageHash, 0);
         hashCtxFunction = null;
 
         generateKeysMultiStream();
 
         // Fill in Confirm1 packet.
+        if (zrtpConfirm1 == null) {
+            zrtpConfirm1 = new ZrtpPacketConfirm();
+        }
         zrtpConfirm1.setMessageType(ZrtpConstants.Confirm1Msg);
         zrtpConfirm1.setExpTime(0xFFFFFFFF);
         zrtpConfirm1.setIv(randomIV);
@@ -1861,17 +2437,18 @@ public class ZRtp {
         // see ZRTP specification chapter xYxY
         byte[] dataToSecure = zrtpConfirm1.getDataToSecure();
         try {
-            cipher.cipher.init(true, new ParametersWithIV(new KeyParameter(zrtpKeyR, 0, cipher.keyLength), randomIV));
-            int done = cipher.cipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
-            cipher.cipher.doFinal(dataToSecure, done);
+            BufferedBlockCipher symCipher = getSymCipher();
+            symCipher.init(true, new ParametersWithIV(new KeyParameter(zrtpKeyR, 0, cipher.keyLength), randomIV));
+            int done = symCipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
+            symCipher.doFinal(dataToSecure, done);
         } catch (Exception e) {
             sendInfo(ZrtpCodes.MessageSeverity.Severe, EnumSet.of(ZrtpCodes.SevereCodes.SevereSecurityException));
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
             return null;
         }
-        byte[] confMac = computeHmac(hmacKeyR, hashLength, dataToSecure, dataToSecure.length);
+        computeHmacInto(hmacKeyR, hashLength, dataToSecure, dataToSecure.length, macBuffer, 0);
         zrtpConfirm1.setDataToSecure(dataToSecure);
-        zrtpConfirm1.setHmac(confMac);
+        zrtpConfirm1.setHmac(macBuffer);
 
         // Store Commit data temporarily until we can check HMAC after receiving
         // Confirm2
@@ -1897,18 +2474,19 @@ public class ZRtp {
         // Use the Responder's keys here to decrypt because we are
         // Initiator and receive packets from Responder
         byte[] dataToSecure = confirm1.getDataToSecure();
-        byte[] confMac = computeHmac(hmacKeyR, hashLength, dataToSecure, dataToSecure.length);
+        computeHmacInto(hmacKeyR, hashLength, dataToSecure, dataToSecure.length, macBuffer, 0);
 
-        if (ZrtpUtils.byteArrayCompare(confMac, confirm1.getHmac(), 2 * ZrtpPacketBase.ZRTP_WORD_SIZE) != 0) {
+        if (ZrtpUtils.byteArrayCompare(macBuffer, confirm1.getHmac(), 2 * ZrtpPacketBase.ZRTP_WORD_SIZE) != 0) {
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.ConfirmHMACWrong;
             return null;
         }
         try {
             // Decrypting here
-            cipher.cipher.init(false,
+            BufferedBlockCipher symCipher = getSymCipher();
+            symCipher.init(false,
                             new ParametersWithIV(new KeyParameter(zrtpKeyR, 0, cipher.keyLength), confirm1.getIv()));
-            int done = cipher.cipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
-            cipher.cipher.doFinal(dataToSecure, done);
+            int done = symCipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
+            symCipher.doFinal(dataToSecure, done);
         } catch (Exception e) {
             sendInfo(ZrtpCodes.MessageSeverity.Severe, EnumSet.of(ZrtpCodes.SevereCodes.SevereSecurityException));
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
@@ -1951,6 +2529,9 @@ public class ZRtp {
         zidRec.setNewRs1(newRs1, -1);
 
         // now generate my Confirm2 message
+        if (zrtpConfirm2 == null) {
+            zrtpConfirm2 = new ZrtpPacketConfirm();
+        }
         zrtpConfirm2.setMessageType(ZrtpConstants.Confirm2Msg);
         zrtpConfirm2.setHashH0(H0);
 
@@ -1973,24 +2554,25 @@ public class ZRtp {
                 zidRec.setMiTMData(pbxSecretTmp);
             }
         }
-        ZidFile.getInstance().saveRecord(zidRec);
+        zidCache.saveRecord(zidRec);
 
         // Encrypt and HMAC with Initiator's key - we are Initiator here
         dataToSecure = zrtpConfirm2.getDataToSecure();
 
         try {
-            cipher.cipher.init(true, new ParametersWithIV(new KeyParameter(zrtpKeyI, 0, cipher.keyLength), randomIV));
-            int done = cipher.cipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
-            cipher.cipher.doFinal(dataToSecure, done);
+            BufferedBlockCipher symCipher = getSymCipher();
+            symCipher.init(true, new ParametersWithIV(new KeyParameter(zrtpKeyI, 0, cipher.keyLength), randomIV));
+            int done = symCipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
+            symCipher.doFinal(dataToSecure, done);
         } catch (Exception e) {
             sendInfo(ZrtpCodes.MessageSeverity.Severe, EnumSet.of(ZrtpCodes.SevereCodes.SevereSecurityException));
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
             return null;
         }
-        confMac = computeHmac(hmacKeyI, hashLength, dataToSecure, dataToSecure.length);
+        computeHmacInto(hmacKeyI, hashLength, dataToSecure, dataToSecure.length, macBuffer, 0);
 
         zrtpConfirm2.setDataToSecure(dataToSecure);
-        zrtpConfirm2.setHmac(confMac);
+        zrtpConfirm2.setHmac(macBuffer);
 
         callback.srtpSecretsOn(cipher.readable + "/" + pubKey, SAS, sasFlag);
 
@@ -2033,18 +2615,19 @@ public class ZRtp {
         // Use the Responder's keys here to decrypt because we are
         // Initiator and receive packets from Responder
         byte[] dataToSecure = confirm1.getDataToSecure();
-        byte[] confMac = computeHmac(hmacKeyR, hashLength, dataToSecure, dataToSecure.length);
+        computeHmacInto(hmacKeyR, hashLength, dataToSecure, dataToSecure.length, macBuffer, 0);
 
-        if (ZrtpUtils.byteArrayCompare(confMac, confirm1.getHmac(), 2 * ZrtpPacketBase.ZRTP_WORD_SIZE) != 0) {
+        if (ZrtpUtils.byteArrayCompare(macBuffer, confirm1.getHmac(), 2 * ZrtpPacketBase.ZRTP_WORD_SIZE) != 0) {
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.ConfirmHMACWrong;
             return null;
         }
         try {
             // Decrypting here
-            cipher.cipher.init(false,
+            BufferedBlockCipher symCipher = getSymCipher();
+            symCipher.init(false,
                             new ParametersWithIV(new KeyParameter(zrtpKeyR, 0, cipher.keyLength), confirm1.getIv()));
-            int done = cipher.cipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
-            cipher.cipher.doFinal(dataToSecure, done);
+            int done = symCipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
+            symCipher.doFinal(dataToSecure, done);
         } catch (Exception e) {
             sendInfo(ZrtpCodes.MessageSeverity.Severe, EnumSet.of(ZrtpCodes.SevereCodes.SevereSecurityException));
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
@@ -2074,6 +2657,9 @@ public class ZRtp {
             return null;
         }
         // now generate my Confirm2 message
+        if (zrtpConfirm2 == null) {
+            zrtpConfirm2 = new ZrtpPacketConfirm();
+        }
         zrtpConfirm2.setMessageType(ZrtpConstants.Confirm2Msg);
         zrtpConfirm2.setHashH0(H0);
         zrtpConfirm2.setExpTime(0xFFFFFFFF);
@@ -2083,17 +2669,18 @@ public class ZRtp {
         dataToSecure = zrtpConfirm2.getDataToSecure();
 
         try {
-            cipher.cipher.init(true, new ParametersWithIV(new KeyParameter(zrtpKeyI, 0, cipher.keyLength), randomIV));
-            int done = cipher.cipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
-            cipher.cipher.doFinal(dataToSecure, done);
+            BufferedBlockCipher symCipher = getSymCipher();
+            symCipher.init(true, new ParametersWithIV(new KeyParameter(zrtpKeyI, 0, cipher.keyLength), randomIV));
+            int done = symCipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
+            symCipher.doFinal(dataToSecure, done);
         } catch (Exception e) {
             sendInfo(ZrtpCodes.MessageSeverity.Severe, EnumSet.of(ZrtpCodes.SevereCodes.SevereSecurityException));
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
             return null;
         }
-        confMac = computeHmac(hmacKeyI, hashLength, dataToSecure, dataToSecure.length);
+        computeHmacInto(hmacKeyI, hashLength, dataToSecure, dataToSecure.length, macBuffer, 0);
         zrtpConfirm2.setDataToSecure(dataToSecure);
-        zrtpConfirm2.setHmac(confMac);
+        zrtpConfirm2.setHmac(macBuffer);
 
         // Inform GUI about security state, don't show SAS and its state
         callback.srtpSecretsOn(cipher.readable, null, true);
@@ -2118,18 +2705,19 @@ public class ZRtp {
         // Use the Initiator's keys here because we are Responder here and
         // reveice packets from Initiator
         byte[] dataToSecure = confirm2.getDataToSecure();
-        byte[] confMac = computeHmac(hmacKeyI, hashLength, dataToSecure, dataToSecure.length);
+        computeHmacInto(hmacKeyI, hashLength, dataToSecure, dataToSecure.length, macBuffer, 0);
 
-        if (ZrtpUtils.byteArrayCompare(confMac, confirm2.getHmac(), 2 * ZrtpPacketBase.ZRTP_WORD_SIZE) != 0) {
+        if (ZrtpUtils.byteArrayCompare(macBuffer, confirm2.getHmac(), 2 * ZrtpPacketBase.ZRTP_WORD_SIZE) != 0) {
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.ConfirmHMACWrong;
             return null;
         }
         try {
             // Decrypting here
-            cipher.cipher.init(false,
+            BufferedBlockCipher symCipher = getSymCipher();
+            symCipher.init(false,
                             new ParametersWithIV(new KeyParameter(zrtpKeyI, 0, cipher.keyLength), confirm2.getIv()));
-            int done = cipher.cipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
-            cipher.cipher.doFinal(dataToSecure, done);
+            int done = symCipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
+            symCipher.doFinal(dataToSecure, done);
         } catch (Exception e) {
             sendInfo(ZrtpCodes.MessageSeverity.Severe, EnumSet.of(ZrtpCodes.SevereCodes.SevereSecurityException));
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
@@ -2169,7 +2757,7 @@ public class ZRtp {
 
             // save new RS1, this inherits the verified flag from old RS1
             zidRec.setNewRs1(newRs1, -1);
-            ZidFile.getInstance().saveRecord(zidRec);
+            zidCache.saveRecord(zidRec);
 
             // Ask for enrollment only if enabled via configuration and the
             // confirm packet contains the enrollment flag. The enrolling user
@@ -2196,6 +2784,9 @@ public class ZRtp {
             callback.srtpSecretsOn(cipher.readable, null, true);
 
         }
+        if (zrtpConf2Ack == null) {
+            zrtpConf2Ack = new ZrtpPacketConf2Ack();
+        }
         return zrtpConf2Ack;
     }
 
@@ -2214,6 +2805,9 @@ public class ZRtp {
                 break;
             }
         }
+        if (zrtpErrorAck == null) {
+            zrtpErrorAck = new ZrtpPacketErrorAck();
+        }
         return zrtpErrorAck;
     }
 
@@ -2224,6 +2818,9 @@ public class ZRtp {
      * error code to be included into the message.
      */
     protected ZrtpPacketError prepareError(ZrtpCodes.ZrtpErrorCodes errMsg) {
+        if (zrtpError == null) {
+            zrtpError = new ZrtpPacketError();
+        }
         zrtpError.setErrorCode(errMsg.value);
         return zrtpError;
     }
@@ -2241,6 +2838,9 @@ public class ZRtp {
         // If this code shall be used in ZRTP proxy implementation the
         // computation of the endpoint hash must be enhanced (see 
         // chapters 5.15 and 5.16)
+        if (zrtpPingAck == null) {
+            zrtpPingAck = new ZrtpPacketPingAck();
+        }
         zrtpPingAck.setLocalEpHash(zid);
         zrtpPingAck.setRemoteEpHash(ppkt.getEpHash());
         zrtpPingAck.setPeerSSRC(peerSSRC);
@@ -2248,6 +2848,9 @@ public class ZRtp {
     }
 
     protected ZrtpPacketRelayAck prepareRelayAck(ZrtpPacketSASRelay srly, ZrtpCodes.ZrtpErrorCodes[] errMsg) {
+        if (zrtpRelayAck == null) {
+            zrtpRelayAck = new ZrtpPacketRelayAck();
+        }
         // handle and render SAS relay data only if the peer announced that it is a trusted
         // PBX. Don't handle SAS relay in paranoidMode.
         if (!mitmSeen || paranoidMode)
@@ -2268,17 +2871,18 @@ public class ZRtp {
             ekey = zrtpKeyR;
         }
         byte[] dataToSecure = srly.getDataToSecure();
-        byte[] relayMac = computeHmac(hkey, hashLength, dataToSecure, dataToSecure.length);
+        computeHmacInto(hkey, hashLength, dataToSecure, dataToSecure.length, macBuffer, 0);
 
-        if (ZrtpUtils.byteArrayCompare(relayMac, srly.getHmac(), 2 * ZrtpPacketBase.ZRTP_WORD_SIZE) != 0) {
+        if (ZrtpUtils.byteArrayCompare(macBuffer, srly.getHmac(), 2 * ZrtpPacketBase.ZRTP_WORD_SIZE) != 0) {
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.ConfirmHMACWrong;
             return null; // TODO - check error handling
         }
         try {
             // Decrypting here
-            cipher.cipher.init(false, new ParametersWithIV(new KeyParameter(ekey, 0, cipher.keyLength), srly.getIv()));
-            int done = cipher.cipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
-            cipher.cipher.doFinal(dataToSecure, done);
+            BufferedBlockCipher symCipher = getSymCipher();
+            symCipher.init(false, new ParametersWithIV(new KeyParameter(ekey, 0, cipher.keyLength), srly.getIv()));
+            int done = symCipher.processBytes(dataToSecure, 0, dataToSecure.length, dataToSecure, 0);
+            symCipher.doFinal(dataToSecure, done);
         } catch (Exception e) {
             sendInfo(ZrtpCodes.MessageSeverity.Severe, EnumSet.of(ZrtpCodes.SevereCodes.SevereSecurityException));
             errMsg[0] = ZrtpCodes.ZrtpErrorCodes.CriticalSWError;
@@ -2489,6 +3093,51 @@ public class ZRtp {
         callback.srtpSecretsOff(part);
     }
 
+    /**
+     * Release the handshake data.
+     *
+     * The state engine calls this method when it enters secure state. The
+     * method clears and releases the data that ZRTP uses only during the
+     * handshake. It keeps the Conf2Ack packet because secure state resends
+     * it if a Confirm2 arrives again, and it keeps the keys that SAS relay
+     * and multi-stream mode use.
+     *
+     * @param all
+     *            If true also release the packets and data that ZRTP can
+     *            create again, see compact().
+     */
+    protected void releaseHandshakeData(boolean all) {
+        zrtpHelloAck = null;
+        zrtpCommit = null;
+        zrtpDH1 = null;
+        zrtpDH2 = null;
+        zrtpConfirm1 = null;
+        zrtpConfirm2 = null;
+
+        if (tempMsgBuffer != null) {
+            Arrays.fill(tempMsgBuffer, (byte) 0);
+            tempMsgBuffer = null;
+        }
+        lengthOfMsgData = 0;
+
+        dhKeyPair = null;
+        ecKeyPair = null;
+        pubKeyBytes = null;
+        peerHvi = null;
+        Arrays.fill(hvi, (byte) 0);
+        Arrays.fill(messageHash, (byte) 0);
+        hmacFunctionImpl.clearKey();
+
+        if (all) {
+            zrtpError = null;
+            zrtpErrorAck = null;
+            zrtpPingAck = null;
+            zrtpSasRelay = null;
+            zrtpRelayAck = null;
+            peerCapabilities = null;
+        }
+    }
+
     // Private internal methods
     /**
      * Helper function to store ZRTP message data in a temporary buffer
@@ -2501,10 +3150,13 @@ public class ZRtp {
      *            Pointer to the packet's ZRTP message
      */
     private void storeMsgTemp(ZrtpPacketBase pkt) {
+        if (tempMsgBuffer == null) {
+            tempMsgBuffer = new byte[1024];
+        }
         int length = pkt.getLength() * ZrtpPacketBase.ZRTP_WORD_SIZE;
         length = (length > tempMsgBuffer.length) ? tempMsgBuffer.length : length;
         Arrays.fill(tempMsgBuffer, (byte) 0);
-        System.arraycopy(pkt.getHeaderBase(), 0, tempMsgBuffer, 0, length);
+        System.arraycopy(pkt.getHeaderBase(), pkt.getHeaderOffset(), tempMsgBuffer, 0, length);
         lengthOfMsgData = length;
     }
 
@@ -2524,26 +3176,29 @@ public class ZRtp {
     private boolean checkMsgHmac(byte[] keyIn) {
         // compute HMAC, but exlude the stored HMAC :-)
         // Use HMAC with implicit hash algo
+        if (tempMsgBuffer == null) {
+            return false;
+        }
         int len = lengthOfMsgData - (2 * ZrtpPacketBase.ZRTP_WORD_SIZE); // :-)
-        KeyParameter key = new KeyParameter(keyIn, 0, ZrtpPacketBase.HASH_IMAGE_SIZE);
-        hmacFunctionImpl.init(key);
-        hmacFunctionImpl.update(tempMsgBuffer, 0, len);
-        byte data[] = new byte[hashLengthImpl];
-        hmacFunctionImpl.doFinal(data, 0);
+        computeHmacImplInto(keyIn, ZrtpPacketBase.HASH_IMAGE_SIZE, tempMsgBuffer, 0, len, macBuffer, 0);
 
-        byte[] storedMac = ZrtpUtils.readRegion(tempMsgBuffer, len, 2 * ZrtpPacketBase.ZRTP_WORD_SIZE);
-        return (ZrtpUtils.byteArrayCompare(data, storedMac, 2 * ZrtpPacketBase.ZRTP_WORD_SIZE) == 0);
+        // Compare with the stored HMAC in place
+        int diff = 0;
+        for (int i = 0; i < 2 * ZrtpPacketBase.ZRTP_WORD_SIZE; i++) {
+            diff |= macBuffer[i] ^ tempMsgBuffer[len + i];
+        }
+        return diff == 0;
     }
 
     private void setNegotiatedHash(ZrtpConstants.SupportedHashes hash) {
         if (hash == ZrtpConstants.SupportedHashes.S256) {
             hashFunction = new SHA256Digest();
-            hmacFunction = new HMac(new SHA256Digest());
+            hmacFunction = new ZrtpHmac(new SHA256Digest());
             hashCtxFunction = new SHA256Digest();
         }
         else if (hash == ZrtpConstants.SupportedHashes.S384) {
             hashFunction = new SHA384Digest();
-            hmacFunction = new HMac(new SHA384Digest());
+            hmacFunction = new ZrtpHmac(new SHA384Digest());
             hashCtxFunction = new SHA384Digest();
         }
         hashLength = hashFunction.getDigestSize();
@@ -2588,28 +3243,31 @@ public class ZRtp {
         // this array includes the CRC which is not part of the helloHash.
         // Thus compute digest only for the real message length.
         // Use implicit hash algo
-        hashFunctionImpl.update(hpv.packet.getHeaderBase(), 0, len);
+        hashFunctionImpl.update(hpv.packet.getHeaderBase(), hpv.packet.getHeaderOffset(), len);
         hashFunctionImpl.doFinal(hpv.helloHash, 0);
     }
 
     /**
      * Helper function to compute a ZRTP message HMAC.
-     * 
-     * This function gets a HMAC key and uses it to compute a HMAC with this key
-     * and the stored data of a previous received ZRTP message. It compares the
-     * computed HMAC and the HMAC stored in the received message and returns the
-     * result. This uses the HAMC with the implicit hash algo.
-     * 
+     *
+     * This function computes the HMAC of a ZRTP message, excluding the HMAC
+     * field, and writes it into a buffer. This uses the HMAC with the
+     * implicit hash algo.
+     *
      * @param keyIn
-     *            Pointer to the HMAC key.
-     * @return Returns true if the computed HMAC and the stored HMAC match,
-     *         false otherwise.
+     *            The HMAC key.
+     * @param pkt
+     *            The ZRTP message.
+     * @param out
+     *            The buffer that receives the HMAC.
+     * @param outOff
+     *            The offset in the buffer.
      */
-    private byte[] computeMsgHmac(byte[] keyIn, ZrtpPacketBase pkt) {
+    private void computeMsgHmacInto(byte[] keyIn, ZrtpPacketBase pkt, byte[] out, int outOff) {
 
         // compute HMAC, but exclude the stored HMAC in length computation:-)
         int len = (pkt.getLength() - 2) * ZrtpPacketBase.ZRTP_WORD_SIZE;
-        return computeHmacImpl(keyIn, hashLengthImpl, pkt.getHeaderBase(), len);
+        computeHmacImplInto(keyIn, hashLengthImpl, pkt.getHeaderBase(), pkt.getHeaderOffset(), len, out, outOff);
     }
 
     /**
@@ -2626,14 +3284,33 @@ public class ZRtp {
      * @return the HMAC data
      */
     private byte[] computeHmac(byte[] keyIn, int keyLen, byte[] toSign, int len) {
-        KeyParameter key = new KeyParameter(keyIn, 0, keyLen);
-        hmacFunction.init(key);
-        hmacFunction.update(toSign, 0, len);
         byte[] retval = new byte[hashLength];
-        hmacFunction.doFinal(retval, 0);
+        computeHmacInto(keyIn, keyLen, toSign, len, retval, 0);
         return retval;
     }
 
+    /**
+     * Compute a HMAC with negotiated Hash algorithm into a buffer.
+     *
+     * @param keyIn
+     *            The key to use for the HMAC
+     * @param keyLen
+     *            The lenght of key data
+     * @param toSign
+     *            The data to sign
+     * @param len
+     *            the length of the data to sign
+     * @param out
+     *            The buffer that receives the HMAC
+     * @param outOff
+     *            The offset in the buffer
+     */
+    private void computeHmacInto(byte[] keyIn, int keyLen, byte[] toSign, int len, byte[] out, int outOff) {
+        hmacFunction.init(keyIn, 0, keyLen);
+        hmacFunction.update(toSign, 0, len);
+        hmacFunction.doFinal(out, outOff);
+    }
+
     /**
      * Compute a HMAC over some data using HMAC with negotiated Hash algorithm.
      * 
@@ -2648,23 +3325,64 @@ public class ZRtp {
      * @return the HMAC data
      */
     private byte[] computeHmacImpl(byte[] keyIn, int keyLen, byte[] toSign, int len) {
-        KeyParameter key = new KeyParameter(keyIn, 0, keyLen);
-        hmacFunctionImpl.init(key);
-        hmacFunctionImpl.update(toSign, 0, len);
+        return computeHmacImpl(keyIn, keyLen, toSign, 0, len);
+    }
+
+    /**
+     * Compute a HMAC over some data using HMAC with implicit Hash algorithm.
+     *
+     * @param keyIn
+     *            The key to use for the HMAC
+     * @param keyLen
+     *            The lenght of key data
+     * @param toSign
+     *            The buffer that contains the data to sign
+     * @param offset
+     *            the offset of the data inside the buffer
+     * @param len
+     *            the length of the data to sign
+     * @return the HMAC data
+     */
+    private byte[] computeHmacImpl(byte[] keyIn, int keyLen, byte[] toSign, int offset, int len) {
         byte[] retval = new byte[hashLengthImpl];
-        hmacFunctionImpl.doFinal(retval, 0);
+        computeHmacImplInto(keyIn, keyLen, toSign, offset, len, retval, 0);
         return retval;
     }
 
+    /**
+     * Compute a HMAC with implicit Hash algorithm into a buffer.
+     *
+     * @param keyIn
+     *            The key to use for the HMAC
+     * @param keyLen
+     *            The lenght of key data
+     * @param toSign
+     *            The buffer that contains the data to sign
+     * @param offset
+     *            the offset of the data inside the buffer
+     * @param len
+     *            the length of the data to sign
+     * @param out
+     *            The buffer that receives the HMAC
+     * @param outOff
+     *            The offset in the buffer
+     */
+    private void computeHmacImplInto(byte[] keyIn, int keyLen, byte[] toSign, int offset, int len,
+                                     byte[] out, int outOff) {
+        hmacFunctionImpl.init(keyIn, 0, keyLen);
+        hmacFunctionImpl.update(toSign, offset, len);
+        hmacFunctionImpl.doFinal(out, outOff);
+    }
+
     /**
      * Compute my hvi value according to ZRTP specification.
      * 
      * This uses the negotiated Hash algorithm.
      */
     private void computeHvi(ZrtpPacketDHPart dh, ZrtpPacketHello hello) {
-        hashFunction.update(dh.getHeaderBase(), 0, dh.getLength()
+        hashFunction.update(dh.getHeaderBase(), dh.getHeaderOffset(), dh.getLength()
                 * ZrtpPacketBase.ZRTP_WORD_SIZE);
-        hashFunction.update(hello.getHeaderBase(), 0, hello.getLength()
+        hashFunction.update(hello.getHeaderBase(), hello.getHeaderOffset(), hello.getLength()
                 * ZrtpPacketBase.ZRTP_WORD_SIZE);
         hashFunction.doFinal(hvi, 0);
     }
@@ -2746,26 +3464,34 @@ public class ZRtp {
         s0 = KDF(zrtpSession, ZrtpConstants.zrtpMsk, KDFcontext, hashLength * 8);
         computeSRTPKeys();
         Arrays.fill(s0, (byte) 0);
+        hmacFunction.clearKey();
     }
 
     /*
      * The ZRTP KDF function as per ZRT specification 4.5.1
      */
     private byte[] KDF(byte[] ki, byte[] label, byte[] context, int L) {
-        KeyParameter key = new KeyParameter(ki, 0, hashLength);
-        hmacFunction.init(key);
+        byte[] retval = new byte[hashLength];
+        KDFInto(ki, label, context, L, retval, 0);
+        return retval;
+    }
 
-        byte[] counter = ZrtpUtils.int32ToArray(1);
-        hmacFunction.update(counter, 0, 4);
+    /*
+     * The KDF function, writes the result into a buffer. Successive calls
+     * with the same key ki reuse the keyed HMAC.
+     */
+    private void KDFInto(byte[] ki, byte[] label, byte[] context, int L, byte[] out, int outOff) {
+        hmacFunction.init(ki, 0, hashLength);
+
+        ZrtpUtils.int32ToArrayInPlace(1, kdfInt, 0);
+        hmacFunction.update(kdfInt, 0, 4);
         hmacFunction.update(label, 0, label.length); // the label includes the 0
                                                      // byte separator
         hmacFunction.update(context, 0, context.length);
-        byte[] length = ZrtpUtils.int32ToArray(L);
-        hmacFunction.update(length, 0, 4);
+        ZrtpUtils.int32ToArrayInPlace(L, kdfInt, 0);
+        hmacFunction.update(kdfInt, 0, 4);
 
-        byte[] retval = new byte[hashLength];
-        hmacFunction.doFinal(retval, 0);
-        return retval;
+        hmacFunction.doFinal(out, outOff);
     }
 
     private void computeSRTPKeys() {
@@ -2963,6 +3689,7 @@ public class ZRtp {
 
         computeSRTPKeys();
         Arrays.fill(s0, (byte) 0);
+        hmacFunction.clearKey();
     }
 
     private void generateKeysResponder(ZrtpPacketDHPart dhPart) {
@@ -3071,6 +3798,7 @@ public class ZRtp {
 
         computeSRTPKeys();
         Arrays.fill(s0, (byte) 0);
+        hmacFunction.clearKey();
     }
 
     private boolean checkPubKey(BigInteger pvr, ZrtpConstants.SupportedPubKeys dhtype) {
@@ -19,8 +19,14 @@
 
 package gnu.java.zrtp;
 
+import gnu.java.zrtp.packets.HelloTemplate;
+import gnu.java.zrtp.packets.NegotiationCache;
+import gnu.java.zrtp.utils.ZrtpEntropyHarvester;
+import gnu.java.zrtp.zidfile.ZidCache;
+
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.Executor;
 
 
 public class ZrtpConfigure {
@@ -38,18 +44,19 @@ public class ZrtpConfigure {
         }
 
         int addAlgo(T algo) {
-            if (algos.size() >= maxNoOfAlgos) {
+            if (helloTemplate != null || algos.size() >= maxNoOfAlgos) {
                 return 0;
             }
             if (algos.contains(algo)) {
                 return maxNoOfAlgos - algos.size();
             }
             algos.add(algo);
+            algoGeneration++;
             return maxNoOfAlgos - algos.size();
         }
 
         int addAlgoAt(int index, T algo) {
-            if (algos.size() >= maxNoOfAlgos) {
+            if (helloTemplate != null || algos.size() >= maxNoOfAlgos) {
                 return 0;
             }
             if (index >= maxNoOfAlgos) {
@@ -59,11 +66,14 @@ public class ZrtpConfigure {
                 return maxNoOfAlgos - algos.size();
             }
             algos.add(index, algo);
+            algoGeneration++;
             return maxNoOfAlgos - algos.size();
         }
 
         int removeAlgo(T algo) {
-            algos.remove(algo);
+            if (helloTemplate == null && algos.remove(algo)) {
+                algoGeneration++;
+            }
             return maxNoOfAlgos - algos.size();
         }
 
@@ -76,7 +86,11 @@ public class ZrtpConfigure {
         }
         
         void clear() {
+            if (helloTemplate != null) {
+                return;
+            }
             algos.clear();
+            algoGeneration++;
         }
         
         boolean containsAlgo(T algo) {
@@ -106,6 +120,31 @@ public class ZrtpConfigure {
 
     private int policy = STANDARD;
 
+    private ZidCache zidCache = null;
+
+    private ZrtpKeyPairPool keyPairPool = null;
+
+    private ZrtpTimerService timerService = null;
+
+    private ZrtpEventLoop eventLoop = null;
+
+    private Executor cryptoExecutor = null;
+
+    private NegotiationCache negotiationCache = null;
+
+    private ZrtpEntropyHarvester entropyHarvester = null;
+
+    /*
+     * Incremented on each change of the algorithm lists, lets users of the
+     * configuration detect that cached negotiation results are stale.
+     */
+    private int algoGeneration = 0;
+
+    /*
+     * Set by freeze(), the algorithm lists don't change afterwards
+     */
+    private HelloTemplate helloTemplate = null;
+
     /**
      * Convenience function that sets a pre-defined standard configuration.
      *
@@ -282,6 +321,244 @@ public class ZrtpConfigure {
         return enableParanoidMode;
     }
 
+    /**
+     * Set the ZID cache that ZRtp sessions shall use.
+     *
+     * If the application does not set a ZID cache then ZRtp uses the
+     * ZidFile singleton.
+     *
+     * @param cache
+     *    The ZID cache, null selects the ZidFile singleton.
+     */
+    @SuppressWarnings("unused")
+    public void setZidCache(ZidCache cache) {
+        zidCache = cache;
+    }
+
+    /**
+     * Get the ZID cache that ZRtp sessions shall use.
+     *
+     * @return
+     *    The configured ZID cache or null if ZRtp shall use the ZidFile
+     *    singleton.
+     */
+    @SuppressWarnings("unused")
+    public ZidCache getZidCache() {
+        return zidCache;
+    }
+
+    /**
+     * Set the pool of precomputed DH and ECDH key pairs.
+     *
+     * If a pool is set ZRtp takes the key pairs from the pool instead of
+     * generating them while it prepares the Commit or DHPart1 packet.
+     *
+     * @param pool
+     *    The key pair pool, null to generate key pairs directly.
+     */
+    @SuppressWarnings("unused")
+    public void setKeyPairPool(ZrtpKeyPairPool pool) {
+        keyPairPool = pool;
+    }
+
+    /**
+     * Get the pool of precomputed DH and ECDH key pairs.
+     *
+     * @return
+     *    The key pair pool or null if ZRtp generates key pairs directly.
+     */
+    @SuppressWarnings("unused")
+    public ZrtpKeyPairPool getKeyPairPool() {
+        return keyPairPool;
+    }
+
+    /**
+     * Set the timer service for the ZRTP protocol timers.
+     *
+     * If a timer service is set ZRtp arms and cancels its timers with the
+     * timer service instead of the ZrtpCallback timer methods. Many ZRtp
+     * sessions can share one timer service, see ZrtpTimerService.getInstance().
+     * If the session has no event loop the timer service processes the
+     * timeouts on its delivery threads, not on the timer thread.
+     *
+     * @param service
+     *    The timer service, null to use the host callback.
+     */
+    @SuppressWarnings("unused")
+    public void setTimerService(ZrtpTimerService service) {
+        timerService = service;
+    }
+
+    /**
+     * Get the timer service for the ZRTP protocol timers.
+     *
+     * @return
+     *    The timer service or null if ZRtp uses the host callback.
+     */
+    @SuppressWarnings("unused")
+    public ZrtpTimerService getTimerService() {
+        return timerService;
+    }
+
+    /**
+     * Set the event loop that runs the ZRTP state engine.
+     *
+     * If an event loop is set ZRtp posts packets, timeouts and control
+     * events to the event loop and returns immediately. The event loop
+     * processes the events of a session in order. Many ZRtp sessions can
+     * share one event loop, see ZrtpEventLoop.getInstance().
+     *
+     * @param loop
+     *    The event loop, null to run the state engine on the calling thread.
+     */
+    @SuppressWarnings("unused")
+    public void setEventLoop(ZrtpEventLoop loop) {
+        eventLoop = loop;
+    }
+
+    /**
+     * Get the event loop that runs the ZRTP state engine.
+     *
+     * @return
+     *    The event loop or null if ZRtp runs the state engine on the calling
+     *    thread.
+     */
+    @SuppressWarnings("unused")
+    public ZrtpEventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    /**
+     * Set the executor for the expensive DH computations.
+     *
+     * If an executor is set ZRtp generates its key pair and computes the
+     * DH shared secret with this executor. The state engine continues when
+     * the computation is done, the protocol timers keep running meanwhile.
+     *
+     * @param executor
+     *    The executor, null to compute on the state engine's thread.
+     */
+    @SuppressWarnings("unused")
+    public void setCryptoExecutor(Executor executor) {
+        cryptoExecutor = executor;
+    }
+
+    /**
+     * Get the executor for the expensive DH computations.
+     *
+     * @return
+     *    The executor or null if ZRtp computes on the state engine's thread.
+     */
+    @SuppressWarnings("unused")
+    public Executor getCryptoExecutor() {
+        return cryptoExecutor;
+    }
+
+    /**
+     * Set the cache of algorithm negotiation results.
+     *
+     * If a cache is set ZRtp looks up the algorithms offered in the peer's
+     * Hello in the cache and negotiates only offers that are not in the
+     * cache. Do not share a cache between different configurations.
+     *
+     * @param cache
+     *    The negotiation cache, null to negotiate for each Hello.
+     */
+    @SuppressWarnings("unused")
+    public void setNegotiationCache(NegotiationCache cache) {
+        negotiationCache = cache;
+    }
+
+    /**
+     * Get the cache of algorithm negotiation results.
+     *
+     * @return
+     *    The negotiation cache or null if ZRtp negotiates for each Hello.
+     */
+    @SuppressWarnings("unused")
+    public NegotiationCache getNegotiationCache() {
+        return negotiationCache;
+    }
+
+    /**
+     * Set the entropy harvester.
+     *
+     * If a harvester is set ZRtp records the arrival time of each received
+     * ZRTP packet with the harvester. Many ZRtp sessions can share one
+     * harvester, see ZrtpEntropyHarvester.install().
+     *
+     * @param harvester
+     *    The entropy harvester, null to not record packet timings.
+     */
+    @SuppressWarnings("unused")
+    public void setEntropyHarvester(ZrtpEntropyHarvester harvester) {
+        entropyHarvester = harvester;
+    }
+
+    /**
+     * Get the entropy harvester.
+     *
+     * @return
+     *    The entropy harvester or null if ZRtp does not record packet timings.
+     */
+    @SuppressWarnings("unused")
+    public ZrtpEntropyHarvester getEntropyHarvester() {
+        return entropyHarvester;
+    }
+
+    /**
+     * Freeze the algorithm configuration.
+     *
+     * Serializes the Hello packet for the configured algorithms once. All
+     * ZRtp sessions that use this configuration copy this Hello template
+     * instead of building their Hello packets from the algorithm lists.
+     * After this call the configuration ignores changes of the algorithm
+     * lists: the add methods return 0, the remove methods don't remove
+     * algorithms and clear() does nothing.
+     *
+     * Freeze the configuration before the sessions use it.
+     */
+    @SuppressWarnings("unused")
+    public void freeze() {
+        if (helloTemplate == null) {
+            helloTemplate = new HelloTemplate(this);
+        }
+    }
+
+    /**
+     * Check if the configuration is frozen.
+     *
+     * @return
+     *    True if freeze() was called.
+     */
+    @SuppressWarnings("unused")
+    public boolean isFrozen() {
+        return helloTemplate != null;
+    }
+
+    /**
+     * Get the Hello template of a frozen configuration.
+     *
+     * @return
+     *    The Hello template or null if the configuration is not frozen.
+     */
+    public HelloTemplate getHelloTemplate() {
+        return helloTemplate;
+    }
+
+    /**
+     * Get the modification count of the algorithm lists.
+     *
+     * The count changes each time an algorithm is added or removed. Caches
+     * of negotiation results use it to detect a changed configuration.
+     *
+     * @return
+     *    The modification count.
+     */
+    public int getAlgoGeneration() {
+        return algoGeneration;
+    }
+
     /*
      * Hash configuration functions
      */
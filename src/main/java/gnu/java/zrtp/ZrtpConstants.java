@@ -30,11 +30,13 @@ import org.bouncycastle.crypto.modes.CFBBlockCipher;
 
 import org.bouncycastle.crypto.AsymmetricCipherKeyPairGenerator;
 import org.bouncycastle.crypto.BasicAgreement;
+import org.bouncycastle.crypto.KeyGenerationParameters;
 import org.bouncycastle.crypto.agreement.ECDHBasicAgreement;
 import org.bouncycastle.crypto.params.*;
 import org.bouncycastle.crypto.agreement.DHBasicAgreement;
 import org.bouncycastle.crypto.generators.DHBasicKeyPairGenerator;
 import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.generators.X25519KeyPairGenerator;
 import org.bouncycastle.math.ec.ECCurve;
 
 import java.math.BigInteger;
@@ -286,24 +288,38 @@ public class ZrtpConstants {
         }
     }
     public enum SupportedSymCiphers {
-        AES3(aes3, 32, AES_256, new BufferedBlockCipher(new CFBBlockCipher(new AESEngine(), 128)), SupportedSymAlgos.AES),
-        AES1(aes1, 16, AES_128, new BufferedBlockCipher(new CFBBlockCipher(new AESEngine(), 128)), SupportedSymAlgos.AES), 
-        TWO3(two3, 32, TWO_256, new BufferedBlockCipher(new CFBBlockCipher(new TwofishEngine(), 128)), SupportedSymAlgos.TwoFish),
-        TWO1(two1, 16, TWO_128, new BufferedBlockCipher(new CFBBlockCipher(new TwofishEngine(), 128)), SupportedSymAlgos.TwoFish);
+        AES3(aes3, 32, AES_256, SupportedSymAlgos.AES),
+        AES1(aes1, 16, AES_128, SupportedSymAlgos.AES), 
+        TWO3(two3, 32, TWO_256, SupportedSymAlgos.TwoFish),
+        TWO1(two1, 16, TWO_128, SupportedSymAlgos.TwoFish);
 
         final public byte[] name;
         final public int keyLength;
         final public String readable;
-        final public BufferedBlockCipher cipher;
         final public SupportedSymAlgos algo;
 
-        SupportedSymCiphers(byte[] nm, int keyLen, String ra, BufferedBlockCipher ci, SupportedSymAlgos al) {
+        SupportedSymCiphers(byte[] nm, int keyLen, String ra, SupportedSymAlgos al) {
             name = nm;
             keyLength = keyLen;
             readable = ra;
-            cipher = ci;
             algo = al;
         }
+
+        /**
+         * Create a new CFB cipher for this algorithm.
+         *
+         * ZRtp uses this cipher to encrypt and decrypt Confirm and SASRelay
+         * packets. Each session uses its own cipher instance.
+         *
+         * @return
+         *    A new, not initialized cipher.
+         */
+        public BufferedBlockCipher newCipher() {
+            if (algo == SupportedSymAlgos.TwoFish) {
+                return new BufferedBlockCipher(new CFBBlockCipher(new TwofishEngine(), 128));
+            }
+            return new BufferedBlockCipher(new CFBBlockCipher(new AESEngine(), 128));
+        }
     }
 
     public enum SupportedSymAlgos {
@@ -321,9 +337,7 @@ public class ZrtpConstants {
         EC38(ec38, 96, new ECKeyGenerationParameters(new ECDomainParameters(x9Ec38.getCurve(),
                 x9Ec38.getG(), x9Ec38.getN(), x9Ec38.getH(),
                 x9Ec38.getSeed()), ZrtpSecureRandom.getInstance())),
-        E255(e255, 32, new ECKeyGenerationParameters(new ECDomainParameters(curve25519.getCurve(),
-                curve25519.getG(), curve25519.getN(), curve25519.getH(),
-                curve25519.getSeed()), ZrtpSecureRandom.getInstance())),
+        E255(e255, 32, new X25519KeyGenerationParameters(ZrtpSecureRandom.getInstance())),
 
         DH2K(dh2k, 256, new DHKeyGenerationParameters(ZrtpSecureRandom.getInstance(),
                 specDh2k)),
@@ -333,53 +347,89 @@ public class ZrtpConstants {
 
 
         public byte[] name;
-        final public AsymmetricCipherKeyPairGenerator keyPairGen;
         final public int pubKeySize;
         final public DHParameters specDh;
         final public ECCurve curve;
-        final public BasicAgreement dhContext;
+        final private KeyGenerationParameters keyGenParams;
 
         SupportedPubKeys(byte[] nm) {
             name = nm;
             pubKeySize = 0;
-            keyPairGen = null;
+            keyGenParams = null;
             specDh = null;
-            dhContext = null;
             curve = null;
         }
         
         SupportedPubKeys(byte[] nm, int size, ECKeyGenerationParameters ecdh) {
             name = nm;
             pubKeySize = size;
-            if (ecdh != null) {
-                keyPairGen = new ECKeyPairGenerator();
-                keyPairGen.init(ecdh);
-                curve = ecdh.getDomainParameters().getCurve();
-                dhContext = new ECDHBasicAgreement();
-            }
-            else {
-                curve = null;
-                keyPairGen = null;
-                dhContext = null;
-            }
+            keyGenParams = ecdh;
+            curve = (ecdh != null) ? ecdh.getDomainParameters().getCurve() : null;
+            specDh = null;
+        }
+
+        SupportedPubKeys(byte[] nm, int size, X25519KeyGenerationParameters x25519) {
+            name = nm;
+            pubKeySize = size;
+            keyGenParams = x25519;
             specDh = null;
+            curve = null;
         }
 
         SupportedPubKeys(byte[] nm, int size, DHKeyGenerationParameters dh) {
             name = nm;
             pubKeySize = size;
-            if (dh != null) {
-                keyPairGen = new DHBasicKeyPairGenerator();
-                keyPairGen.init(dh);
-                specDh = dh.getParameters();
-                dhContext = new DHBasicAgreement();
+            keyGenParams = dh;
+            specDh = (dh != null) ? dh.getParameters() : null;
+            curve = null;
+        }
+
+        /**
+         * Create a new key pair generator for this public key algorithm.
+         *
+         * Each caller gets its own generator, thus several threads can
+         * generate key pairs at the same time.
+         *
+         * @return
+         *    A new initialized key pair generator or null if this algorithm
+         *    has no key pairs (MULT).
+         */
+        public AsymmetricCipherKeyPairGenerator newKeyPairGenerator() {
+            AsymmetricCipherKeyPairGenerator gen;
+            if (keyGenParams instanceof ECKeyGenerationParameters) {
+                gen = new ECKeyPairGenerator();
+            }
+            else if (keyGenParams instanceof DHKeyGenerationParameters) {
+                gen = new DHBasicKeyPairGenerator();
+            }
+            else if (keyGenParams instanceof X25519KeyGenerationParameters) {
+                gen = new X25519KeyPairGenerator();
             }
             else {
-                keyPairGen = null;
-                specDh = null;
-                dhContext = null;
+                return null;
             }
-            curve = null;
+            gen.init(keyGenParams);
+            return gen;
+        }
+
+        /**
+         * Create a new key agreement for this public key algorithm.
+         *
+         * Each ZRtp session uses its own agreement, thus sessions can
+         * compute their shared secrets at the same time.
+         *
+         * @return
+         *    A new key agreement or null if this algorithm has no key
+         *    agreement (MULT) or uses the X25519 functions (E255).
+         */
+        public BasicAgreement newAgreement() {
+            if (keyGenParams instanceof ECKeyGenerationParameters) {
+                return new ECDHBasicAgreement();
+            }
+            if (keyGenParams instanceof DHKeyGenerationParameters) {
+                return new DHBasicAgreement();
+            }
+            return null;
         }
     }
 
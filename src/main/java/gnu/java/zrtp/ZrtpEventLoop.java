@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Event loop that runs the ZRTP state engines of many sessions.
+ *
+ * Without an event loop ZRtp runs the state engine on the thread that
+ * delivers a packet or a timeout. This thread then also performs the DH
+ * computation and the ZID cache I/O of the handshake. If the configuration
+ * sets an event loop, see ZrtpConfigure.setEventLoop(), ZRtp posts its
+ * events to a mailbox and returns immediately. A small pool of threads
+ * drains the mailboxes of all sessions.
+ *
+ * The event loop processes the events of one session in the order ZRtp
+ * posted them and never runs the same session on two threads at the same
+ * time. To share the threads fairly a session gives up its thread after
+ * a few events if other sessions wait.
+ *
+ * The number of ZRTP packets a mailbox holds is bounded, the mailbox drops
+ * further packets until the state engine catches up. The peer retransmits
+ * lost packets, thus dropping them is safe. The mailbox never drops timer
+ * and control events. If the executor rejects a mailbox, for example after
+ * shutdown(), the thread that posts the event processes the timer and
+ * control events and the mailbox drops the packets.
+ *
+ * If the state engine throws an exception while it processes an event the
+ * exception cannot reach the thread that posted the event. The state
+ * engine then reports a severe protocol error to the host, returns to
+ * state Initial and the event loop passes the exception to the thread's
+ * uncaught exception handler. The mailbox keeps processing events.
+ *
+ * Instead of the own thread pool the event loop can use any executor,
+ * for example an executor that starts a virtual thread per task. The state
+ * engine and the mailboxes use locks that do not pin virtual threads.
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ *
+ */
+public class ZrtpEventLoop {
+
+    /*
+     * Maximum number of events a session processes before it gives up
+     * its thread
+     */
+    private static final int BATCH = 8;
+
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final int capacity;
+
+    private static ZrtpEventLoop instance = null;
+
+    /**
+     * Create an event loop with one thread per available processor and a
+     * mailbox capacity of 64 packets.
+     */
+    public ZrtpEventLoop() {
+        this(Runtime.getRuntime().availableProcessors(), 64);
+    }
+
+    /**
+     * Create an event loop.
+     *
+     * @param threads
+     *    number of threads that run the state engines
+     * @param capacity
+     *    maximum number of ZRTP packets a session's mailbox holds
+     */
+    public ZrtpEventLoop(int threads, int capacity) {
+        if (threads < 1) {
+            threads = 1;
+        }
+        this.capacity = (capacity < 1) ? 1 : capacity;
+
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ZRTP event loop " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        // The queue holds at most one entry per session
+        ownExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory);
+        executor = ownExecutor;
+    }
+
+    /**
+     * Create an event loop that runs the state engines with an executor.
+     *
+     * @param executor
+     *    the executor that runs the state engines
+     * @param capacity
+     *    maximum number of ZRTP packets a session's mailbox holds
+     */
+    public ZrtpEventLoop(Executor executor, int capacity) {
+        this.capacity = (capacity < 1) ? 1 : capacity;
+        this.executor = executor;
+        ownExecutor = null;
+    }
+
+    /**
+     * Get the shared event loop instance.
+     *
+     * @return
+     *    The shared event loop, created on first use.
+     */
+    public synchronized static ZrtpEventLoop getInstance() {
+        if (instance == null) {
+            instance = new ZrtpEventLoop();
+        }
+        return instance;
+    }
+
+    /**
+     * Stop the event loop threads.
+     *
+     * Afterwards the thread that posts an event processes the timer and
+     * control events, the event loop discards ZRTP packets. An executor set
+     * by the application is not shut down.
+     */
+    public void shutdown() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Create the mailbox for a session's state engine.
+     *
+     * @param engine
+     *    the state engine that processes the events
+     * @return
+     *    the new mailbox
+     */
+    Mailbox newMailbox(ZrtpStateClass engine) {
+        return new Mailbox(engine);
+    }
+
+    /**
+     * The event queue of one session.
+     */
+    final class Mailbox implements Runnable {
+        private final ZrtpStateClass engine;
+        private final ArrayDeque<ZrtpStateClass.Event> events = new ArrayDeque<ZrtpStateClass.Event>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private int packets = 0;
+        private boolean scheduled = false;
+
+        Mailbox(ZrtpStateClass engine) {
+            this.engine = engine;
+        }
+
+        /**
+         * Post an event to the mailbox.
+         *
+         * @param ev
+         *    the event
+         * @return
+         *    false if the mailbox dropped the event
+         */
+        boolean post(ZrtpStateClass.Event ev) {
+            lock.lock();
+            try {
+                if (ev.getType() == ZrtpStateClass.EventDataType.ZrtpPacket) {
+                    if (packets >= capacity) {
+                        return false;
+                    }
+                    packets++;
+                }
+                events.add(ev);
+                if (scheduled) {
+                    return true;
+                }
+                scheduled = true;
+            } finally {
+                lock.unlock();
+            }
+            return schedule() || ev.getType() != ZrtpStateClass.EventDataType.ZrtpPacket;
+        }
+
+        /*
+         * If the executor rejects the mailbox, for example after shutdown(),
+         * process the timer and control events on the calling thread and
+         * drop the packets.
+         */
+        private boolean schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                runInline();
+                return false;
+            }
+            return true;
+        }
+
+        private void runInline() {
+            while (true) {
+                ZrtpStateClass.Event ev;
+                lock.lock();
+                try {
+                    ev = events.poll();
+                    if (ev == null) {
+                        scheduled = false;
+                        return;
+                    }
+                    if (ev.getType() == ZrtpStateClass.EventDataType.ZrtpPacket) {
+                        packets--;
+                        continue;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    engine.processEvent(ev);
+                } catch (RuntimeException e) {
+                    // an exception must not stall the session's mailbox
+                    failed(e);
+                }
+            }
+        }
+
+        /*
+         * Report an exception of the state engine: the state engine informs
+         * the host that the negotiation failed and the uncaught exception
+         * handler of the thread gets the exception.
+         */
+        private void failed(RuntimeException e) {
+            try {
+                engine.eventFailed();
+            } catch (RuntimeException e1) {
+                // the host's callback failed too, report the first exception
+            }
+            Thread t = Thread.currentThread();
+            Thread.UncaughtExceptionHandler handler = t.getUncaughtExceptionHandler();
+            if (handler != null) {
+                try {
+                    handler.uncaughtException(t, e);
+                } catch (RuntimeException e1) {
+                    // ignore, keep the mailbox running
+                }
+            }
+        }
+
+        public void run() {
+            for (int i = 0; i < BATCH; i++) {
+                ZrtpStateClass.Event ev;
+                lock.lock();
+                try {
+                    ev = events.poll();
+                    if (ev == null) {
+                        scheduled = false;
+                        return;
+                    }
+                    if (ev.getType() == ZrtpStateClass.EventDataType.ZrtpPacket) {
+                        packets--;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    engine.processEvent(ev);
+                } catch (RuntimeException e) {
+                    // an exception must not stall the session's mailbox
+                    failed(e);
+                }
+            }
+            lock.lock();
+            try {
+                if (events.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            // More events, queue behind the other sessions
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPairGenerator;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of precomputed ephemeral DH and ECDH key pairs.
+ *
+ * Generating a key pair, in particular for DH3K and EC38, is the most
+ * expensive step when ZRtp prepares a Commit or DHPart1 packet. The pool
+ * generates key pairs on a background thread and ZRtp takes a key pair from
+ * the pool instead of generating it.
+ *
+ * Each key pair is handed out once only. If the number of key pairs of an
+ * algorithm drops below the low water mark the background thread fills
+ * the pool of this algorithm up to the high water mark. If a pool is empty
+ * getKeyPair() generates the key pair directly.
+ *
+ * To use the pool set it with ZrtpConfigure.setKeyPairPool(). Several
+ * ZrtpConfigure instances may share one pool.
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ *
+ */
+public class ZrtpKeyPairPool {
+
+    private final int lowWater;
+    private final int highWater;
+
+    private final ConcurrentLinkedQueue<AsymmetricCipherKeyPair>[] pools;
+    private final AtomicInteger[] counts;
+
+    private Filler filler = null;
+
+    /**
+     * Create a key pair pool.
+     *
+     * @param low
+     *    The low water mark, refill a pool if it holds less key pairs.
+     * @param high
+     *    The high water mark, maximum number of key pairs per algorithm.
+     * @param algos
+     *    The public key algorithms to pool. MULT has no key pairs and is
+     *    ignored.
+     */
+    public ZrtpKeyPairPool(int low, int high, ZrtpConstants.SupportedPubKeys... algos) {
+        lowWater = low;
+        highWater = (high < 1) ? 1 : high;
+        int num = ZrtpConstants.SupportedPubKeys.values().length;
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedQueue<AsymmetricCipherKeyPair>[] queues =
+                (ConcurrentLinkedQueue<AsymmetricCipherKeyPair>[]) new ConcurrentLinkedQueue<?>[num];
+        pools = queues;
+        counts = new AtomicInteger[num];
+        for (ZrtpConstants.SupportedPubKeys pk : algos) {
+            if (pk == ZrtpConstants.SupportedPubKeys.MULT) {
+                continue;
+            }
+            pools[pk.ordinal()] = new ConcurrentLinkedQueue<>();
+            counts[pk.ordinal()] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Start the background thread that fills the pools.
+     */
+    public synchronized void start() {
+        if (filler == null) {
+            filler = new Filler();
+            filler.setDaemon(true);
+            filler.start();
+        }
+    }
+
+    /**
+     * Stop the background thread and clear the pools.
+     *
+     * The method waits until the background thread finished the key pair
+     * it is generating, thus the thread does not add key pairs after the
+     * pools are cleared and a following start() does not run two threads.
+     */
+    public synchronized void stop() {
+        if (filler != null) {
+            Filler f = filler;
+            filler = null;
+            f.stopRun();
+            try {
+                f.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (int i = 0; i < pools.length; i++) {
+            if (pools[i] != null) {
+                pools[i].clear();
+                counts[i].set(0);
+            }
+        }
+    }
+
+    /**
+     * Get a fresh key pair.
+     *
+     * @param pk
+     *    The public key algorithm
+     * @return
+     *    A key pair that was not handed out before or null if this pool
+     *    does not handle the algorithm.
+     */
+    public AsymmetricCipherKeyPair getKeyPair(ZrtpConstants.SupportedPubKeys pk) {
+        ConcurrentLinkedQueue<AsymmetricCipherKeyPair> pool = pools[pk.ordinal()];
+        if (pool == null) {
+            return null;
+        }
+        AsymmetricCipherKeyPair kp = pool.poll();
+        int remaining = (kp != null) ? counts[pk.ordinal()].decrementAndGet() : 0;
+        if (remaining < lowWater) {
+            Filler f = filler;
+            if (f != null) {
+                f.wakeUp();
+            }
+        }
+        if (kp == null) {
+            kp = pk.newKeyPairGenerator().generateKeyPair();
+        }
+        return kp;
+    }
+
+    /**
+     * Get the number of key pairs available for an algorithm.
+     *
+     * @param pk
+     *    The public key algorithm
+     * @return
+     *    Number of key pairs in the pool
+     */
+    public int available(ZrtpConstants.SupportedPubKeys pk) {
+        AtomicInteger count = counts[pk.ordinal()];
+        return (count == null) ? 0 : count.get();
+    }
+
+    /**
+     * Background thread that fills the pools up to the high water mark.
+     */
+    private class Filler extends Thread {
+
+        private boolean refill = true;
+        private boolean stop = false;
+        private final Object sync = new Object();
+        private final AsymmetricCipherKeyPairGenerator[] generators =
+                new AsymmetricCipherKeyPairGenerator[pools.length];
+
+        Filler() {
+            super("ZRTP key pair pool");
+        }
+
+        void wakeUp() {
+            synchronized (sync) {
+                refill = true;
+                sync.notifyAll();
+            }
+        }
+
+        void stopRun() {
+            synchronized (sync) {
+                stop = true;
+                sync.notifyAll();
+            }
+        }
+
+        private boolean isStopped() {
+            synchronized (sync) {
+                return stop;
+            }
+        }
+
+        public void run() {
+            while (true) {
+                synchronized (sync) {
+                    while (!refill && !stop) {
+                        try {
+                            sync.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (stop) {
+                        return;
+                    }
+                    refill = false;
+                }
+                for (ZrtpConstants.SupportedPubKeys pk : ZrtpConstants.SupportedPubKeys.values()) {
+                    int idx = pk.ordinal();
+                    if (pools[idx] == null) {
+                        continue;
+                    }
+                    if (generators[idx] == null) {
+                        generators[idx] = pk.newKeyPairGenerator();
+                    }
+                    while (counts[idx].get() < highWater && !isStopped()) {
+                        pools[idx].add(generators[idx].generateKeyPair());
+                        counts[idx].incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+}
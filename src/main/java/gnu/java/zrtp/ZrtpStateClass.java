@@ -36,6 +36,7 @@ import gnu.java.zrtp.packets.ZrtpPacketRelayAck;
 import gnu.java.zrtp.packets.ZrtpPacketSASRelay;
 
 import java.util.EnumSet;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -55,6 +56,27 @@ public class ZrtpStateClass {
     
     private ZRtp parent;
 
+    /*
+     * Serializes the events, a lock instead of a monitor does not pin a
+     * virtual thread while the state engine waits for I/O.
+     */
+    private final ReentrantLock eventLock = new ReentrantLock();
+
+    /*
+     * The event, the error code and the packet views the state engine
+     * reuses while it processes events, thus a received packet does not
+     * allocate objects. Only use them while holding the event lock.
+     */
+    private final Event currentEvent = new Event(null, null);
+    private final ZrtpCodes.ZrtpErrorCodes[] errorCode = new ZrtpCodes.ZrtpErrorCodes[1];
+    private ZrtpPacketError errorPacket;
+    private ZrtpPacketPing pingPacket;
+    private ZrtpPacketSASRelay sasRelayPacket;
+    private ZrtpPacketHello helloPacket;
+    private ZrtpPacketCommit commitPacket;
+    private ZrtpPacketDHPart dhPartPacket;
+    private ZrtpPacketConfirm confirmPacket;
+
     /*
      * The event to process
      */
@@ -132,16 +154,24 @@ public class ZrtpStateClass {
         ZrtpClose,
         ZrtpPacket,
         Timer,
-        ErrorPkt
+        ErrorPkt,
+        CryptoDone,
+        ServiceTimer
     }
 
     protected class Event {
         private  EventDataType type;
         private byte[] packet;
+        private int offset;
 
         public Event(EventDataType evt, byte[] pckt) {
+            this(evt, pckt, 0);
+        }
+
+        public Event(EventDataType evt, byte[] pckt, int off) {
             type = evt;
             packet = pckt;
+            offset = off;
         }
 
         /**
@@ -151,6 +181,13 @@ public class ZrtpStateClass {
             return packet;
         }
 
+        /**
+         * @return the offset of the ZRTP message inside the packet
+         */
+        protected int getOffset() {
+            return offset;
+        }
+
         /**
          * @return the type
          */
@@ -230,7 +267,116 @@ public class ZrtpStateClass {
         return res;
     }
 
-    protected synchronized void processEvent(Event ev) {
+    protected void processEvent(Event ev) {
+        eventLock.lock();
+        try {
+            processEventLocked(ev);
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    /**
+     * Process an event without creating an Event object.
+     *
+     * The state engine uses its own event object for the event. It does
+     * not keep a reference to the packet after this method returns.
+     *
+     * @param type the event type
+     * @param packet the received packet or null
+     * @param offset offset of the ZRTP message inside the packet
+     */
+    protected void processEvent(EventDataType type, byte[] packet, int offset) {
+        eventLock.lock();
+        try {
+            // A callback may re-enter the state engine, don't overwrite the
+            // event that is in process
+            if (eventLock.getHoldCount() > 1) {
+                processEventLocked(new Event(type, packet, offset));
+                return;
+            }
+            currentEvent.type = type;
+            currentEvent.packet = packet;
+            currentEvent.offset = offset;
+            try {
+                processEventLocked(currentEvent);
+            } finally {
+                currentEvent.packet = null;
+            }
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    /*
+     * Get the reusable views of the received packets.
+     */
+    private ZrtpPacketError errorView(byte[] pkt) {
+        return (errorPacket == null) ? (errorPacket = new ZrtpPacketError(pkt, event.offset)) : errorPacket.wrap(pkt, event.offset);
+    }
+
+    private ZrtpPacketPing pingView(byte[] pkt) {
+        return (pingPacket == null) ? (pingPacket = new ZrtpPacketPing(pkt, event.offset)) : pingPacket.wrap(pkt, event.offset);
+    }
+
+    private ZrtpPacketSASRelay sasRelayView(byte[] pkt) {
+        return (sasRelayPacket == null) ? (sasRelayPacket = new ZrtpPacketSASRelay(pkt, event.offset)) : sasRelayPacket.wrap(pkt, event.offset);
+    }
+
+    private ZrtpPacketHello helloView(byte[] pkt) {
+        return (helloPacket == null) ? (helloPacket = new ZrtpPacketHello(pkt, event.offset)) : helloPacket.wrap(pkt, event.offset);
+    }
+
+    private ZrtpPacketCommit commitView(byte[] pkt) {
+        return (commitPacket == null) ? (commitPacket = new ZrtpPacketCommit(pkt, event.offset)) : commitPacket.wrap(pkt, event.offset);
+    }
+
+    private ZrtpPacketDHPart dhPartView(byte[] pkt) {
+        return (dhPartPacket == null) ? (dhPartPacket = new ZrtpPacketDHPart(pkt, event.offset)) : dhPartPacket.wrap(pkt, event.offset);
+    }
+
+    private ZrtpPacketConfirm confirmView(byte[] pkt) {
+        return (confirmPacket == null) ? (confirmPacket = new ZrtpPacketConfirm(pkt, event.offset)) : confirmPacket.wrap(pkt, event.offset);
+    }
+
+    /*
+     * Release the handshake views and let ZRtp release its handshake data.
+     * If all is true also release the other views, the state engine
+     * allocates them again on demand.
+     */
+    private void releaseHandshake(boolean all) {
+        helloPacket = null;
+        commitPacket = null;
+        dhPartPacket = null;
+        confirmPacket = null;
+        if (all) {
+            errorPacket = null;
+            pingPacket = null;
+            sasRelayPacket = null;
+        }
+        parent.releaseHandshakeData(all);
+    }
+
+    /**
+     * Release the memory a secure session does not need anymore.
+     *
+     * @return true if the state engine is in secure state and released
+     *         the data, false otherwise.
+     */
+    protected boolean compact() {
+        eventLock.lock();
+        try {
+            if (inState != ZrtpStates.SecureState) {
+                return false;
+            }
+            releaseHandshake(true);
+            return true;
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    private void processEventLocked(Event ev) {
 
         char first, middle, last;
         byte[] pkt;
@@ -240,11 +386,11 @@ public class ZrtpStateClass {
         if (event.type == EventDataType.ZrtpPacket) {
             pkt = event.packet;
 
-            first = (char) pkt[MESSAGE_OFFSET];
+            first = (char) pkt[event.offset + MESSAGE_OFFSET];
             first = Character.toLowerCase(first);
-            middle = (char) pkt[MESSAGE_OFFSET + 4];
+            middle = (char) pkt[event.offset + MESSAGE_OFFSET + 4];
             middle = Character.toLowerCase(middle);
-            last = (char) pkt[MESSAGE_OFFSET + 7];
+            last = (char) pkt[event.offset + MESSAGE_OFFSET + 7];
             last = Character.toLowerCase(last);
 
             // Check if this is an Error packet.
@@ -258,20 +404,19 @@ public class ZrtpStateClass {
                  * for further processing.
                  */
                 cancelTimer();
-                ZrtpPacketError epkt = new ZrtpPacketError(pkt);
+                ZrtpPacketError epkt = errorView(pkt);
                 ZrtpPacketErrorAck eapkt = parent.prepareErrorAck(epkt);
                 parent.sendPacketZRTP(eapkt);
                 event.type = EventDataType.ErrorPkt;
             // Check for Ping packet
             } else if (first == 'p' && middle == ' ' && last == ' ') {
-                ZrtpPacketPing ppkt = new ZrtpPacketPing(pkt);
+                ZrtpPacketPing ppkt = pingView(pkt);
                 ZrtpPacketPingAck ppktAck = parent.preparePingAck(ppkt);
                 if (ppktAck != null)
                     parent.sendPacketZRTP(ppktAck);
                 return;
             } else if (first == 's' && last == 'y') {
-                ZrtpCodes.ZrtpErrorCodes[] errorCode = new ZrtpCodes.ZrtpErrorCodes[1];
-                ZrtpPacketSASRelay srly = new ZrtpPacketSASRelay(pkt);
+                ZrtpPacketSASRelay srly = sasRelayView(pkt);
                 ZrtpPacketRelayAck rapkt = parent.prepareRelayAck(srly, errorCode);
                 parent.sendPacketZRTP(rapkt);
                 return;
@@ -284,7 +429,31 @@ public class ZrtpStateClass {
         else if (event.type == EventDataType.ZrtpClose) {
             cancelTimer();
         }
+        /*
+         * Timeout of the timer service. Drop it if the state engine re-armed
+         * or canceled the timer after it expired, otherwise handle it as a
+         * normal timer event.
+         */
+        else if (event.type == EventDataType.ServiceTimer) {
+            if (!parent.isTimerExpired()) {
+                return;
+            }
+            event.type = EventDataType.Timer;
+        }
+        /*
+         * Asynchronous DH computation done. Only the states that started
+         * the computation handle it, drop a late result in other states.
+         */
+        else if (event.type == EventDataType.CryptoDone) {
+            if (inState != ZrtpStates.CommitSent && inState != ZrtpStates.WaitDHPart2) {
+                return;
+            }
+        }
         dispatchEvent();
+        // Forget a pending DH computation if the state engine left the state
+        if (inState != ZrtpStates.CommitSent && inState != ZrtpStates.WaitDHPart2) {
+            parent.cancelCryptoJob();
+        }
     }
 
     protected void stopZrtpStates() {
@@ -428,7 +597,6 @@ public class ZrtpStateClass {
 
         char first, last;
         byte[] pkt;
-        ZrtpCodes.ZrtpErrorCodes[] errorCode = new ZrtpCodes.ZrtpErrorCodes[1];
 
         /*
          * First switch according the general event type, then 
@@ -438,9 +606,9 @@ public class ZrtpStateClass {
         case ZrtpPacket:
             pkt = event.packet;
 
-            first = (char) pkt[MESSAGE_OFFSET];
+            first = (char) pkt[event.offset + MESSAGE_OFFSET];
             first = Character.toLowerCase(first);
-            last = (char) pkt[MESSAGE_OFFSET + 7];
+            last = (char) pkt[event.offset + MESSAGE_OFFSET + 7];
             last = Character.toLowerCase(last);
             /*
              * HelloAck: 
@@ -469,7 +637,7 @@ public class ZrtpStateClass {
             if (first == 'h' && last == ' ') {
                 // Use peer's Hello packet to create my commit packet, store it
                 // for possible later usage in state AckSent
-                ZrtpPacketHello hpkt = new ZrtpPacketHello(pkt);
+                ZrtpPacketHello hpkt = helloView(pkt);
                 cancelTimer();
 
                 /*
@@ -608,15 +776,14 @@ public class ZrtpStateClass {
     protected void evAckDetected() {
         char first, last;
         byte[] pkt;
-        ZrtpCodes.ZrtpErrorCodes[] errorCode = new ZrtpCodes.ZrtpErrorCodes[1];
 
         switch (event.type) {
         case ZrtpPacket:
             pkt = event.packet;
 
-            first = (char) pkt[MESSAGE_OFFSET];
+            first = (char) pkt[event.offset + MESSAGE_OFFSET];
             first = Character.toLowerCase(first);
-            last = (char) pkt[MESSAGE_OFFSET + 7];
+            last = (char) pkt[event.offset + MESSAGE_OFFSET + 7];
             last = Character.toLowerCase(last);
  
             /*
@@ -631,7 +798,7 @@ public class ZrtpStateClass {
                 // Parse Hello packet and build an own Commit packet even if the
                 // Commit is not send to the peer. We need to do this to check the
                 // Hello packet and prepare the shared secret stuff.
-                ZrtpPacketHello hpkt = new ZrtpPacketHello(pkt);
+                ZrtpPacketHello hpkt = helloView(pkt);
                 ZrtpPacketCommit commit = parent.prepareCommit(hpkt, errorCode);
 
                 // Something went wrong during processing of the Hello packet, for
@@ -662,7 +829,7 @@ public class ZrtpStateClass {
 
             if (first == 'h' && last == ' ') {
                 // Parse peer's packet data into a Hello packet
-                ZrtpPacketHello hpkt = new ZrtpPacketHello(pkt);
+                ZrtpPacketHello hpkt = helloView(pkt);
                 ZrtpPacketCommit commit = parent.prepareCommit(hpkt, errorCode);
                 // Something went wrong during processing of the Hello packet  
                 if (commit == null) {
@@ -731,7 +898,6 @@ public class ZrtpStateClass {
 
         char first, last;
         byte[] pkt;
-        ZrtpCodes.ZrtpErrorCodes[] errorCode = new ZrtpCodes.ZrtpErrorCodes[1];
 
         /*
          * First check the general event type, then discrimnate
@@ -742,9 +908,9 @@ public class ZrtpStateClass {
         case ZrtpPacket:
             pkt = event.packet;
 
-            first = (char) pkt[MESSAGE_OFFSET];
+            first = (char) pkt[event.offset + MESSAGE_OFFSET];
             first = Character.toLowerCase(first);
-            last = (char) pkt[MESSAGE_OFFSET + 7];
+            last = (char) pkt[event.offset + MESSAGE_OFFSET + 7];
             last = Character.toLowerCase(last);
 
             /*
@@ -806,7 +972,7 @@ public class ZrtpStateClass {
              */
             if (first == 'c') {
                 cancelTimer();
-                ZrtpPacketCommit cpkt = new ZrtpPacketCommit(pkt);
+                ZrtpPacketCommit cpkt = commitView(pkt);
 
                 if (!multiStream) {
                     ZrtpPacketDHPart dhPart1 = parent.prepareDHPart1(cpkt, errorCode);
@@ -893,7 +1059,6 @@ public class ZrtpStateClass {
     protected void evWaitCommit() {
         char first;
         byte[] pkt;
-        ZrtpCodes.ZrtpErrorCodes[] errorCode = new ZrtpCodes.ZrtpErrorCodes[1];
 
         /*
          * First check the general event type, then discrimnate the real event.
@@ -903,7 +1068,7 @@ public class ZrtpStateClass {
         case ZrtpPacket:
             pkt = event.packet;
 
-            first = (char) pkt[MESSAGE_OFFSET];
+            first = (char) pkt[event.offset + MESSAGE_OFFSET];
             first = Character.toLowerCase(first);
 
             
@@ -926,7 +1091,7 @@ public class ZrtpStateClass {
              * - don't start timer, we are responder
              */
             if (first == 'c') {
-                ZrtpPacketCommit cpkt = new ZrtpPacketCommit(pkt);
+                ZrtpPacketCommit cpkt = commitView(pkt);
                 
                 if (!multiStream) {
                     ZrtpPacketDHPart dhPart1 = parent.prepareDHPart1(cpkt,
@@ -997,7 +1162,6 @@ public class ZrtpStateClass {
     protected void evCommitSent() {
         char first, last;
         byte[] pkt;
-        ZrtpCodes.ZrtpErrorCodes[] errorCode = new ZrtpCodes.ZrtpErrorCodes[1];
 
         /*
          * First check the general event type, then discrimnate the real event.
@@ -1007,9 +1171,9 @@ public class ZrtpStateClass {
         case ZrtpPacket:
             pkt = event.packet;
 
-            first = (char) pkt[MESSAGE_OFFSET];
+            first = (char) pkt[event.offset + MESSAGE_OFFSET];
             first = Character.toLowerCase(first);
-            last = (char) pkt[MESSAGE_OFFSET + 7];
+            last = (char) pkt[event.offset + MESSAGE_OFFSET + 7];
             last = Character.toLowerCase(last);
 
             /*
@@ -1036,7 +1200,11 @@ public class ZrtpStateClass {
              *   - switch to state WaitDHPart2, implies Responder path
              */
             if (first == 'c' && last == ' ') {
-                ZrtpPacketCommit zpCo = new ZrtpPacketCommit(pkt);
+                // Peer already answered with DHPart1, no Commit clash
+                if (parent.isCryptoPending()) {
+                    return;
+                }
+                ZrtpPacketCommit zpCo = commitView(pkt);
 
                 if (!parent.verifyH2(zpCo)) {
                     return;
@@ -1098,32 +1266,27 @@ public class ZrtpStateClass {
              * - start timer to resend DHPart2 if necessary, we are Initiator
              */
             if (first == 'd') {
-                ZrtpPacketDHPart dpkt = new ZrtpPacketDHPart(pkt);
-                ZrtpPacketDHPart dhPart2 = parent.prepareDHPart2(dpkt, errorCode);
-
-                // Something went wrong during processing of the DHPart1 packet
-                if (dhPart2 == null) {
-                    if (errorCode[0] != ZrtpCodes.ZrtpErrorCodes.IgnorePacket) {
-                        sendErrorPacket(errorCode[0]);
-                    }
+                // Still computing the DH secret of the first DHPart1, ignore repeated ones
+                if (parent.isCryptoPending()) {
                     return;
                 }
-                cancelTimer();
-                sentPacket = dhPart2;
-                inState = ZrtpStates.WaitConfirm1;
+                ZrtpPacketDHPart dpkt = dhPartView(pkt);
 
-                if (!parent.sendPacketZRTP(sentPacket)) {
-                    sendFailed();       // returns to state Initial
+                // Compute DH asynchronously, the Commit timer keeps running
+                // until the CryptoDone event arrives
+                if (parent.isCryptoAsync()) {
+                    if (!parent.prepareDHPart2Async(dpkt, errorCode)
+                            && errorCode[0] != ZrtpCodes.ZrtpErrorCodes.IgnorePacket) {
+                        sendErrorPacket(errorCode[0]);
+                    }
                     return;
                 }
-                if (startTimer(t2) <= 0) {
-                    timerFailed(ZrtpCodes.SevereCodes.SevereNoTimer);       // returns to state Initial
-                }
+                sendDHPart2(parent.prepareDHPart2(dpkt, errorCode), errorCode);
             }
             
             if (multiStream && (first == 'c' && last == '1')) {
                 cancelTimer();
-                ZrtpPacketConfirm cpkt = new ZrtpPacketConfirm(pkt);
+                ZrtpPacketConfirm cpkt = confirmView(pkt);
 
                 ZrtpPacketConfirm confirm = parent.prepareConfirm2MultiStream(cpkt, errorCode);
 
@@ -1162,6 +1325,11 @@ public class ZrtpStateClass {
             }
             break;
 
+        // Asynchronous DH computation for DHPart1 done, send DHPart2
+        case CryptoDone:
+            sendDHPart2(parent.completeDHPart2(errorCode), errorCode);
+            break;
+
         default:  // unknown Event type for this state (covers Error and ZrtpClose)
             if (event.type != EventDataType.ZrtpClose) {
                 parent.zrtpNegotiationFailed(ZrtpCodes.MessageSeverity.Severe,
@@ -1191,7 +1359,6 @@ public class ZrtpStateClass {
 
         char first;
         byte[] pkt;
-        ZrtpCodes.ZrtpErrorCodes[] errorCode = new ZrtpCodes.ZrtpErrorCodes[1];
 
         /*
          * First check the general event type, then discrimnate the real event.
@@ -1201,7 +1368,7 @@ public class ZrtpStateClass {
         case ZrtpPacket:
             pkt = event.packet;
 
-            first = (char) pkt[MESSAGE_OFFSET];
+            first = (char) pkt[event.offset + MESSAGE_OFFSET];
             first = Character.toLowerCase(first);
 
             /*
@@ -1222,22 +1389,27 @@ public class ZrtpStateClass {
              * - No timer, we are responder
              */
             if (first == 'd') {
-                ZrtpPacketDHPart dpkt = new ZrtpPacketDHPart(pkt);
-                ZrtpPacketConfirm confirm = parent.prepareConfirm1(dpkt, errorCode);
+                // Still computing the DH secret of the first DHPart2, ignore repeated ones
+                if (parent.isCryptoPending()) {
+                    return;
+                }
+                ZrtpPacketDHPart dpkt = dhPartView(pkt);
 
-                if (confirm == null) {
-                    if (errorCode[0] != ZrtpCodes.ZrtpErrorCodes.IgnorePacket) {
+                if (parent.isCryptoAsync()) {
+                    if (!parent.prepareConfirm1Async(dpkt, errorCode)
+                            && errorCode[0] != ZrtpCodes.ZrtpErrorCodes.IgnorePacket) {
                         sendErrorPacket(errorCode[0]);
                     }
                     return;
                 }
-                inState = ZrtpStates.WaitConfirm2;
-                sentPacket = confirm;
-                if (!parent.sendPacketZRTP(sentPacket)) {
-                    sendFailed();       // returns to state Initial
-                }
+                sendConfirm1(parent.prepareConfirm1(dpkt, errorCode), errorCode);
             }
             break;
+
+        // Asynchronous DH computation for DHPart2 done, send Confirm1
+        case CryptoDone:
+            sendConfirm1(parent.completeConfirm1(errorCode), errorCode);
+            break;
             
         default:        // unknown Event type for this state (covers Error and
                         // ZrtpClose)
@@ -1250,6 +1422,50 @@ public class ZrtpStateClass {
         }
    }
 
+    /*
+     * Send the DHPart2 packet prepared for the peer's DHPart1 and switch to
+     * WaitConfirm1, start timer to resend DHPart2 if necessary, we are
+     * Initiator.
+     */
+    private void sendDHPart2(ZrtpPacketDHPart dhPart2, ZrtpCodes.ZrtpErrorCodes[] errorCode) {
+        // Something went wrong during processing of the DHPart1 packet
+        if (dhPart2 == null) {
+            if (errorCode[0] != ZrtpCodes.ZrtpErrorCodes.IgnorePacket) {
+                sendErrorPacket(errorCode[0]);
+            }
+            return;
+        }
+        cancelTimer();
+        sentPacket = dhPart2;
+        inState = ZrtpStates.WaitConfirm1;
+
+        if (!parent.sendPacketZRTP(sentPacket)) {
+            sendFailed();       // returns to state Initial
+            return;
+        }
+        if (startTimer(t2) <= 0) {
+            timerFailed(ZrtpCodes.SevereCodes.SevereNoTimer);       // returns to state Initial
+        }
+    }
+
+    /*
+     * Send the Confirm1 packet prepared for the peer's DHPart2 and switch to
+     * WaitConfirm2. No timer, we are responder.
+     */
+    private void sendConfirm1(ZrtpPacketConfirm confirm, ZrtpCodes.ZrtpErrorCodes[] errorCode) {
+        if (confirm == null) {
+            if (errorCode[0] != ZrtpCodes.ZrtpErrorCodes.IgnorePacket) {
+                sendErrorPacket(errorCode[0]);
+            }
+            return;
+        }
+        inState = ZrtpStates.WaitConfirm2;
+        sentPacket = confirm;
+        if (!parent.sendPacketZRTP(sentPacket)) {
+            sendFailed();       // returns to state Initial
+        }
+    }
+
     /*
      * WaitConirm1 state.
      *
@@ -1269,7 +1485,6 @@ public class ZrtpStateClass {
     protected void evWaitConfirm1() {
         char first, last;
         byte[] pkt;
-        ZrtpCodes.ZrtpErrorCodes[] errorCode = new ZrtpCodes.ZrtpErrorCodes[1];
 
         /*
          * First check the general event type, then discrimnate the real event.
@@ -1279,9 +1494,9 @@ public class ZrtpStateClass {
         case ZrtpPacket:
             pkt = event.packet;
 
-            first = (char) pkt[MESSAGE_OFFSET];
+            first = (char) pkt[event.offset + MESSAGE_OFFSET];
             first = Character.toLowerCase(first);
-            last = (char) pkt[MESSAGE_OFFSET + 7];
+            last = (char) pkt[event.offset + MESSAGE_OFFSET + 7];
             last = Character.toLowerCase(last);
 
             /*
@@ -1293,7 +1508,7 @@ public class ZrtpStateClass {
              */
             if (first == 'c' && last == '1') {
                 cancelTimer();
-                ZrtpPacketConfirm cpkt= new ZrtpPacketConfirm(pkt);
+                ZrtpPacketConfirm cpkt= confirmView(pkt);
 
                 ZrtpPacketConfirm confirm = parent.prepareConfirm2(cpkt, errorCode);
 
@@ -1366,7 +1581,6 @@ public class ZrtpStateClass {
     protected void evWaitConfirm2() {
         char first, last;
         byte[] pkt;
-        ZrtpCodes.ZrtpErrorCodes[] errorCode = new ZrtpCodes.ZrtpErrorCodes[1];
 
         /*
          * First check the general event type, then discrimnate the real event.
@@ -1376,9 +1590,9 @@ public class ZrtpStateClass {
         case ZrtpPacket:
             pkt = event.packet;
 
-            first = (char) pkt[MESSAGE_OFFSET];
+            first = (char) pkt[event.offset + MESSAGE_OFFSET];
             first = Character.toLowerCase(first);
-            last = (char) pkt[MESSAGE_OFFSET + 7];
+            last = (char) pkt[event.offset + MESSAGE_OFFSET + 7];
             last = Character.toLowerCase(last);
 
             /*
@@ -1399,7 +1613,7 @@ public class ZrtpStateClass {
              * - switch to SecureState
              */
             if (first == 'c' && last == '2') {
-                ZrtpPacketConfirm cpkt= new ZrtpPacketConfirm(pkt);
+                ZrtpPacketConfirm cpkt= confirmView(pkt);
                 ZrtpPacketConf2Ack confack = parent.prepareConf2Ack(cpkt, errorCode);
 
                 // Something went wrong during processing of the confirm2 packet
@@ -1423,6 +1637,7 @@ public class ZrtpStateClass {
                     return;
                 }
                 inState = ZrtpStates.SecureState;
+                releaseHandshake(false);
                 parent.sendInfo(ZrtpCodes.MessageSeverity.Info, EnumSet.of(ZrtpCodes.InfoCodes.InfoSecureStateOn));
             }
             break;
@@ -1468,7 +1683,7 @@ public class ZrtpStateClass {
         case ZrtpPacket:
             pkt = event.packet;
 
-            first = (char) pkt[MESSAGE_OFFSET];
+            first = (char) pkt[event.offset + MESSAGE_OFFSET];
             first = Character.toLowerCase(first);
 
             /*
@@ -1487,6 +1702,7 @@ public class ZrtpStateClass {
                     return;
                 }
                 inState = ZrtpStates.SecureState;
+                releaseHandshake(false);
                 parent.sendInfo(ZrtpCodes.MessageSeverity.Info, EnumSet
                         .of(ZrtpCodes.InfoCodes.InfoSecureStateOn));
             }
@@ -1537,9 +1753,9 @@ public class ZrtpStateClass {
         case ZrtpPacket:
             pkt = event.packet;
 
-            first = (char) pkt[MESSAGE_OFFSET];
+            first = (char) pkt[event.offset + MESSAGE_OFFSET];
             first = Character.toLowerCase(first);
-            last = (char) pkt[MESSAGE_OFFSET + 7];
+            last = (char) pkt[event.offset + MESSAGE_OFFSET + 7];
             last = Character.toLowerCase(last);
 
             /*
@@ -1620,9 +1836,9 @@ public class ZrtpStateClass {
         case ZrtpPacket:
             pkt = event.packet;
 
-            first = (char) pkt[MESSAGE_OFFSET];
+            first = (char) pkt[event.offset + MESSAGE_OFFSET];
             first = Character.toLowerCase(first);
-            last = (char) pkt[MESSAGE_OFFSET + 7];
+            last = (char) pkt[event.offset + MESSAGE_OFFSET + 7];
             last = Character.toLowerCase(last);
             /*
              * SAS relayAck:
@@ -1677,9 +1893,9 @@ public class ZrtpStateClass {
         case ZrtpPacket:
             pkt = event.packet;
 
-            first = (char) pkt[MESSAGE_OFFSET];
+            first = (char) pkt[event.offset + MESSAGE_OFFSET];
             first = Character.toLowerCase(first);
-            last = (char) pkt[MESSAGE_OFFSET + 7];
+            last = (char) pkt[event.offset + MESSAGE_OFFSET + 7];
             last = Character.toLowerCase(last);
             /*
              * ErrorAck:
@@ -1766,6 +1982,26 @@ public class ZrtpStateClass {
                 EnumSet.of(ZrtpCodes.SevereCodes.SevereCannotSend));
     }
 
+    /**
+     * Set status if processing an event threw an exception.
+     *
+     * The event loop calls this method because the exception cannot reach
+     * the thread that posted the event. This functions stops the timer,
+     * clears data, sets the state to Initial and informs the host.
+     */
+    protected void eventFailed() {
+        eventLock.lock();
+        try {
+            cancelTimer();
+            sentPacket = null;
+            inState = ZrtpStates.Initial;
+            parent.zrtpNegotiationFailed(ZrtpCodes.MessageSeverity.Severe,
+                    EnumSet.of(ZrtpCodes.SevereCodes.SevereProtocolError));
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
     /**
      * Set status if a timer problems occure.
      * 
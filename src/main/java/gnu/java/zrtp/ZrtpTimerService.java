@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Timer service for the ZRTP protocol timers T1 and T2.
+ *
+ * The timer service is a hashed timing wheel driven by one thread. Any
+ * number of ZRtp sessions can share one timer service. Each session has
+ * at most one active timer, arming and canceling a timer takes constant
+ * time. When a timer expires the service forwards a timeout event to
+ * the session's state engine. The state engine drops the event if it
+ * re-armed or canceled the timer meanwhile.
+ *
+ * The timer thread never runs a state engine itself. If the session uses
+ * an event loop the timer thread posts the timeout to the session's
+ * mailbox, otherwise a delivery executor runs the state engine. Thus a
+ * session that waits for its event lock, for example during a DH
+ * computation, does not delay the timers of the other sessions. The
+ * default delivery executor uses a fixed number of threads and a bounded
+ * queue. If the delivery executor rejects a timeout the service retries
+ * it on the next tick.
+ *
+ * To use the timer service set it with ZrtpConfigure.setTimerService().
+ * ZRtp then uses the timer service instead of the timer methods of
+ * ZrtpCallback.
+ *
+ * The resolution of the timers is the tick duration, ZRTP timers start
+ * at 50ms, thus the default tick of 10ms is precise enough.
+ *
+ * The timer service uses a ReentrantLock instead of a monitor and thus
+ * never pins a virtual thread that arms or cancels a timer. A thread
+ * factory may create the timer thread as a virtual thread.
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ *
+ */
+public class ZrtpTimerService {
+
+    /**
+     * A timer armed by a ZRtp session.
+     */
+    static final class Timeout {
+        final ZRtp session;
+        final boolean hasMailbox;   // the session posts events to a mailbox
+        long deadline;              // in ticks
+        Timeout next, prev;
+        boolean armed;
+        int generation;             // incremented on each arm and cancel
+        int expiredGeneration;
+
+        Timeout(ZRtp s, boolean mailbox) {
+            session = s;
+            hasMailbox = mailbox;
+        }
+    }
+
+    /*
+     * Bucket list heads, each bucket is a doubly linked list of timers.
+     */
+    private final Timeout[] wheel;
+    private final int mask;
+    private final long tickDuration;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition wakeup = lock.newCondition();
+    private final ThreadFactory threadFactory;
+    private final Executor delivery;
+
+    /*
+     * Queue size of the default delivery executor
+     */
+    private static final int DELIVERY_QUEUE = 4096;
+    private long currentTick = 0;
+    private int numArmed = 0;
+    private long startTime;
+
+    private Worker worker = null;
+
+    private static ZrtpTimerService instance = null;
+
+    /**
+     * Create a timer service with a tick of 10ms and 512 buckets.
+     */
+    public ZrtpTimerService() {
+        this(10, 512);
+    }
+
+    /**
+     * Create a timer service.
+     *
+     * @param tick
+     *    the tick duration in milliseconds
+     * @param buckets
+     *    number of buckets of the timing wheel, rounded up to a power of 2
+     */
+    public ZrtpTimerService(int tick, int buckets) {
+        this(tick, buckets, null);
+    }
+
+    /**
+     * Create a timer service.
+     *
+     * @param tick
+     *    the tick duration in milliseconds
+     * @param buckets
+     *    number of buckets of the timing wheel, rounded up to a power of 2
+     * @param factory
+     *    creates the timer thread, null to create a daemon platform thread
+     */
+    public ZrtpTimerService(int tick, int buckets, ThreadFactory factory) {
+        this(tick, buckets, factory, null);
+    }
+
+    /**
+     * Create a timer service.
+     *
+     * @param tick
+     *    the tick duration in milliseconds
+     * @param buckets
+     *    number of buckets of the timing wheel, rounded up to a power of 2
+     * @param factory
+     *    creates the timer thread, null to create a daemon platform thread
+     * @param executor
+     *    runs the state engines of sessions without event loop when their
+     *    timer expires, null to use a pool with one thread per available
+     *    processor, created with the thread factory, and a queue of 4096
+     *    timeouts
+     */
+    public ZrtpTimerService(int tick, int buckets, ThreadFactory factory, Executor executor) {
+        threadFactory = factory;
+        if (executor == null) {
+            ThreadFactory deliveryFactory = factory;
+            if (deliveryFactory == null) {
+                deliveryFactory = new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = Executors.defaultThreadFactory().newThread(r);
+                        t.setName("ZRTP timer delivery");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                };
+            }
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(DELIVERY_QUEUE), deliveryFactory);
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        delivery = executor;
+        int size = 1;
+        while (size < buckets) {
+            size <<= 1;
+        }
+        wheel = new Timeout[size];
+        mask = size - 1;
+        tickDuration = (tick < 1) ? 1 : tick;
+    }
+
+    /**
+     * Get the shared timer service instance.
+     *
+     * @return
+     *    The shared timer service, created on first use.
+     */
+    public synchronized static ZrtpTimerService getInstance() {
+        if (instance == null) {
+            instance = new ZrtpTimerService();
+        }
+        return instance;
+    }
+
+    /**
+     * Stop the timer thread.
+     *
+     * The service drops all armed timers. A later arm restarts the
+     * timer thread.
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            if (worker == null) {
+                return;
+            }
+            worker = null;
+            for (int i = 0; i < wheel.length; i++) {
+                Timeout t = wheel[i];
+                while (t != null) {
+                    t.armed = false;
+                    t = t.next;
+                }
+                wheel[i] = null;
+            }
+            numArmed = 0;
+            wakeup.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Arm or re-arm the timer of a session.
+     *
+     * @param t
+     *    the session's timer
+     * @param delay
+     *    time in milliseconds until the timer expires
+     */
+    void arm(Timeout t, int delay) {
+        lock.lock();
+        try {
+            if (t.armed) {
+                unlink(t);
+            }
+            t.generation++;
+            if (worker == null) {
+                startWorker();
+            }
+            long ticks = (delay + tickDuration - 1) / tickDuration;
+            // the current bucket is processed already, at least one tick
+            t.deadline = currentTick + ((ticks < 1) ? 1 : ticks);
+            int idx = (int)(t.deadline & mask);
+            t.prev = null;
+            t.next = wheel[idx];
+            if (t.next != null) {
+                t.next.prev = t;
+            }
+            wheel[idx] = t;
+            t.armed = true;
+            if (numArmed++ == 0) {
+                wakeup.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cancel the timer of a session.
+     *
+     * @param t
+     *    the session's timer
+     * @return
+     *    true if the timer was armed
+     */
+    boolean cancel(Timeout t) {
+        lock.lock();
+        try {
+            t.generation++;
+            if (!t.armed) {
+                return false;
+            }
+            unlink(t);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startWorker() {
+        startTime = System.currentTimeMillis();
+        currentTick = 0;
+        worker = new Worker();
+        Thread thread;
+        if (threadFactory != null) {
+            thread = threadFactory.newThread(worker);
+        }
+        else {
+            thread = Executors.defaultThreadFactory().newThread(worker);
+            thread.setName("ZRTP timer service");
+            thread.setDaemon(true);
+        }
+        thread.start();
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        }
+        else {
+            wheel[(int)(t.deadline & mask)] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.next = t.prev = null;
+        t.armed = false;
+        numArmed--;
+    }
+
+    /*
+     * Move all expired timers of the bucket of the current tick to the
+     * expired list.
+     */
+    private void expire(ArrayList<Timeout> expired) {
+        Timeout t = wheel[(int)(currentTick & mask)];
+        while (t != null) {
+            Timeout next = t.next;
+            if (t.deadline <= currentTick) {
+                unlink(t);
+                t.expiredGeneration = t.generation;
+                expired.add(t);
+            }
+            t = next;
+        }
+    }
+
+    /**
+     * Check if an expired timer is still valid.
+     *
+     * The session may have re-armed or canceled the timer after the timer
+     * service removed it from the wheel. The session checks this when it
+     * processes the timeout.
+     *
+     * @param t
+     *    the session's timer
+     * @return
+     *    true if the timer expired and the session did not re-arm or cancel it
+     */
+    boolean isExpired(Timeout t) {
+        lock.lock();
+        try {
+            return !t.armed && t.generation == t.expiredGeneration;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Arm an expired timer for the next tick unless the session re-armed or
+     * canceled it meanwhile.
+     */
+    private void retry(Timeout t) {
+        lock.lock();
+        try {
+            if (!t.armed && t.generation == t.expiredGeneration && worker != null) {
+                arm(t, (int) tickDuration);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final ArrayList<Timeout> expired = new ArrayList<Timeout>();
+
+        public void run() {
+            while (true) {
+                lock.lock();
+                try {
+                    if (worker != this) {
+                        return;
+                    }
+                    if (numArmed == 0) {
+                        // Nothing to do, wait for the next arm and
+                        // restart counting from now
+                        wakeup.await();
+                        startTime = System.currentTimeMillis() - currentTick * tickDuration;
+                        continue;
+                    }
+                    long now = System.currentTimeMillis();
+                    long nextTickTime = startTime + (currentTick + 1) * tickDuration;
+                    if (now < nextTickTime) {
+                        wakeup.await(nextTickTime - now, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+                    currentTick++;
+                    expire(expired);
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+                for (int i = 0; i < expired.size(); i++) {
+                    deliver(expired.get(i));
+                }
+                expired.clear();
+            }
+        }
+
+        /*
+         * Posting to a mailbox returns immediately, otherwise let the
+         * delivery executor run the state engine. If the delivery executor
+         * is busy try again on the next tick.
+         */
+        private void deliver(final Timeout t) {
+            if (t.hasMailbox) {
+                t.session.timerExpired();
+                return;
+            }
+            try {
+                delivery.execute(new Runnable() {
+                    public void run() {
+                        t.session.timerExpired();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                retry(t);
+            }
+        }
+    }
+}
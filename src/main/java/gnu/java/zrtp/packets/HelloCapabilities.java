@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp.packets;
+
+import gnu.java.zrtp.ZrtpConfigure;
+import gnu.java.zrtp.ZrtpConstants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The algorithms a peer offers in its Hello packet.
+ *
+ * The constructor decodes the algorithm slots of a Hello packet once.
+ * Objects of this class are immutable and do not reference the packet
+ * buffer, thus a session can keep them while the packet buffer is reused.
+ *
+ * The sets contain the known algorithms only, the lists keep the peer's
+ * order which the algorithm negotiation requires. The result of the
+ * negotiation with a configuration is memoized until the configuration's
+ * algorithms change.
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ */
+public final class HelloCapabilities {
+
+    // Order of the public key algorithms as defined in RFC 6189, chapter 4.1.2.
+    private static final ZrtpConstants.SupportedPubKeys orderedAlgos[] = {
+        ZrtpConstants.SupportedPubKeys.DH2K,
+        ZrtpConstants.SupportedPubKeys.E255,
+        ZrtpConstants.SupportedPubKeys.EC25,
+        ZrtpConstants.SupportedPubKeys.DH3K,
+        ZrtpConstants.SupportedPubKeys.EC38 };
+
+    private final List<ZrtpConstants.SupportedHashes> hashList;
+    private final List<ZrtpConstants.SupportedSymCiphers> cipherList;
+    private final List<ZrtpConstants.SupportedPubKeys> pubKeyList;
+    private final List<ZrtpConstants.SupportedSASTypes> sasList;
+    private final List<ZrtpConstants.SupportedAuthLengths> authList;
+
+    private final Set<ZrtpConstants.SupportedHashes> hashes;
+    private final Set<ZrtpConstants.SupportedSymCiphers> ciphers;
+    private final Set<ZrtpConstants.SupportedPubKeys> pubKeys;
+    private final Set<ZrtpConstants.SupportedSASTypes> sasTypes;
+    private final Set<ZrtpConstants.SupportedAuthLengths> authLengths;
+
+    private final int pubKeySlots;
+
+    /*
+     * Last negotiation result together with the configuration it belongs to.
+     */
+    private static final class Memo {
+        final ZrtpConfigure config;
+        final int generation;
+        final NegotiatedAlgorithms result;
+
+        Memo(ZrtpConfigure config, int generation, NegotiatedAlgorithms result) {
+            this.config = config;
+            this.generation = generation;
+            this.result = result;
+        }
+    }
+
+    private volatile Memo memo;
+
+    /**
+     * Decode the algorithm slots of a Hello packet.
+     *
+     * @param buffer the buffer that contains the Hello packet
+     * @param oHash offset of the first hash slot in the buffer
+     * @param nHash number of hash slots
+     * @param oCipher offset of the first cipher slot in the buffer
+     * @param nCipher number of cipher slots
+     * @param oAuth offset of the first auth length slot in the buffer
+     * @param nAuth number of auth length slots
+     * @param oPubkey offset of the first public key slot in the buffer
+     * @param nPubkey number of public key slots
+     * @param oSas offset of the first SAS type slot in the buffer
+     * @param nSas number of SAS type slots
+     */
+    HelloCapabilities(byte[] buffer, int oHash, int nHash, int oCipher, int nCipher, int oAuth, int nAuth,
+                      int oPubkey, int nPubkey, int oSas, int nSas) {
+
+        ArrayList<ZrtpConstants.SupportedHashes> hl = new ArrayList<>(nHash);
+        for (int ii = 0; ii < nHash; ii++) {
+            int o = oHash + (ii * ZrtpPacketBase.ZRTP_WORD_SIZE);
+            for (ZrtpConstants.SupportedHashes sh : ZrtpConstants.SupportedHashes.values()) {
+                if (isName(sh.name, buffer, o)) {
+                    hl.add(sh);
+                    break;
+                }
+            }
+        }
+        ArrayList<ZrtpConstants.SupportedSymCiphers> cl = new ArrayList<>(nCipher);
+        for (int ii = 0; ii < nCipher; ii++) {
+            int o = oCipher + (ii * ZrtpPacketBase.ZRTP_WORD_SIZE);
+            for (ZrtpConstants.SupportedSymCiphers sh : ZrtpConstants.SupportedSymCiphers.values()) {
+                if (isName(sh.name, buffer, o)) {
+                    cl.add(sh);
+                    break;
+                }
+            }
+        }
+        ArrayList<ZrtpConstants.SupportedAuthLengths> al = new ArrayList<>(nAuth);
+        for (int ii = 0; ii < nAuth; ii++) {
+            int o = oAuth + (ii * ZrtpPacketBase.ZRTP_WORD_SIZE);
+            for (ZrtpConstants.SupportedAuthLengths sh : ZrtpConstants.SupportedAuthLengths.values()) {
+                if (isName(sh.name, buffer, o)) {
+                    al.add(sh);
+                    break;
+                }
+            }
+        }
+        ArrayList<ZrtpConstants.SupportedPubKeys> pl = new ArrayList<>(nPubkey);
+        for (int ii = 0; ii < nPubkey; ii++) {
+            int o = oPubkey + (ii * ZrtpPacketBase.ZRTP_WORD_SIZE);
+            for (ZrtpConstants.SupportedPubKeys sh : ZrtpConstants.SupportedPubKeys.values()) {
+                if (isName(sh.name, buffer, o)) {
+                    pl.add(sh);
+                    break;
+                }
+            }
+        }
+        ArrayList<ZrtpConstants.SupportedSASTypes> sl = new ArrayList<>(nSas);
+        for (int ii = 0; ii < nSas; ii++) {
+            int o = oSas + (ii * ZrtpPacketBase.ZRTP_WORD_SIZE);
+            for (ZrtpConstants.SupportedSASTypes sh : ZrtpConstants.SupportedSASTypes.values()) {
+                if (isName(sh.name, buffer, o)) {
+                    sl.add(sh);
+                    break;
+                }
+            }
+        }
+        pubKeySlots = nPubkey;
+        hashList = Collections.unmodifiableList(hl);
+        cipherList = Collections.unmodifiableList(cl);
+        authList = Collections.unmodifiableList(al);
+        pubKeyList = Collections.unmodifiableList(pl);
+        sasList = Collections.unmodifiableList(sl);
+
+        EnumSet<ZrtpConstants.SupportedHashes> hs = EnumSet.noneOf(ZrtpConstants.SupportedHashes.class);
+        hs.addAll(hl);
+        hashes = Collections.unmodifiableSet(hs);
+        EnumSet<ZrtpConstants.SupportedSymCiphers> cs = EnumSet.noneOf(ZrtpConstants.SupportedSymCiphers.class);
+        cs.addAll(cl);
+        ciphers = Collections.unmodifiableSet(cs);
+        EnumSet<ZrtpConstants.SupportedAuthLengths> as = EnumSet.noneOf(ZrtpConstants.SupportedAuthLengths.class);
+        as.addAll(al);
+        authLengths = Collections.unmodifiableSet(as);
+        EnumSet<ZrtpConstants.SupportedPubKeys> ps = EnumSet.noneOf(ZrtpConstants.SupportedPubKeys.class);
+        ps.addAll(pl);
+        pubKeys = Collections.unmodifiableSet(ps);
+        EnumSet<ZrtpConstants.SupportedSASTypes> ss = EnumSet.noneOf(ZrtpConstants.SupportedSASTypes.class);
+        ss.addAll(sl);
+        sasTypes = Collections.unmodifiableSet(ss);
+    }
+
+    private static boolean isName(byte[] s, byte[] buffer, int o) {
+        return s[0] == buffer[o] && s[1] == buffer[o + 1] && s[2] == buffer[o + 2] && s[3] == buffer[o + 3];
+    }
+
+    public Set<ZrtpConstants.SupportedHashes> getHashes() {
+        return hashes;
+    }
+
+    public Set<ZrtpConstants.SupportedSymCiphers> getCiphers() {
+        return ciphers;
+    }
+
+    public Set<ZrtpConstants.SupportedPubKeys> getPubKeys() {
+        return pubKeys;
+    }
+
+    public Set<ZrtpConstants.SupportedSASTypes> getSasTypes() {
+        return sasTypes;
+    }
+
+    public Set<ZrtpConstants.SupportedAuthLengths> getAuthLengths() {
+        return authLengths;
+    }
+
+    /**
+     * Get the known hashes in the order the peer offers them.
+     *
+     * @return unmodifiable list of hashes
+     */
+    @SuppressWarnings("unused")
+    public List<ZrtpConstants.SupportedHashes> getHashList() {
+        return hashList;
+    }
+
+    @SuppressWarnings("unused")
+    public List<ZrtpConstants.SupportedSymCiphers> getCipherList() {
+        return cipherList;
+    }
+
+    @SuppressWarnings("unused")
+    public List<ZrtpConstants.SupportedPubKeys> getPubKeyList() {
+        return pubKeyList;
+    }
+
+    @SuppressWarnings("unused")
+    public List<ZrtpConstants.SupportedSASTypes> getSasTypeList() {
+        return sasList;
+    }
+
+    @SuppressWarnings("unused")
+    public List<ZrtpConstants.SupportedAuthLengths> getAuthLengthList() {
+        return authList;
+    }
+
+    /**
+     * Negotiate the algorithms with our configuration.
+     *
+     * The method returns the memoized result if it already negotiated
+     * with this configuration and the configuration's algorithms did not
+     * change since.
+     *
+     * @param config our algorithm configuration
+     * @return the negotiated algorithms
+     */
+    public NegotiatedAlgorithms negotiate(ZrtpConfigure config) {
+        int generation = config.getAlgoGeneration();
+        Memo m = memo;
+        if (m != null && m.config == config && m.generation == generation) {
+            return m.result;
+        }
+        NegotiatedAlgorithms result = computeNegotiation(config);
+        memo = new Memo(config, generation, result);
+        return result;
+    }
+
+    /**
+     * Run the algorithm negotiation without looking at the memoized result.
+     *
+     * Always the best possible (offered) algorithms are used. If the Hello
+     * does not contain algo specifiers or offers only unsupported (optional)
+     * algos then replace these with mandatory algos.
+     *
+     * @param config our algorithm configuration
+     * @return the negotiated algorithms
+     */
+    NegotiatedAlgorithms computeNegotiation(ZrtpConfigure config) {
+        ZrtpConstants.SupportedHashes hash;
+        ZrtpConstants.SupportedSymCiphers cipher = null;
+
+        ZrtpConstants.SupportedPubKeys pubKey = findBestPubkey(config);
+        if (pubKey == null) {
+            pubKey = ZrtpConstants.SupportedPubKeys.DH3K;
+            hash = ZrtpConstants.SupportedHashes.S256;
+        }
+        else if (pubKey == ZrtpConstants.SupportedPubKeys.EC38) {
+            // select a corresponding strong hash and cipher if necessary.
+            hash = getStrongHashOffered();
+            cipher = getStrongCipherOffered();
+        }
+        else {
+            hash = findBestHash(config);
+        }
+        if (cipher == null) {
+            cipher = findBestCipher(config, pubKey);
+        }
+        return new NegotiatedAlgorithms(hash, cipher, pubKey, findBestSASType(config),
+                findBestAuthLen(config), checkMultiStream());
+    }
+
+    /**
+     * Find the best hash, the peer's order has priority.
+     *
+     * @return found matching hash or default SHA 256.
+     */
+    ZrtpConstants.SupportedHashes findBestHash(ZrtpConfigure config) {
+        for (ZrtpConstants.SupportedHashes sh : hashList) {
+            if (sh == ZrtpConstants.SupportedHashes.S256 || config.containsHashAlgo(sh)) {
+                return sh;
+            }
+        }
+        return ZrtpConstants.SupportedHashes.S256;
+    }
+
+    ZrtpConstants.SupportedSymCiphers findBestCipher(ZrtpConfigure config, ZrtpConstants.SupportedPubKeys pk) {
+        if (pk == ZrtpConstants.SupportedPubKeys.DH2K) {
+            return ZrtpConstants.SupportedSymCiphers.AES1;
+        }
+        for (ZrtpConstants.SupportedSymCiphers sh : cipherList) {
+            if (sh == ZrtpConstants.SupportedSymCiphers.AES1 || config.containsCipherAlgo(sh)) {
+                return sh;
+            }
+        }
+        return ZrtpConstants.SupportedSymCiphers.AES1;
+    }
+
+    ZrtpConstants.SupportedSASTypes findBestSASType(ZrtpConfigure config) {
+        for (ZrtpConstants.SupportedSASTypes sh : sasList) {
+            if (sh == ZrtpConstants.SupportedSASTypes.B32 || config.containsSasTypeAlgo(sh)) {
+                return sh;
+            }
+        }
+        return ZrtpConstants.SupportedSASTypes.B32;
+    }
+
+    ZrtpConstants.SupportedAuthLengths findBestAuthLen(ZrtpConfigure config) {
+        for (ZrtpConstants.SupportedAuthLengths sh : authList) {
+            if (sh == ZrtpConstants.SupportedAuthLengths.HS32 || sh == ZrtpConstants.SupportedAuthLengths.HS80
+                    || config.containsAuthLength(sh)) {
+                return sh;
+            }
+        }
+        return ZrtpConstants.SupportedAuthLengths.HS32;
+    }
+
+    /**
+     * Find the best public key algorithm.
+     *
+     * @return the public key algorithm or null if there is no common
+     *         algorithm, the caller then uses the mandatory algorithms.
+     */
+    ZrtpConstants.SupportedPubKeys findBestPubkey(ZrtpConfigure config) {
+        if (pubKeyList.isEmpty()) {
+            return null;
+        }
+        // Build our own intersection list ordered according to our sequence
+        // The list must include real public key algorithms only, so skip
+        // mult-stream mode, preshared and alike.
+        ArrayList<ZrtpConstants.SupportedPubKeys> algosOwnIntersect = new ArrayList<>(pubKeyList.size());
+        for (ZrtpConstants.SupportedPubKeys sh: config.publicKeyAlgos()) {
+            if (sh != ZrtpConstants.SupportedPubKeys.MULT && pubKeys.contains(sh)) {
+                algosOwnIntersect.add(sh);
+            }
+        }
+
+        // Build list of intersectiong algos in peer's order.
+        ArrayList<ZrtpConstants.SupportedPubKeys> algosPeerIntersect = new ArrayList<>(pubKeyList.size());
+        for (ZrtpConstants.SupportedPubKeys sh : pubKeyList) {
+            if (algosOwnIntersect.contains(sh)) {
+                algosPeerIntersect.add(sh);
+            }
+        }
+        if (algosPeerIntersect.size() == 0) {
+            return null;
+        }
+
+        if (algosPeerIntersect.size() > 1 && algosPeerIntersect.get(0) != algosOwnIntersect.get(0)) {
+            // Check which of the top algorithms is first on the list of ordered algorithms
+            int own = orderIndex(algosOwnIntersect.get(0));
+            int peer = orderIndex(algosPeerIntersect.get(0));
+            if (own < peer)             // our algorithm is faster
+                return algosOwnIntersect.get(0);
+            else
+                return algosPeerIntersect.get(0);
+        }
+        return algosPeerIntersect.get(0);
+    }
+
+    private static int orderIndex(ZrtpConstants.SupportedPubKeys pk) {
+        int index = 0;
+        for (ZrtpConstants.SupportedPubKeys sh : orderedAlgos) {
+            if (sh == pk)
+                break;
+            index++;
+        }
+        return index;
+    }
+
+    ZrtpConstants.SupportedHashes getStrongHashOffered() {
+        return hashes.contains(ZrtpConstants.SupportedHashes.S384) ? ZrtpConstants.SupportedHashes.S384 : null;
+    }
+
+    ZrtpConstants.SupportedSymCiphers getStrongCipherOffered() {
+        for (ZrtpConstants.SupportedSymCiphers sh : cipherList) {
+            if (sh == ZrtpConstants.SupportedSymCiphers.AES3 || sh == ZrtpConstants.SupportedSymCiphers.TWO3) {
+                return sh;
+            }
+        }
+        return null;
+    }
+
+    boolean checkMultiStream() {
+        // Multi Stream mode is mandatory, thus if nothing is offered then it is
+        // supported :-)
+        return pubKeySlots == 0 || pubKeys.contains(ZrtpConstants.SupportedPubKeys.MULT);
+    }
+}
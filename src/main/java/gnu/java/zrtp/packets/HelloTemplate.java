@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp.packets;
+
+import gnu.java.zrtp.ZrtpConfigure;
+
+/**
+ * A pre-serialized Hello packet for a frozen configuration.
+ *
+ * The template contains the header and the algorithm slots of a Hello
+ * packet. All sessions that use the configuration share the template.
+ * Each session copies it and sets its version, ZID, H3, client id, flags
+ * and MAC in the copy. Objects of this class are immutable.
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ */
+public final class HelloTemplate {
+
+    private final byte[] data;
+
+    /**
+     * Serialize the Hello packet for a configuration.
+     *
+     * @param config the configuration that defines the algorithm slots
+     */
+    public HelloTemplate(ZrtpConfigure config) {
+        ZrtpPacketHello hello = new ZrtpPacketHello();
+        hello.buildHello(config);
+        data = hello.getHeaderBase();
+    }
+
+    /**
+     * @return a new copy of the template data
+     */
+    byte[] copyData() {
+        return data.clone();
+    }
+
+    /**
+     * @return the length of the Hello packet including the CRC
+     */
+    @SuppressWarnings("unused")
+    public int getLength() {
+        return data.length;
+    }
+}
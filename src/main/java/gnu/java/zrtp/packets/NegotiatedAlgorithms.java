@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp.packets;
+
+import gnu.java.zrtp.ZrtpConstants;
+
+/**
+ * The algorithms negotiated for a peer's Hello and our configuration.
+ *
+ * Objects of this class are immutable. The hash is null if the peer
+ * selects EC38 but does not offer a strong (384 bit) hash.
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ */
+public final class NegotiatedAlgorithms {
+
+    private final ZrtpConstants.SupportedHashes hash;
+    private final ZrtpConstants.SupportedSymCiphers cipher;
+    private final ZrtpConstants.SupportedPubKeys pubKey;
+    private final ZrtpConstants.SupportedSASTypes sasType;
+    private final ZrtpConstants.SupportedAuthLengths authLength;
+    private final boolean multiStream;
+
+    NegotiatedAlgorithms(ZrtpConstants.SupportedHashes hash,
+                         ZrtpConstants.SupportedSymCiphers cipher,
+                         ZrtpConstants.SupportedPubKeys pubKey,
+                         ZrtpConstants.SupportedSASTypes sasType,
+                         ZrtpConstants.SupportedAuthLengths authLength,
+                         boolean multiStream) {
+        this.hash = hash;
+        this.cipher = cipher;
+        this.pubKey = pubKey;
+        this.sasType = sasType;
+        this.authLength = authLength;
+        this.multiStream = multiStream;
+    }
+
+    public ZrtpConstants.SupportedHashes getHash() {
+        return hash;
+    }
+
+    public ZrtpConstants.SupportedSymCiphers getCipher() {
+        return cipher;
+    }
+
+    public ZrtpConstants.SupportedPubKeys getPubKey() {
+        return pubKey;
+    }
+
+    public ZrtpConstants.SupportedSASTypes getSasType() {
+        return sasType;
+    }
+
+    public ZrtpConstants.SupportedAuthLengths getAuthLength() {
+        return authLength;
+    }
+
+    /**
+     * @return true if the peer offers multi-stream mode
+     */
+    public boolean isMultiStream() {
+        return multiStream;
+    }
+}
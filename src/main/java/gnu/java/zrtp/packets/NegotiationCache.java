@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp.packets;
+
+import gnu.java.zrtp.ZrtpConfigure;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded LRU cache of algorithm negotiation results.
+ *
+ * Usually only a few different clients connect to a server, thus only a
+ * few different algorithm offers arrive in the Hello packets. The cache
+ * maps the algorithm slots of a Hello packet (the counters and the
+ * algorithm names in the peer's order) to the negotiated algorithms. If
+ * the cache knows the offer ZRtp does not decode the Hello's algorithms
+ * and does not run the negotiation.
+ *
+ * The results depend on the configuration, thus use one cache per
+ * ZrtpConfigure, see ZrtpConfigure.setNegotiationCache(). The cache drops
+ * all entries if the configuration's algorithms change. Many sessions may
+ * use the cache concurrently.
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ */
+public class NegotiationCache {
+
+    /*
+     * The algorithm slots of a Hello packet, compared by content.
+     */
+    private static final class SlotKey {
+        private final byte[] slots;
+        private final int hash;
+
+        SlotKey(byte[] slots) {
+            this.slots = slots;
+            hash = Arrays.hashCode(slots);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SlotKey && Arrays.equals(slots, ((SlotKey) o).slots);
+        }
+    }
+
+    private final LinkedHashMap<SlotKey, NegotiatedAlgorithms> entries;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private ZrtpConfigure config = null;
+    private int generation;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Create a negotiation cache.
+     *
+     * @param capacity
+     *    The maximum number of cached algorithm offers.
+     */
+    public NegotiationCache(final int capacity) {
+        final int max = (capacity < 1) ? 1 : capacity;
+        entries = new LinkedHashMap<SlotKey, NegotiatedAlgorithms>(max + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SlotKey, NegotiatedAlgorithms> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /**
+     * Get the negotiated algorithms for a peer's Hello.
+     *
+     * @param hello
+     *    The peer's Hello packet.
+     * @param conf
+     *    Our algorithm configuration.
+     * @return
+     *    The negotiated algorithms.
+     */
+    public NegotiatedAlgorithms negotiate(ZrtpPacketHello hello, ZrtpConfigure conf) {
+        SlotKey key = new SlotKey(hello.getAlgorithmSlots());
+        int gen = conf.getAlgoGeneration();
+
+        lock.lock();
+        try {
+            if (conf != config || gen != generation) {
+                entries.clear();
+                config = conf;
+                generation = gen;
+            }
+            NegotiatedAlgorithms algos = entries.get(key);
+            if (algos != null) {
+                hits++;
+                return algos;
+            }
+            misses++;
+        } finally {
+            lock.unlock();
+        }
+        // Negotiate outside the lock, concurrent misses for the same offer
+        // compute the same result
+        NegotiatedAlgorithms algos = hello.getCapabilities().negotiate(conf);
+        lock.lock();
+        try {
+            if (conf == config && gen == generation) {
+                entries.put(key, algos);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return algos;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    @SuppressWarnings("unused")
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of cached algorithm offers.
+     */
+    @SuppressWarnings("unused")
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of lookups that found a cached result.
+     */
+    @SuppressWarnings("unused")
+    public long getHits() {
+        lock.lock();
+        try {
+            return hits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of lookups that had to run the negotiation.
+     */
+    @SuppressWarnings("unused")
+    public long getMisses() {
+        lock.lock();
+        try {
+            return misses;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -21,6 +21,8 @@ package gnu.java.zrtp.packets;
 
 import gnu.java.zrtp.utils.ZrtpUtils;
 
+import java.nio.ByteBuffer;
+
 /**
  * This is the base class for all ZRTP packets
  *
@@ -67,6 +69,19 @@ public class ZrtpPacketBase {
     
     protected byte[] packetBuffer = null;
 
+    /*
+     * Offset of the ZRTP message inside packetBuffer. Received packets may
+     * be viewed in place inside a larger (RTP) buffer, all field accessors
+     * add this offset.
+     */
+    protected int packetOffset = 0;
+
+    /*
+     * End of the valid data inside packetBuffer (exclusive), -1 if the
+     * packet may use the whole buffer.
+     */
+    protected int packetLimit = -1;
+
     
     static {
         zrtpId = new byte[2];
@@ -77,11 +92,158 @@ public class ZrtpPacketBase {
     protected ZrtpPacketBase(byte[] pb) {
         packetBuffer = pb;
     }
-    
+
+    protected ZrtpPacketBase(byte[] pb, int offset) {
+        packetBuffer = pb;
+        packetOffset = offset;
+    }
+
+    /**
+     * Get the buffer that holds this packet.
+     *
+     * For received packets the ZRTP message may start at an offset inside
+     * this buffer, use {@link #getHeaderOffset()} to get it.
+     *
+     * @return the packet buffer
+     */
     public final byte[] getHeaderBase() { 
         return (packetBuffer);
     }
 
+    /**
+     * Get the offset of the ZRTP message inside the packet buffer.
+     *
+     * @return offset of the first byte of the ZRTP message
+     */
+    public final int getHeaderOffset() {
+        return packetOffset;
+    }
+
+    /**
+     * Get the packet data as a read-only ByteBuffer.
+     *
+     * The buffer shares the packet data, its position is the start of the
+     * ZRTP message and its limit is the end of the message.
+     *
+     * @return a read-only view of the packet data
+     */
+    @SuppressWarnings("unused")
+    public final ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(packetBuffer, packetOffset, getLength() * ZRTP_WORD_SIZE).asReadOnlyBuffer();
+    }
+
+    /**
+     * Set the buffer and the offset of the ZRTP message inside the buffer.
+     *
+     * @param pb buffer that holds the packet
+     * @param offset offset of the ZRTP message inside the buffer
+     */
+    protected final void setPacketBuffer(byte[] pb, int offset) {
+        packetBuffer = pb;
+        packetOffset = offset;
+        packetLimit = -1;
+    }
+
+    /**
+     * Set the end of the valid data inside the packet buffer.
+     *
+     * @param limit index behind the last valid byte of the packet buffer
+     */
+    protected final void setPacketLimit(int limit) {
+        packetLimit = limit;
+    }
+
+    /**
+     * Check if the ZRTP message fits into the valid data of its buffer.
+     *
+     * The valid data ends at the limit of the ByteBuffer the packet was
+     * wrapped from, otherwise at the end of the packet buffer. The header
+     * must fit and the message length must not exceed the valid data.
+     *
+     * @return true if the message fits, false otherwise
+     */
+    public final boolean isLengthValid() {
+        int end = (packetLimit < 0) ? packetBuffer.length : packetLimit;
+        return isMessageInside(end - packetOffset, packetBuffer, packetOffset);
+    }
+
+    /**
+     * Check if a ZRTP message fits into the available bytes.
+     *
+     * @param available number of bytes available from the start of the message
+     * @param buffer the buffer that holds the message
+     * @param offset offset of the message inside the buffer
+     * @return true if the header fits and the message length does not exceed
+     *         the available bytes
+     */
+    public static boolean isMessageInside(int available, byte[] buffer, int offset) {
+        if (available < ZRTP_HEADER_LENGTH * ZRTP_WORD_SIZE) {
+            return false;
+        }
+        int length = ZrtpUtils.readShort(buffer, offset + LENGTH_OFFSET) & 0xffff;
+        return length * ZRTP_WORD_SIZE <= available;
+    }
+
+    /**
+     * Check if a ZRTP message fits into the remaining bytes of a ByteBuffer.
+     *
+     * @param buffer the buffer, the message starts at its position
+     * @return true if the header fits and the message length does not exceed
+     *         the remaining bytes
+     */
+    protected static boolean isMessageInside(ByteBuffer buffer) {
+        if (buffer.remaining() < ZRTP_HEADER_LENGTH * ZRTP_WORD_SIZE) {
+            return false;
+        }
+        int length = buffer.getShort(buffer.position() + LENGTH_OFFSET) & 0xffff;
+        return length * ZRTP_WORD_SIZE <= buffer.remaining();
+    }
+
+    /**
+     * Get the backing array of a heap ByteBuffer without copying.
+     *
+     * Direct buffers have no accessible array. In this case the remaining
+     * bytes are copied once into a new array because the digest and MAC
+     * implementations work on byte arrays.
+     *
+     * @param buffer the buffer, the packet starts at its position
+     * @return the array that contains the packet
+     */
+    protected static byte[] arrayOf(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return buffer.array();
+        }
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
+    /**
+     * Get the offset of the packet inside the array returned by arrayOf().
+     *
+     * @param buffer the buffer, the packet starts at its position
+     * @return offset of the packet inside the array
+     */
+    protected static int offsetOf(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return buffer.arrayOffset() + buffer.position();
+        }
+        return 0;
+    }
+
+    /**
+     * Get the end of the packet inside the array returned by arrayOf().
+     *
+     * @param buffer the buffer, the packet ends at its limit
+     * @return index behind the last byte of the packet inside the array
+     */
+    protected static int limitOf(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return buffer.arrayOffset() + buffer.limit();
+        }
+        return buffer.remaining();
+    }
+
     /**
      * Check if packet buffer contains the generic ZRTP id field.
      * 
@@ -89,16 +251,16 @@ public class ZrtpPacketBase {
      */
     @SuppressWarnings("unused")
     public final boolean isZrtpPacket() {
-        return packetBuffer[0] == zrtpId[0] && packetBuffer[1] == zrtpId[1];
+        return packetBuffer[packetOffset] == zrtpId[0] && packetBuffer[packetOffset + 1] == zrtpId[1];
     }
     
     public final short getLength() { 
-        return ZrtpUtils.readShort(packetBuffer, LENGTH_OFFSET);
+        return ZrtpUtils.readShort(packetBuffer, packetOffset + LENGTH_OFFSET);
     }
 
     @SuppressWarnings("unused")
     public final String getMessageType() {
-        return new String(packetBuffer, TYPE_OFFSET, TYPE_LENGTH); 
+        return new String(packetBuffer, packetOffset + TYPE_OFFSET, TYPE_LENGTH); 
     }
 
 
@@ -107,7 +269,7 @@ public class ZrtpPacketBase {
      *
      */
     protected final void setZrtpId() {    
-        System.arraycopy(zrtpId, 0, packetBuffer, ID_OFFSET, zrtpId.length);
+        System.arraycopy(zrtpId, 0, packetBuffer, packetOffset + ID_OFFSET, zrtpId.length);
     }
     
     /**
@@ -118,7 +280,7 @@ public class ZrtpPacketBase {
      * @param length The length of the packet in ZRTP words
      */
     protected final void setLength(int length) {
-        ZrtpUtils.short16ToArrayInPlace(length, packetBuffer, LENGTH_OFFSET);
+        ZrtpUtils.short16ToArrayInPlace(length, packetBuffer, packetOffset + LENGTH_OFFSET);
     }
     
     /**
@@ -127,6 +289,6 @@ public class ZrtpPacketBase {
      * @param messageType The message type name.
      */
     public final void setMessageType(byte[] messageType) {
-        System.arraycopy(messageType, 0, packetBuffer, TYPE_OFFSET, 2*ZRTP_WORD_SIZE);
+        System.arraycopy(messageType, 0, packetBuffer, packetOffset + TYPE_OFFSET, 2*ZRTP_WORD_SIZE);
     }
 }
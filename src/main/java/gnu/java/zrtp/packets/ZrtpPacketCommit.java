@@ -22,6 +22,8 @@ package gnu.java.zrtp.packets;
 import gnu.java.zrtp.ZrtpConstants;
 import gnu.java.zrtp.utils.ZrtpUtils;
 
+import java.nio.ByteBuffer;
+
 /**
  * Implement the Commit packet.
  *
@@ -73,7 +75,63 @@ public class ZrtpPacketCommit extends ZrtpPacketBase {
     }
     
     public ZrtpPacketCommit(final byte[] data) {
-        super(data);
+        this(data, 0);
+    }
+
+    /**
+     * Construct a view of a received Commit packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     */
+    public ZrtpPacketCommit(final byte[] data, final int offset) {
+        super(data, offset);
+    }
+
+    /**
+     * Use this object as view of another received Commit packet.
+     *
+     * The state engine reuses one view object per packet type instead of
+     * creating a new object for each received packet.
+     *
+     * @param data the received packet data
+     * @return this object
+     */
+    public ZrtpPacketCommit wrap(final byte[] data) {
+        return wrap(data, 0);
+    }
+
+    /**
+     * Use this object as view of a received Commit packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     * @return this object
+     */
+    public ZrtpPacketCommit wrap(final byte[] data, final int offset) {
+        setPacketBuffer(data, offset);
+        return this;
+    }
+
+    /**
+     * Use this object as view of a received Commit packet in a ByteBuffer.
+     *
+     * The packet starts at the buffer's position and ends at its limit.
+     * Heap buffers are used in place, the content of a direct buffer is
+     * copied.
+     *
+     * @param buffer the buffer that holds the received packet
+     * @return this object or null if the message length exceeds the
+     *         remaining bytes of the buffer
+     */
+    @SuppressWarnings("unused")
+    public ZrtpPacketCommit wrap(final ByteBuffer buffer) {
+        if (!isMessageInside(buffer)) {
+            return null;
+        }
+        wrap(arrayOf(buffer), offsetOf(buffer));
+        setPacketLimit(limitOf(buffer));
+        return this;
     }
  
     public final ZrtpConstants.SupportedHashes getHash() {
@@ -81,10 +139,10 @@ public class ZrtpPacketCommit extends ZrtpPacketBase {
         for (ZrtpConstants.SupportedHashes sh : ZrtpConstants.SupportedHashes
                 .values()) {
             byte[] s = sh.name;
-            if (s[0] == packetBuffer[HASH_OFFSET] && 
-                    s[1] == packetBuffer[HASH_OFFSET + 1]
-                    && s[2] == packetBuffer[HASH_OFFSET + 2]
-                    && s[3] == packetBuffer[HASH_OFFSET + 3]) {
+            if (s[0] == packetBuffer[packetOffset + HASH_OFFSET] && 
+                    s[1] == packetBuffer[packetOffset + HASH_OFFSET + 1]
+                    && s[2] == packetBuffer[packetOffset + HASH_OFFSET + 2]
+                    && s[3] == packetBuffer[packetOffset + HASH_OFFSET + 3]) {
                 return sh;
             }
         }
@@ -96,10 +154,10 @@ public class ZrtpPacketCommit extends ZrtpPacketBase {
         for (ZrtpConstants.SupportedSymCiphers sh : ZrtpConstants.SupportedSymCiphers
                 .values()) {
             byte[] s = sh.name;
-            if (s[0] == packetBuffer[CIPHER_OFFSET] 
-                    && s[1] == packetBuffer[CIPHER_OFFSET + 1]
-                    && s[2] == packetBuffer[CIPHER_OFFSET + 2]
-                    && s[3] == packetBuffer[CIPHER_OFFSET + 3]) {
+            if (s[0] == packetBuffer[packetOffset + CIPHER_OFFSET] 
+                    && s[1] == packetBuffer[packetOffset + CIPHER_OFFSET + 1]
+                    && s[2] == packetBuffer[packetOffset + CIPHER_OFFSET + 2]
+                    && s[3] == packetBuffer[packetOffset + CIPHER_OFFSET + 3]) {
                 return sh;
             }
         }
@@ -111,10 +169,10 @@ public class ZrtpPacketCommit extends ZrtpPacketBase {
         for (ZrtpConstants.SupportedAuthLengths sh : ZrtpConstants.SupportedAuthLengths
                 .values()) {
             byte[] s = sh.name;
-            if (s[0] == packetBuffer[AUTHLENGTHS_OFFSET] && 
-                    s[1] == packetBuffer[AUTHLENGTHS_OFFSET + 1] &&
-                    s[2] == packetBuffer[AUTHLENGTHS_OFFSET + 2] &&
-                    s[3] == packetBuffer[AUTHLENGTHS_OFFSET + 3]) {
+            if (s[0] == packetBuffer[packetOffset + AUTHLENGTHS_OFFSET] && 
+                    s[1] == packetBuffer[packetOffset + AUTHLENGTHS_OFFSET + 1] &&
+                    s[2] == packetBuffer[packetOffset + AUTHLENGTHS_OFFSET + 2] &&
+                    s[3] == packetBuffer[packetOffset + AUTHLENGTHS_OFFSET + 3]) {
                 return sh;
             }
         }
@@ -126,9 +184,9 @@ public class ZrtpPacketCommit extends ZrtpPacketBase {
         for (ZrtpConstants.SupportedPubKeys sh : ZrtpConstants.SupportedPubKeys
                 .values()) {
             byte[] s = sh.name;
-            if (s[0] == packetBuffer[PUBKEY_OFFSET] && s[1] == packetBuffer[PUBKEY_OFFSET + 1]
-                    && s[2] == packetBuffer[PUBKEY_OFFSET + 2]
-                    && s[3] == packetBuffer[PUBKEY_OFFSET + 3]) {
+            if (s[0] == packetBuffer[packetOffset + PUBKEY_OFFSET] && s[1] == packetBuffer[packetOffset + PUBKEY_OFFSET + 1]
+                    && s[2] == packetBuffer[packetOffset + PUBKEY_OFFSET + 2]
+                    && s[3] == packetBuffer[packetOffset + PUBKEY_OFFSET + 3]) {
                 return sh;
             }
         }
@@ -140,9 +198,9 @@ public class ZrtpPacketCommit extends ZrtpPacketBase {
         for (ZrtpConstants.SupportedSASTypes sh : ZrtpConstants.SupportedSASTypes
                 .values()) {
             byte[] s = sh.name;
-            if (s[0] == packetBuffer[SAS_OFFSET] && s[1] == packetBuffer[SAS_OFFSET + 1]
-                    && s[2] == packetBuffer[SAS_OFFSET + 2]
-                    && s[3] == packetBuffer[SAS_OFFSET + 3]) {
+            if (s[0] == packetBuffer[packetOffset + SAS_OFFSET] && s[1] == packetBuffer[packetOffset + SAS_OFFSET + 1]
+                    && s[2] == packetBuffer[packetOffset + SAS_OFFSET + 2]
+                    && s[3] == packetBuffer[packetOffset + SAS_OFFSET + 3]) {
                 return sh;
             }
         }
@@ -150,36 +208,36 @@ public class ZrtpPacketCommit extends ZrtpPacketBase {
     }
 
     public final byte[] getZid() {
-        return ZrtpUtils.readRegion(packetBuffer, ZID_OFFSET, 3*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + ZID_OFFSET, 3*ZRTP_WORD_SIZE);
     }
        
     public final byte[] getHvi() {
-        return ZrtpUtils.readRegion(packetBuffer, HVI_OFFSET, HVI_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + HVI_OFFSET, HVI_SIZE);
     }
         
     public final byte[] getH2() {
-        return ZrtpUtils.readRegion(packetBuffer, HASH_H2_OFFSET, HASH_IMAGE_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + HASH_H2_OFFSET, HASH_IMAGE_SIZE);
     }
        
     public final byte[] getHMAC() {
-        return ZrtpUtils.readRegion(packetBuffer, HMAC_OFFSET, HMAC_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + HMAC_OFFSET, HMAC_SIZE);
     }
 
     @SuppressWarnings("unused")
     public final byte[] getHMACMulti() {
-        return ZrtpUtils.readRegion(packetBuffer, HMAC_OFFSET-4*ZRTP_WORD_SIZE, HMAC_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + HMAC_OFFSET-4*ZRTP_WORD_SIZE, HMAC_SIZE);
     }
 
     public final byte[] getNonce() {
-        return ZrtpUtils.readRegion(packetBuffer, HVI_OFFSET, 4*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + HVI_OFFSET, 4*ZRTP_WORD_SIZE);
     }
     
     public final void setHashType(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, HASH_OFFSET, ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + HASH_OFFSET, ZRTP_WORD_SIZE);
     }
 
     public final void setCipherType(final byte[] data) { 
-        System.arraycopy(data, 0, packetBuffer, CIPHER_OFFSET, ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + CIPHER_OFFSET, ZRTP_WORD_SIZE);
     }
     
     /// Check if packet length makes sense. Smallest Commit packet is 25 words
@@ -188,35 +246,35 @@ public class ZrtpPacketCommit extends ZrtpPacketBase {
     }
 
     public final void setAuthLen(final byte[] data) { 
-        System.arraycopy(data, 0, packetBuffer, AUTHLENGTHS_OFFSET, ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + AUTHLENGTHS_OFFSET, ZRTP_WORD_SIZE);
     }
     
     public final void setPubKeyType(final byte[] data) { 
-        System.arraycopy(data, 0, packetBuffer, PUBKEY_OFFSET, ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + PUBKEY_OFFSET, ZRTP_WORD_SIZE);
     }
     
     public final void setSasType(final byte[] data) { 
-        System.arraycopy(data, 0, packetBuffer, SAS_OFFSET, ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + SAS_OFFSET, ZRTP_WORD_SIZE);
     }
     
     public final void setZid(final byte[] data) { 
-        System.arraycopy(data, 0, packetBuffer, ZID_OFFSET, 3*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + ZID_OFFSET, 3*ZRTP_WORD_SIZE);
     }
     
     public final void setHvi(final byte[] data) { 
-        System.arraycopy(data, 0, packetBuffer, HVI_OFFSET, 8*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + HVI_OFFSET, 8*ZRTP_WORD_SIZE);
     }
     
     public final void setH2(final byte[] data) { 
-        System.arraycopy(data, 0, packetBuffer, HASH_H2_OFFSET, HASH_IMAGE_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + HASH_H2_OFFSET, HASH_IMAGE_SIZE);
     }
     
     public final void setHMAC(final byte[] data) { 
-        System.arraycopy(data, 0, packetBuffer, HMAC_OFFSET, HMAC_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + HMAC_OFFSET, HMAC_SIZE);
     }
     
     public final void setHMACMulti(final byte[] data) { 
-        System.arraycopy(data, 0, packetBuffer, HMAC_OFFSET-4*ZRTP_WORD_SIZE, HMAC_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + HMAC_OFFSET-4*ZRTP_WORD_SIZE, HMAC_SIZE);
     }
     /*
      * Prepare a Commit packet for use in Multi-Stream mode
@@ -227,10 +285,11 @@ public class ZrtpPacketCommit extends ZrtpPacketBase {
      */
     public final void setNonce(final byte[] data) {
         byte[] temp = new byte[COMMIT_LENGTH-4*ZRTP_WORD_SIZE];
-        System.arraycopy(packetBuffer, 0, temp, 0, COMMIT_LENGTH-4*ZRTP_WORD_SIZE);
+        System.arraycopy(packetBuffer, packetOffset, temp, 0, COMMIT_LENGTH-4*ZRTP_WORD_SIZE);
         packetBuffer = temp;
+        packetOffset = 0;
         
-        System.arraycopy(data, 0, packetBuffer, HVI_OFFSET, 4*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + HVI_OFFSET, 4*ZRTP_WORD_SIZE);
         setLength(ZRTP_HEADER_LENGTH + ZRTP_COMMIT_LENGTH - 4);
     }
     
@@ -21,6 +21,8 @@ package gnu.java.zrtp.packets;
 
 import gnu.java.zrtp.utils.ZrtpUtils;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
@@ -75,12 +77,13 @@ public class ZrtpPacketConfirm extends ZrtpPacketBase {
             // allocate new buffer, maybe shorter
             byte[] tmp = new byte[length];
             // copy header data to new place
-            System.arraycopy(packetBuffer, 0, tmp, 0, (ZRTP_HEADER_LENGTH + ZRTP_CONFIRM_FIXED_LENGTH) * ZRTP_WORD_SIZE);
+            System.arraycopy(packetBuffer, packetOffset, tmp, 0, (ZRTP_HEADER_LENGTH + ZRTP_CONFIRM_FIXED_LENGTH) * ZRTP_WORD_SIZE);
             packetBuffer = tmp;
+            packetOffset = 0;
         }
-        packetBuffer[SIG_LENGTH_OFFSET] = (byte)sl;
+        packetBuffer[packetOffset + SIG_LENGTH_OFFSET] = (byte)sl;
         if (sl > 255) {
-            packetBuffer[FILLER_OFFSET+1] = 1;  // set 9th bit if necessary
+            packetBuffer[packetOffset + FILLER_OFFSET+1] = 1;  // set 9th bit if necessary
         }
         setLength((length-CRC_SIZE) / 4);
         setZrtpId();
@@ -88,47 +91,104 @@ public class ZrtpPacketConfirm extends ZrtpPacketBase {
     }
 
     public ZrtpPacketConfirm(final byte[] data) {
-        super(data);
+        this(data, 0);
+    }
+
+    /**
+     * Construct a view of a received Confirm packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     */
+    public ZrtpPacketConfirm(final byte[] data, final int offset) {
+        super(data, offset);
+    }
+
+    /**
+     * Use this object as view of another received Confirm packet.
+     *
+     * The state engine reuses one view object per packet type instead of
+     * creating a new object for each received packet.
+     *
+     * @param data the received packet data
+     * @return this object
+     */
+    public ZrtpPacketConfirm wrap(final byte[] data) {
+        return wrap(data, 0);
+    }
+
+    /**
+     * Use this object as view of a received Confirm packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     * @return this object
+     */
+    public ZrtpPacketConfirm wrap(final byte[] data, final int offset) {
+        setPacketBuffer(data, offset);
+        signatureLength = 0;
+        return this;
+    }
+
+    /**
+     * Use this object as view of a received Confirm packet in a ByteBuffer.
+     *
+     * The packet starts at the buffer's position and ends at its limit.
+     * Heap buffers are used in place, the content of a direct buffer is
+     * copied.
+     *
+     * @param buffer the buffer that holds the received packet
+     * @return this object or null if the message length exceeds the
+     *         remaining bytes of the buffer
+     */
+    @SuppressWarnings("unused")
+    public ZrtpPacketConfirm wrap(final ByteBuffer buffer) {
+        if (!isMessageInside(buffer)) {
+            return null;
+        }
+        wrap(arrayOf(buffer), offsetOf(buffer));
+        setPacketLimit(limitOf(buffer));
+        return this;
     }
     
     public final boolean isSASFlag() {
-        return ((packetBuffer[FLAGS_OFFSET] & 0x4) == 0x4); 
+        return ((packetBuffer[packetOffset + FLAGS_OFFSET] & 0x4) == 0x4); 
     }
     
     public final boolean isPBXEnrollment() {
-        return ((packetBuffer[FLAGS_OFFSET] & 0x8) == 0x8); 
+        return ((packetBuffer[packetOffset + FLAGS_OFFSET] & 0x8) == 0x8); 
     }
     
     public final byte[] getIv() {
-        return ZrtpUtils.readRegion(packetBuffer, IV_OFFSET, 4*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + IV_OFFSET, 4*ZRTP_WORD_SIZE);
     }
         
     public final byte[] getHmac() {
-        return ZrtpUtils.readRegion(packetBuffer, HMAC_OFFSET, 2*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + HMAC_OFFSET, 2*ZRTP_WORD_SIZE);
     }
 
     @SuppressWarnings("unused")
     public final int getExpTime() {
-        return ZrtpUtils.readInt(packetBuffer, EXP_TIME_OFFSET);
+        return ZrtpUtils.readInt(packetBuffer, packetOffset + EXP_TIME_OFFSET);
     }
 
     public final byte[] getDataToSecure() {
         // 9 is ZRTP_HEADER plus non secure confirm data       
         int length = (getLength() - 9) * ZRTP_WORD_SIZE;
-        return ZrtpUtils.readRegion(packetBuffer, HASH_H0_OFFSET, length);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + HASH_H0_OFFSET, length);
     }
     
     public final byte[] getHashH0() { 
-        return ZrtpUtils.readRegion(packetBuffer, HASH_H0_OFFSET, 8*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + HASH_H0_OFFSET, 8*ZRTP_WORD_SIZE);
     }
 
     public final byte[] getSignatureData() {
-        return ZrtpUtils.readRegion(packetBuffer, SIG_DATA_OFFSET, signatureLength*4);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + SIG_DATA_OFFSET, signatureLength*4);
     }
     
     public final int getSignatureLength() {
-        signatureLength = packetBuffer[SIG_LENGTH_OFFSET] & 0xff;
-        if (packetBuffer[FILLER_OFFSET+1] == 1) {  // if we have a 9th bit - set it
+        signatureLength = packetBuffer[packetOffset + SIG_LENGTH_OFFSET] & 0xff;
+        if (packetBuffer[packetOffset + FILLER_OFFSET+1] == 1) {  // if we have a 9th bit - set it
             signatureLength |= 0x100;
         }
         return signatureLength;
@@ -142,40 +202,40 @@ public class ZrtpPacketConfirm extends ZrtpPacketBase {
      * Setter methods
      */
     public final void setSASFlag() {
-        packetBuffer[FLAGS_OFFSET] |= 0x4; 
+        packetBuffer[packetOffset + FLAGS_OFFSET] |= 0x4; 
     }
 
     public final void setPBXEnrollment() {
-        packetBuffer[FLAGS_OFFSET] |= 0x8; 
+        packetBuffer[packetOffset + FLAGS_OFFSET] |= 0x8; 
     }
     
     public final void setHmac(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, HMAC_OFFSET, 2*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + HMAC_OFFSET, 2*ZRTP_WORD_SIZE);
     }
 
     public final void setIv(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, IV_OFFSET, 4*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + IV_OFFSET, 4*ZRTP_WORD_SIZE);
     }
         
     public final void setExpTime(final int t)  { 
-        ZrtpUtils.int32ToArrayInPlace(t, packetBuffer, EXP_TIME_OFFSET);
+        ZrtpUtils.int32ToArrayInPlace(t, packetBuffer, packetOffset + EXP_TIME_OFFSET);
     }
     
     public final void setDataToSecure(final byte[] data) {
         // 9 is ZRTP_HEADER plus non secure confirm data       
         int length = (getLength() - 9) * ZRTP_WORD_SIZE;
-        System.arraycopy(data, 0, packetBuffer, HASH_H0_OFFSET, length);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + HASH_H0_OFFSET, length);
     }
 
     public final void setHashH0(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, HASH_H0_OFFSET, 8*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + HASH_H0_OFFSET, 8*ZRTP_WORD_SIZE);
     }
 
     public final boolean setSignatureData(final byte[] data) {
         if ((data.length / 4) > signatureLength) {
             return false;
         }
-        System.arraycopy(data, 0, packetBuffer, SIG_DATA_OFFSET, data.length);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + SIG_DATA_OFFSET, data.length);
         return true;
     }
     
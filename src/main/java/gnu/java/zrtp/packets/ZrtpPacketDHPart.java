@@ -23,6 +23,7 @@ import gnu.java.zrtp.ZrtpConstants;
 import gnu.java.zrtp.utils.ZrtpUtils;
 import org.bouncycastle.math.ec.custom.djb.Curve25519;
 
+import java.nio.ByteBuffer;
 
 /**
  * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
@@ -80,8 +81,68 @@ public class ZrtpPacketDHPart extends ZrtpPacketBase {
      * @param data received from the network.
      */
     public ZrtpPacketDHPart(final byte[] data) {
-        super(data);
+        this(data, 0);
+    }
+
+    /**
+     * Construct a view of a received DHPart packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     */
+    public ZrtpPacketDHPart(final byte[] data, final int offset) {
+        super(data, offset);
+        parse();
+    }
+
+    /**
+     * Use this object as view of another received DHPart packet.
+     *
+     * The state engine reuses one view object per packet type instead of
+     * creating a new object for each received packet.
+     *
+     * @param data the received packet data
+     * @return this object
+     */
+    public ZrtpPacketDHPart wrap(final byte[] data) {
+        return wrap(data, 0);
+    }
+
+    /**
+     * Use this object as view of a received DHPart packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     * @return this object
+     */
+    public ZrtpPacketDHPart wrap(final byte[] data, final int offset) {
+        setPacketBuffer(data, offset);
+        parse();
+        return this;
+    }
+
+    /**
+     * Use this object as view of a received DHPart packet in a ByteBuffer.
+     *
+     * The packet starts at the buffer's position and ends at its limit.
+     * Heap buffers are used in place, the content of a direct buffer is
+     * copied.
+     *
+     * @param buffer the buffer that holds the received packet
+     * @return this object or null if the message length exceeds the
+     *         remaining bytes of the buffer
+     */
+    @SuppressWarnings("unused")
+    public ZrtpPacketDHPart wrap(final ByteBuffer buffer) {
+        if (!isMessageInside(buffer)) {
+            return null;
+        }
+        wrap(arrayOf(buffer), offsetOf(buffer));
+        setPacketLimit(limitOf(buffer));
+        return this;
+    }
 
+    private void parse() {
         short len = getLength();
         if (len == 85) {
             dhLength = 256;
@@ -126,6 +187,7 @@ public class ZrtpPacketDHPart extends ZrtpPacketBase {
         
         // allocate buffer
         packetBuffer = new byte[length];
+        packetOffset = 0;
         
         // Message length does not include CRC
         setLength((length-CRC_SIZE) / ZRTP_WORD_SIZE);
@@ -133,31 +195,31 @@ public class ZrtpPacketDHPart extends ZrtpPacketBase {
     }
 
     public final byte[] getPv() { 
-        return ZrtpUtils.readRegion(packetBuffer, PUBLIC_KEY_OFFSET, dhLength);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + PUBLIC_KEY_OFFSET, dhLength);
     }
 
     public final byte[] getRs1Id() {
-        return ZrtpUtils.readRegion(packetBuffer, RS1ID_OFFSET, 2*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + RS1ID_OFFSET, 2*ZRTP_WORD_SIZE);
     }
         
     public final byte[] getRs2Id() { 
-        return ZrtpUtils.readRegion(packetBuffer, RS2ID_OFFSET, 2*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + RS2ID_OFFSET, 2*ZRTP_WORD_SIZE);
     }
 
     public final byte[] getAuxSecretId() {
-        return ZrtpUtils.readRegion(packetBuffer, S3_ID_OFFSET, 2*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + S3_ID_OFFSET, 2*ZRTP_WORD_SIZE);
     }
 
     public final byte[] getPbxSecretId() {
-        return ZrtpUtils.readRegion(packetBuffer, PBX_SECRET_ID_OFFSET, 2*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + PBX_SECRET_ID_OFFSET, 2*ZRTP_WORD_SIZE);
     }
         
     public final byte[] getH1() { 
-        return ZrtpUtils.readRegion(packetBuffer, HASH_H1_OFFSET, HASH_IMAGE_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + HASH_H1_OFFSET, HASH_IMAGE_SIZE);
     }
 
     public final byte[] getHMAC() {
-        return ZrtpUtils.readRegion(packetBuffer, PUBLIC_KEY_OFFSET+dhLength, 2*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + PUBLIC_KEY_OFFSET+dhLength, 2*ZRTP_WORD_SIZE);
     }
 
     /// Check if packet length makes sense. Smallest DHpart packet is 29 words, using DH E255
@@ -171,31 +233,31 @@ public class ZrtpPacketDHPart extends ZrtpPacketBase {
      */
     
     public final void setPv(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, PUBLIC_KEY_OFFSET, dhLength);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + PUBLIC_KEY_OFFSET, dhLength);
     }
 
     public final void setRs1Id(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, RS1ID_OFFSET, 2*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + RS1ID_OFFSET, 2*ZRTP_WORD_SIZE);
     }
         
     public final void setRs2Id(final byte[] data) { 
-        System.arraycopy(data, 0, packetBuffer, RS2ID_OFFSET, 2*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + RS2ID_OFFSET, 2*ZRTP_WORD_SIZE);
     }
         
     public final void setAuxSecretId(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, S3_ID_OFFSET, 2*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + S3_ID_OFFSET, 2*ZRTP_WORD_SIZE);
     }
 
     public final void setPbxSecretId(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, PBX_SECRET_ID_OFFSET, 2*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + PBX_SECRET_ID_OFFSET, 2*ZRTP_WORD_SIZE);
     }
         
     public final void setH1(final byte[] data) { 
-        System.arraycopy(data, 0, packetBuffer, HASH_H1_OFFSET, HASH_IMAGE_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + HASH_H1_OFFSET, HASH_IMAGE_SIZE);
     }
 
     public final void setHMAC(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, PUBLIC_KEY_OFFSET+dhLength, 2*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + PUBLIC_KEY_OFFSET+dhLength, 2*ZRTP_WORD_SIZE);
     }
 
     /* ***
@@ -22,6 +22,8 @@ package gnu.java.zrtp.packets;
 import gnu.java.zrtp.ZrtpConstants;
 import gnu.java.zrtp.utils.ZrtpUtils;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
@@ -70,7 +72,63 @@ public class ZrtpPacketError extends ZrtpPacketBase {
      * @param data received from the network.
      */
     public ZrtpPacketError(final byte[] data) {
-        super(data);
+        this(data, 0);
+    }
+
+    /**
+     * Construct a view of a received Error packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     */
+    public ZrtpPacketError(final byte[] data, final int offset) {
+        super(data, offset);
+    }
+
+    /**
+     * Use this object as view of another received Error packet.
+     *
+     * The state engine reuses one view object per packet type instead of
+     * creating a new object for each received packet.
+     *
+     * @param data the received packet data
+     * @return this object
+     */
+    public ZrtpPacketError wrap(final byte[] data) {
+        return wrap(data, 0);
+    }
+
+    /**
+     * Use this object as view of a received Error packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     * @return this object
+     */
+    public ZrtpPacketError wrap(final byte[] data, final int offset) {
+        setPacketBuffer(data, offset);
+        return this;
+    }
+
+    /**
+     * Use this object as view of a received Error packet in a ByteBuffer.
+     *
+     * The packet starts at the buffer's position and ends at its limit.
+     * Heap buffers are used in place, the content of a direct buffer is
+     * copied.
+     *
+     * @param buffer the buffer that holds the received packet
+     * @return this object or null if the message length exceeds the
+     *         remaining bytes of the buffer
+     */
+    @SuppressWarnings("unused")
+    public ZrtpPacketError wrap(final ByteBuffer buffer) {
+        if (!isMessageInside(buffer)) {
+            return null;
+        }
+        wrap(arrayOf(buffer), offsetOf(buffer));
+        setPacketLimit(limitOf(buffer));
+        return this;
     }
  
     /**
@@ -81,7 +139,7 @@ public class ZrtpPacketError extends ZrtpPacketBase {
      * @return the error code.
      */
     public final int getErrorCode() { 
-        return ZrtpUtils.readInt(packetBuffer, CODE_OFFSET); 
+        return ZrtpUtils.readInt(packetBuffer, packetOffset + CODE_OFFSET); 
     }
 
     /**
@@ -92,7 +150,7 @@ public class ZrtpPacketError extends ZrtpPacketBase {
      * @param code the error code.
      */
     public final void setErrorCode(final int code) {
-        ZrtpUtils.int32ToArrayInPlace(code, packetBuffer, CODE_OFFSET);
+        ZrtpUtils.int32ToArrayInPlace(code, packetBuffer, packetOffset + CODE_OFFSET);
     }
 
     /* ***
@@ -24,7 +24,7 @@ import gnu.java.zrtp.ZrtpConstants;
 import gnu.java.zrtp.utils.ZrtpUtils;
 
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -78,12 +78,44 @@ public class ZrtpPacketHello extends ZrtpPacketBase {
             (ZRTP_HEADER_LENGTH + ZRTP_HELLO_FIX_LENGTH) * ZRTP_WORD_SIZE + CRC_SIZE;
 
     private int computedLength;
+
+    private HelloCapabilities capabilities;
     
     public ZrtpPacketHello() {
         super(null);                        // will set packet buffer explicitly
     }
     
+    /**
+     * Set up the Hello packet with the configured algorithms.
+     *
+     * If the configuration is frozen copy its Hello template, otherwise
+     * build the packet from the configuration's algorithm lists.
+     *
+     * @param config the configuration
+     */
     public void configureHello(ZrtpConfigure config) {
+        HelloTemplate template = config.getHelloTemplate();
+        if (template != null) {
+            configureHello(template);
+        }
+        else {
+            buildHello(config);
+        }
+    }
+
+    /**
+     * Set up the Hello packet with a copy of a Hello template.
+     *
+     * @param template the template of a frozen configuration
+     */
+    public void configureHello(HelloTemplate template) {
+        packetBuffer = template.copyData();
+        packetOffset = 0;
+        helloLength = packetBuffer.length;
+        parse();
+    }
+
+    void buildHello(ZrtpConfigure config) {
         
         nHash = config.getNumConfiguredHashes();
         nCipher = config.getNumConfiguredSymCiphers();
@@ -115,33 +147,33 @@ public class ZrtpPacketHello extends ZrtpPacketBase {
         setLength((helloLength / ZRTP_WORD_SIZE) - 1);
         setMessageType(ZrtpConstants.HelloMsg);
 
-        packetBuffer[FLAG_LENGTH_OFFSET] = helloFlags;  // Passive flag if required
+        packetBuffer[packetOffset + FLAG_LENGTH_OFFSET] = helloFlags;  // Passive flag if required
         
-        packetBuffer[FLAG_LENGTH_OFFSET+1] = (byte)(nHash);
+        packetBuffer[packetOffset + FLAG_LENGTH_OFFSET+1] = (byte)(nHash);
         int index = 0;
         for (ZrtpConstants.SupportedHashes sh: config.hashes()) {
             setHashType(index++, sh.name);
         }
 
-        packetBuffer[FLAG_LENGTH_OFFSET+2] = (byte)(nCipher << 4);
+        packetBuffer[packetOffset + FLAG_LENGTH_OFFSET+2] = (byte)(nCipher << 4);
         index = 0;
         for (ZrtpConstants.SupportedSymCiphers sh: config.symCiphers()) {
             setCipherType(index++, sh.name);
         }
 
-        packetBuffer[FLAG_LENGTH_OFFSET+2] |= (byte)(nAuth);
+        packetBuffer[packetOffset + FLAG_LENGTH_OFFSET+2] |= (byte)(nAuth);
         index = 0;
         for (ZrtpConstants.SupportedAuthLengths sh: config.authLengths()) {
             setAuthLen(index++, sh.name);
         }
 
-        packetBuffer[FLAG_LENGTH_OFFSET+3] = (byte)(nPubkey << 4);
+        packetBuffer[packetOffset + FLAG_LENGTH_OFFSET+3] = (byte)(nPubkey << 4);
         index = 0;
         for (ZrtpConstants.SupportedPubKeys sh: config.publicKeyAlgos()) {
             setPubKeyType(index++, sh.name);
         }
 
-        packetBuffer[FLAG_LENGTH_OFFSET+3] |= (byte)(nSas);
+        packetBuffer[packetOffset + FLAG_LENGTH_OFFSET+3] |= (byte)(nSas);
         index = 0;
         for (ZrtpConstants.SupportedSASTypes sh: config.sasTypes()) {
             setSasType(index++, sh.name);
@@ -149,17 +181,80 @@ public class ZrtpPacketHello extends ZrtpPacketBase {
     }
 
     public ZrtpPacketHello(final byte[] data) {
-        super(data);
-        
-        helloFlags = packetBuffer[FLAG_LENGTH_OFFSET];  // check for passive flag (0x10)
+        this(data, 0);
+    }
 
-        int temp = packetBuffer[FLAG_LENGTH_OFFSET+1];  // contains hash counter on low 3 bits
+    /**
+     * Construct a view of a received Hello packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     */
+    public ZrtpPacketHello(final byte[] data, final int offset) {
+        super(data, offset);
+        parse();
+    }
+
+    /**
+     * Use this object as view of another received Hello packet.
+     *
+     * The state engine reuses one view object per packet type instead of
+     * creating a new object for each received packet.
+     *
+     * @param data the received packet data
+     * @return this object
+     */
+    public ZrtpPacketHello wrap(final byte[] data) {
+        return wrap(data, 0);
+    }
+
+    /**
+     * Use this object as view of a received Hello packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     * @return this object
+     */
+    public ZrtpPacketHello wrap(final byte[] data, final int offset) {
+        setPacketBuffer(data, offset);
+        parse();
+        return this;
+    }
+
+    /**
+     * Use this object as view of a received Hello packet in a ByteBuffer.
+     *
+     * The packet starts at the buffer's position and ends at its limit.
+     * Heap buffers are used in place, the content of a direct buffer is
+     * copied.
+     *
+     * @param buffer the buffer that holds the received packet
+     * @return this object or null if the message length exceeds the
+     *         remaining bytes of the buffer
+     */
+    @SuppressWarnings("unused")
+    public ZrtpPacketHello wrap(final ByteBuffer buffer) {
+        if (!isMessageInside(buffer)) {
+            return null;
+        }
+        wrap(arrayOf(buffer), offsetOf(buffer));
+        setPacketLimit(limitOf(buffer));
+        return this;
+    }
+
+    private void parse() {
+        capabilities = null;
+        selectedHash = null;
+        selectedCipher = null;
+        helloFlags = packetBuffer[packetOffset + FLAG_LENGTH_OFFSET];  // check for passive flag (0x10)
+
+        int temp = packetBuffer[packetOffset + FLAG_LENGTH_OFFSET+1];  // contains hash counter on low 3 bits
         nHash = temp & 0x7;
         
-        temp = packetBuffer[FLAG_LENGTH_OFFSET+2];      // contains cipher cnt on high 3 bits, auth cnt on low        
+        temp = packetBuffer[packetOffset + FLAG_LENGTH_OFFSET+2];      // contains cipher cnt on high 3 bits, auth cnt on low        
         nCipher = (temp & 0x70) >> 4;
         nAuth = temp & 0x7;
-        temp = packetBuffer[FLAG_LENGTH_OFFSET+3];      // contains key agreement cnt on high 4 bits, sas cnt on low        
+        temp = packetBuffer[packetOffset + FLAG_LENGTH_OFFSET+3];      // contains key agreement cnt on high 4 bits, sas cnt on low        
         nPubkey = (temp & 0x70) >> 4;
         nSas = temp & 0x7;
 
@@ -183,31 +278,31 @@ public class ZrtpPacketHello extends ZrtpPacketBase {
             data = ZrtpConstants.clientId.getBytes();
         }
         int length = (data.length > 4*ZRTP_WORD_SIZE)? (4*ZRTP_WORD_SIZE) : data.length;
-        System.arraycopy(data, 0, packetBuffer, CLIENT_ID_OFFSET, length);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + CLIENT_ID_OFFSET, length);
     }
     
     public final void setH3(final byte[] data)          { 
-        System.arraycopy(data, 0, packetBuffer, HASH_H3_OFFSET, HASH_IMAGE_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + HASH_H3_OFFSET, HASH_IMAGE_SIZE);
     }
     
     public final byte[] getH3() {
-        return ZrtpUtils.readRegion(packetBuffer, HASH_H3_OFFSET, ZrtpPacketBase.HASH_IMAGE_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + HASH_H3_OFFSET, ZrtpPacketBase.HASH_IMAGE_SIZE);
     }
 
     public final void setZid(final byte[] data)         { 
-        System.arraycopy(data, 0, packetBuffer, ZID_OFFSET, 3*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + ZID_OFFSET, 3*ZRTP_WORD_SIZE);
     }
 
     public final byte[] getZid() {
-        return ZrtpUtils.readRegion(packetBuffer, ZID_OFFSET, 3*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + ZID_OFFSET, 3*ZRTP_WORD_SIZE);
     }
 
     public final void setVersion(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, VERSION_OFFSET, ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + VERSION_OFFSET, ZRTP_WORD_SIZE);
     }
 
     public final byte[] getVersion() {
-        return ZrtpUtils.readRegion(packetBuffer, VERSION_OFFSET, ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + VERSION_OFFSET, ZRTP_WORD_SIZE);
     }
 
     public final int getVersionInt() {
@@ -224,31 +319,36 @@ public class ZrtpPacketHello extends ZrtpPacketBase {
     }
 
     public final void setHashType(final int n, final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, oHash+(n*ZRTP_WORD_SIZE), ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + oHash+(n*ZRTP_WORD_SIZE), ZRTP_WORD_SIZE);
+        capabilities = null;
     }
     
     public final void setCipherType(final int n, final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, oCipher+(n*ZRTP_WORD_SIZE), ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + oCipher+(n*ZRTP_WORD_SIZE), ZRTP_WORD_SIZE);
+        capabilities = null;
     }
 
     public final void setAuthLen(final int n, final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, oAuth+(n*ZRTP_WORD_SIZE), ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + oAuth+(n*ZRTP_WORD_SIZE), ZRTP_WORD_SIZE);
+        capabilities = null;
     }
 
     public final void setPubKeyType(final int n, final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, oPubkey+(n*ZRTP_WORD_SIZE), ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + oPubkey+(n*ZRTP_WORD_SIZE), ZRTP_WORD_SIZE);
+        capabilities = null;
     }
     
     public final void setSasType(final int n, final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, oSas+(n*ZRTP_WORD_SIZE), ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + oSas+(n*ZRTP_WORD_SIZE), ZRTP_WORD_SIZE);
+        capabilities = null;
     }
     
     public final void setHMAC(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, oHmac, 2*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + oHmac, 2*ZRTP_WORD_SIZE);
     }
 
     public final void setMitmMode() {
-        packetBuffer[FLAG_LENGTH_OFFSET] |= HELLO_MITM_FLAG; 
+        packetBuffer[packetOffset + FLAG_LENGTH_OFFSET] |= HELLO_MITM_FLAG; 
     }
 
     public final boolean isMitmMode() {
@@ -256,7 +356,7 @@ public class ZrtpPacketHello extends ZrtpPacketBase {
     }
 
     public final void setSasSign() {
-        packetBuffer[FLAG_LENGTH_OFFSET] |= SAS_SIGN_FLAG; 
+        packetBuffer[packetOffset + FLAG_LENGTH_OFFSET] |= SAS_SIGN_FLAG; 
     }
 
     public final boolean isSasSign() {
@@ -276,7 +376,7 @@ public class ZrtpPacketHello extends ZrtpPacketBase {
     @SuppressWarnings("unused")
     public final boolean isSameVersion(final byte[] data) {
         for (int i = 0; i < ZRTP_WORD_SIZE; i++) {
-            if (packetBuffer[VERSION_OFFSET+i] != data[i]) {
+            if (packetBuffer[packetOffset + VERSION_OFFSET+i] != data[i]) {
                 return false;
             }
         }
@@ -307,114 +407,11 @@ public class ZrtpPacketHello extends ZrtpPacketBase {
      * @return found matching hash or default SHA 256.
      */
     public final ZrtpConstants.SupportedHashes findBestHash(ZrtpConfigure config) {
-        if (nHash == 0)
-            return ZrtpConstants.SupportedHashes.S256;
-
-        boolean mandatoryFound = false;
-        
-        int numAlgosOffered = nHash;
-        ArrayList<ZrtpConstants.SupportedHashes> algosOffered = new ArrayList<>(numAlgosOffered+1);
-
-        int numAlgosConf = config.getNumConfiguredHashes();
-        ArrayList<ZrtpConstants.SupportedHashes> algosConf = new ArrayList<>(numAlgosConf+1);
-
-        // Build a list of configured hashes, appending a mandatory algo if 
-        // necessary
-        for (ZrtpConstants.SupportedHashes sh: config.hashes()) {
-            if (sh == ZrtpConstants.SupportedHashes.S256) {
-                mandatoryFound = true;
-            }
-            algosConf.add(sh);
-        }
-        if (!mandatoryFound) {
-            algosConf.add(ZrtpConstants.SupportedHashes.S256);
-        }
-
-        // Build a list of offered hashes, appending a mandatory algo if 
-        // necessary
-        mandatoryFound = false;
-        for (int ii = 0; ii < nHash; ii++) {
-            int o = oHash + (ii * ZRTP_WORD_SIZE);
-            for (ZrtpConstants.SupportedHashes sh : ZrtpConstants.SupportedHashes
-                    .values()) {
-                byte[] s = sh.name;
-                if (s[0] == packetBuffer[o] && s[1] == packetBuffer[o + 1]
-                        && s[2] == packetBuffer[o + 2]
-                        && s[3] == packetBuffer[o + 3]) {
-                    algosOffered.add(sh);
-                    if (sh == ZrtpConstants.SupportedHashes.S256) {
-                        mandatoryFound = true;
-                    }
-                }
-            }
-        }
-        if (!mandatoryFound) {
-            algosOffered.add(ZrtpConstants.SupportedHashes.S256);
-        }
-        for (ZrtpConstants.SupportedHashes sho: algosOffered) {
-            for (ZrtpConstants.SupportedHashes shc: algosConf) {
-                if(sho == shc) {
-                    return shc;
-                }
-            }
-        }
-        return ZrtpConstants.SupportedHashes.S256;
+        return getCapabilities().findBestHash(config);
     }
 
     public final ZrtpConstants.SupportedSymCiphers findBestCipher(ZrtpConfigure config, ZrtpConstants.SupportedPubKeys pk) {
-        if (nCipher == 0 || pk == ZrtpConstants.SupportedPubKeys.DH2K)
-            return ZrtpConstants.SupportedSymCiphers.AES1;
-
-        boolean mandatoryFound = false;
-        
-        int numAlgosOffered = nCipher;
-        ArrayList<ZrtpConstants.SupportedSymCiphers> algosOffered = new ArrayList<>(numAlgosOffered+1);
-
-        int numAlgosConf = config.getNumConfiguredSymCiphers();
-        ArrayList<ZrtpConstants.SupportedSymCiphers> algosConf = new ArrayList<>(numAlgosConf+1);
-
-        // Build a list of configured ciphers, appending a mandatory algo if 
-        // necessary
-        for (ZrtpConstants.SupportedSymCiphers sh: config.symCiphers()) {
-            if (sh == ZrtpConstants.SupportedSymCiphers.AES1) {
-                mandatoryFound = true;
-            }
-            algosConf.add(sh);
-        }
-        if (!mandatoryFound) {
-            algosConf.add(ZrtpConstants.SupportedSymCiphers.AES1);
-        }
-
-        // Build a list of offered ciphers, appending a mandatory algo if 
-        // necessary
-        mandatoryFound = false;
-        for (int ii = 0; ii < nCipher; ii++) {
-            int o = oCipher + (ii * ZRTP_WORD_SIZE);
-            for (ZrtpConstants.SupportedSymCiphers sh : ZrtpConstants.SupportedSymCiphers
-                    .values()) {
-                byte[] s = sh.name;
-                if (s[0] == packetBuffer[o] && s[1] == packetBuffer[o + 1]
-                        && s[2] == packetBuffer[o + 2]
-                        && s[3] == packetBuffer[o + 3]) {
-                    algosOffered.add(sh);
-                    if (sh == ZrtpConstants.SupportedSymCiphers.AES1) {
-                        mandatoryFound = true;
-                    }
-                }
-            }
-        }
-        if (!mandatoryFound) {
-            algosOffered.add(ZrtpConstants.SupportedSymCiphers.AES1);
-        }
-        
-        for (ZrtpConstants.SupportedSymCiphers sho: algosOffered) {
-            for (ZrtpConstants.SupportedSymCiphers shc: algosConf) {
-                if(sho == shc) {
-                    return shc;
-                }
-            }
-        }
-        return ZrtpConstants.SupportedSymCiphers.AES1;
+        return getCapabilities().findBestCipher(config, pk);
     }
     
     private ZrtpConstants.SupportedHashes selectedHash;
@@ -429,273 +426,52 @@ public class ZrtpPacketHello extends ZrtpPacketBase {
     }
     
     public final ZrtpConstants.SupportedPubKeys findBestPubkey(ZrtpConfigure config) {
-        if (nPubkey == 0) {
-            selectedHash = ZrtpConstants.SupportedHashes.S256;
-            return ZrtpConstants.SupportedPubKeys.DH3K;
-        }
-
-        // Build list of own pubkey algorithm names, must follow the order
-        // defined in RFC 6189, chapter 4.1.2.
-        final ZrtpConstants.SupportedPubKeys orderedAlgos[] = {
-            ZrtpConstants.SupportedPubKeys.DH2K,
-            ZrtpConstants.SupportedPubKeys.E255,
-            ZrtpConstants.SupportedPubKeys.EC25, 
-            ZrtpConstants.SupportedPubKeys.DH3K,
-            ZrtpConstants.SupportedPubKeys.EC38 };
-
-        int numAlgosConf = config.getNumConfiguredPubKeys();
-        ArrayList<ZrtpConstants.SupportedPubKeys> algosPeerIntersect = new ArrayList<>(numAlgosConf+1);
-
-        ArrayList<ZrtpConstants.SupportedPubKeys> algosOwnIntersect = new ArrayList<>(numAlgosConf+1);
-
-        // Build our own intersection list ordered according to our sequence
-        // The list must include real public key algorithms only, so skip
-        // mult-stream mode, preshared and alike.
-        for (ZrtpConstants.SupportedPubKeys sh: config.publicKeyAlgos()) {
-            if (sh == ZrtpConstants.SupportedPubKeys.MULT) {
-                continue;
-            }
-            byte[] s = sh.name;
-            for (int i = 0; i < nPubkey; i++) {
-                int o = oPubkey + (i * ZRTP_WORD_SIZE);
-                if (s[0] == packetBuffer[o] && s[1] == packetBuffer[o + 1] && s[2] == packetBuffer[o + 2] &&
-                                s[3] == packetBuffer[o + 3]) {
-                    algosOwnIntersect.add(sh);
-                }
-            }
-        }
-
-        // Build list of intersectiong algos in peer's order. As input use own intersection list, just
-        // order the algorithms as sent by peer.
-        for (int i = 0; i < nPubkey; i++) {
-            int o = oPubkey + (i * ZRTP_WORD_SIZE);
-            for (ZrtpConstants.SupportedPubKeys sh : algosOwnIntersect) {
-                byte[] s = sh.name;
-                if (s[0] == packetBuffer[o] && s[1] == packetBuffer[o + 1] && s[2] == packetBuffer[o + 2] &&
-                                s[3] == packetBuffer[o + 3]) {
-                    algosPeerIntersect.add(sh);
-                    break;
-                }
-            }
-        }
-        if (algosPeerIntersect.size() == 0) {   // If we don't find a common algorithm use the mandatory algorithms
-            selectedHash = ZrtpConstants.SupportedHashes.S256;
-            return ZrtpConstants.SupportedPubKeys.DH3K;
-        }
-        
-        ZrtpConstants.SupportedPubKeys useAlgo;
-        if (algosPeerIntersect.size() > 1 && algosPeerIntersect.get(0) != algosOwnIntersect.get(0)) {
-            
-            // Get own and peer's algorithm which are first on the repective lists
-            ZrtpConstants.SupportedPubKeys ownTopAlgo = algosOwnIntersect.get(0);
-            ZrtpConstants.SupportedPubKeys peerTopAlgo = algosPeerIntersect.get(0);
-
-            int own = 0, peer = 0;
-            
-            // Now check which algorithm is first on the list of ordered algorithms, lookup own first
-            for (ZrtpConstants.SupportedPubKeys sh : orderedAlgos) {
-                if (sh == ownTopAlgo)
-                    break;
-                own++;
-            }
-            for (ZrtpConstants.SupportedPubKeys sh : orderedAlgos) {
-                if (sh == peerTopAlgo)
-                    break;
-                peer++;
-            }
-            if (own < peer)             // our algorithm is faster
-                useAlgo = algosOwnIntersect.get(0);
-            else
-                useAlgo = algosPeerIntersect.get(0);
-        }
-        else {
-            useAlgo = algosPeerIntersect.get(0);
-        }
-        
-        // select a corresponding strong hash if necessary.
-        if (useAlgo == ZrtpConstants.SupportedPubKeys.EC38) {
-            selectedHash = getStrongHashOffered();
-            selectedCipher = getStrongCipherOffered();
-        }
-        else {
-            selectedHash = findBestHash(config);
-        }
-        return useAlgo;        
-    }
-
-    private ZrtpConstants.SupportedHashes getStrongHashOffered() {
-        byte[] s = ZrtpConstants.SupportedHashes.S384.name;
-        for (int i = 0; i < nHash; i++) {
-            int o = oHash + (i * ZRTP_WORD_SIZE);
-            if (s[0] == packetBuffer[o] && s[1] == packetBuffer[o + 1] && s[2] == packetBuffer[o + 2] &&
-                            s[3] == packetBuffer[o + 3]) {
-                return ZrtpConstants.SupportedHashes.S384;                    
-            }
-        }
-        return null;
-    }
-
-    private ZrtpConstants.SupportedSymCiphers getStrongCipherOffered() {
-
-        byte[] aes3 = ZrtpConstants.SupportedSymCiphers.AES3.name;
-        byte[] two3 = ZrtpConstants.SupportedSymCiphers.TWO3.name;
-
-        for (int i = 0; i < nCipher; i++) {
-            int o = oCipher + (i * ZRTP_WORD_SIZE);
-            if (aes3[0] == packetBuffer[o] && aes3[1] == packetBuffer[o + 1] && aes3[2] == packetBuffer[o + 2] &&
-                            aes3[3] == packetBuffer[o + 3]) {
-                return ZrtpConstants.SupportedSymCiphers.AES3;
-            }
-            if (two3[0] == packetBuffer[o] && two3[1] == packetBuffer[o + 1] && two3[2] == packetBuffer[o + 2] &&
-                            two3[3] == packetBuffer[o + 3]) {
-                return ZrtpConstants.SupportedSymCiphers.TWO3;
-            }
-        }
-        return null;
+        NegotiatedAlgorithms algos = getCapabilities().negotiate(config);
+        selectedHash = algos.getHash();
+        selectedCipher = algos.getCipher();
+        return algos.getPubKey();
     }
 
     public final ZrtpConstants.SupportedSASTypes findBestSASType(ZrtpConfigure config) {
-        if (nSas == 0)
-            return ZrtpConstants.SupportedSASTypes.B32;
-        
-        boolean mandatoryFound = false;
-        
-        int numAlgosOffered = nSas;
-        ArrayList<ZrtpConstants.SupportedSASTypes> algosOffered = new ArrayList<>(numAlgosOffered+1);
-
-        int numAlgosConf = config.getNumConfiguredSasTypes();
-        ArrayList<ZrtpConstants.SupportedSASTypes> algosConf = new ArrayList<>(numAlgosConf+1);
-
-        // Build a list of configured hashes, appending a mandatory algo if 
-        // necessary
-        for (ZrtpConstants.SupportedSASTypes sh: config.sasTypes()) {
-            if (sh == ZrtpConstants.SupportedSASTypes.B32) {
-                mandatoryFound = true;
-            }
-            algosConf.add(sh);
-        }
-        if (!mandatoryFound) {
-            algosConf.add(ZrtpConstants.SupportedSASTypes.B32);
-        }
-
-        // Build a list of offered hashes, appending a mandatory algo if 
-        // necessary
-        mandatoryFound = false;
-        for (int ii = 0; ii < nSas; ii++) {
-            int o = oSas + (ii * ZRTP_WORD_SIZE);
-            for (ZrtpConstants.SupportedSASTypes sh : ZrtpConstants.SupportedSASTypes
-                    .values()) {
-                byte[] s = sh.name;
-                if (s[0] == packetBuffer[o] && s[1] == packetBuffer[o + 1]
-                        && s[2] == packetBuffer[o + 2]
-                        && s[3] == packetBuffer[o + 3]) {
-                    algosOffered.add(sh);
-                    if (sh == ZrtpConstants.SupportedSASTypes.B32) {
-                        mandatoryFound = true;
-                    }
-                }
-            }
-        }
-        if (!mandatoryFound) {
-            algosOffered.add(ZrtpConstants.SupportedSASTypes.B32);
-        }
-        for (ZrtpConstants.SupportedSASTypes sho: algosOffered) {
-            for (ZrtpConstants.SupportedSASTypes shc: algosConf) {
-                if(sho == shc) {
-                    return shc;
-                }
-            }
-        }        
-        return ZrtpConstants.SupportedSASTypes.B32;
+        return getCapabilities().findBestSASType(config);
     }
 
     public final ZrtpConstants.SupportedAuthLengths findBestAuthLen(ZrtpConfigure config) {
-        if (nAuth == 0)
-            return ZrtpConstants.SupportedAuthLengths.HS32;
-
-        boolean mandatoryFound_1 = false;
-        boolean mandatoryFound_2 = false;
-        
-        int numAlgosOffered = nAuth;
-        ArrayList<ZrtpConstants.SupportedAuthLengths> algosOffered = 
-            new ArrayList<>(numAlgosOffered+1);
-
-        int numAlgosConf = config.getNumConfiguredAuthLengths();
-        ArrayList<ZrtpConstants.SupportedAuthLengths> algosConf = 
-            new ArrayList<>(numAlgosConf+1);
+        return getCapabilities().findBestAuthLen(config);
+    }
 
-        // Build a list of configured hashes, appending a mandatory algo if 
-        // necessary
-        for (ZrtpConstants.SupportedAuthLengths sh: config.authLengths()) {
-            if (sh == ZrtpConstants.SupportedAuthLengths.HS32) {
-                mandatoryFound_1 = true;
-            }
-            if (sh == ZrtpConstants.SupportedAuthLengths.HS80) {
-                mandatoryFound_2 = true;
-            }
-            algosConf.add(sh);
-        }
-        if (!mandatoryFound_1) {
-            algosConf.add(ZrtpConstants.SupportedAuthLengths.HS32);
-        }
+    public final boolean checkMultiStream() {
+        return getCapabilities().checkMultiStream();
+    }
 
-        if (!mandatoryFound_2) {
-            algosConf.add(ZrtpConstants.SupportedAuthLengths.HS80);
-        }
-        // Build a list of offered hashes, appending a mandatory algo if 
-        // necessary
-        mandatoryFound_1 = mandatoryFound_2 = false;
-        for (int ii = 0; ii < nAuth; ii++) {
-            int o = oAuth + (ii * ZRTP_WORD_SIZE);
-            for (ZrtpConstants.SupportedAuthLengths sh : ZrtpConstants.SupportedAuthLengths
-                    .values()) {
-                byte[] s = sh.name;
-                if (s[0] == packetBuffer[o] && s[1] == packetBuffer[o + 1]
-                        && s[2] == packetBuffer[o + 2]
-                        && s[3] == packetBuffer[o + 3]) {
-                    algosOffered.add(sh);
-                    if (sh == ZrtpConstants.SupportedAuthLengths.HS32) {
-                        mandatoryFound_1 = true;
-                    }
-                    if (sh == ZrtpConstants.SupportedAuthLengths.HS80) {
-                        mandatoryFound_2 = true;
-                    }
-                }
-            }
-        }
-        if (!mandatoryFound_1) {
-            algosOffered.add(ZrtpConstants.SupportedAuthLengths.HS32);
-        }
-        if (!mandatoryFound_2) {
-            algosOffered.add(ZrtpConstants.SupportedAuthLengths.HS80);
-        }
-        for (ZrtpConstants.SupportedAuthLengths sho: algosOffered) {
-            for (ZrtpConstants.SupportedAuthLengths shc: algosConf) {
-                if(sho == shc) {
-                    return shc;
-                }
-            }
-        }        
-        return ZrtpConstants.SupportedAuthLengths.HS32;
+    /**
+     * Get a copy of the algorithm counters and algorithm slots.
+     *
+     * Two Hello packets with equal slots offer the same algorithms in the
+     * same order. The flags are not part of the slots.
+     *
+     * @return the counters and the algorithm names
+     */
+    final byte[] getAlgorithmSlots() {
+        int start = packetOffset + FLAG_LENGTH_OFFSET + 1;
+        return Arrays.copyOfRange(packetBuffer, start, packetOffset + oHmac);
     }
 
-    public final boolean checkMultiStream() {
-        // Multi Stream mode is mandatory, thus if nothing is offered then it is
-        // supported :-)
-        if (nPubkey == 0)
-            return true;
-
-        byte[] s = ZrtpConstants.SupportedPubKeys.MULT.name;
-        // Loop over offer pub key data
-        for (int ii = 0; ii < nPubkey; ii++) {
-            int o = oPubkey + (ii * ZRTP_WORD_SIZE);
-            if (s[0] == packetBuffer[o] && s[1] == packetBuffer[o + 1]
-                    && s[2] == packetBuffer[o + 2]
-                    && s[3] == packetBuffer[o + 3]) {
-                return true;
-            }
+    /**
+     * Get the algorithms offered in this Hello packet.
+     *
+     * Decodes the algorithm slots on the first call after the packet was
+     * set, later calls return the same object.
+     *
+     * @return the offered algorithms
+     */
+    public final HelloCapabilities getCapabilities() {
+        if (capabilities == null) {
+            capabilities = new HelloCapabilities(packetBuffer, packetOffset + oHash, nHash,
+                    packetOffset + oCipher, nCipher, packetOffset + oAuth, nAuth,
+                    packetOffset + oPubkey, nPubkey, packetOffset + oSas, nSas);
         }
-        return false;
+        return capabilities;
     }
 
 /* ***
@@ -22,6 +22,8 @@ package gnu.java.zrtp.packets;
 import gnu.java.zrtp.ZrtpConstants;
 import gnu.java.zrtp.utils.ZrtpUtils;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
@@ -68,7 +70,63 @@ public class ZrtpPacketPing extends ZrtpPacketBase {
      * @param data received from the network.
      */
     public ZrtpPacketPing(final byte[] data) {
-        super(data);
+        this(data, 0);
+    }
+
+    /**
+     * Construct a view of a received Ping packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     */
+    public ZrtpPacketPing(final byte[] data, final int offset) {
+        super(data, offset);
+    }
+
+    /**
+     * Use this object as view of another received Ping packet.
+     *
+     * The state engine reuses one view object per packet type instead of
+     * creating a new object for each received packet.
+     *
+     * @param data the received packet data
+     * @return this object
+     */
+    public ZrtpPacketPing wrap(final byte[] data) {
+        return wrap(data, 0);
+    }
+
+    /**
+     * Use this object as view of a received Ping packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     * @return this object
+     */
+    public ZrtpPacketPing wrap(final byte[] data, final int offset) {
+        setPacketBuffer(data, offset);
+        return this;
+    }
+
+    /**
+     * Use this object as view of a received Ping packet in a ByteBuffer.
+     *
+     * The packet starts at the buffer's position and ends at its limit.
+     * Heap buffers are used in place, the content of a direct buffer is
+     * copied.
+     *
+     * @param buffer the buffer that holds the received packet
+     * @return this object or null if the message length exceeds the
+     *         remaining bytes of the buffer
+     */
+    @SuppressWarnings("unused")
+    public ZrtpPacketPing wrap(final ByteBuffer buffer) {
+        if (!isMessageInside(buffer)) {
+            return null;
+        }
+        wrap(arrayOf(buffer), offsetOf(buffer));
+        setPacketLimit(limitOf(buffer));
+        return this;
     }
  
     /**
@@ -77,7 +135,7 @@ public class ZrtpPacketPing extends ZrtpPacketBase {
      * @return the endpoint hash.
      */
     public final byte[] getEpHash() { 
-        return ZrtpUtils.readRegion(packetBuffer, EP_OFFSET, 2*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + EP_OFFSET, 2*ZRTP_WORD_SIZE);
     }
 
     /**
@@ -85,10 +143,10 @@ public class ZrtpPacketPing extends ZrtpPacketBase {
      */
     @SuppressWarnings("unused")
     public final void setEpHash(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, EP_OFFSET, 2*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + EP_OFFSET, 2*ZRTP_WORD_SIZE);
     }
     
     private void setVersion(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, VERSION_OFFSET, ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + VERSION_OFFSET, ZRTP_WORD_SIZE);
     }
 }
@@ -81,7 +81,7 @@ public class ZrtpPacketPingAck extends ZrtpPacketBase {
      */
     @SuppressWarnings("unused")
     public final byte[] getRemoteEpHash() {
-        return ZrtpUtils.readRegion(packetBuffer, REMOTE_EP_OFFSET, 2*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + REMOTE_EP_OFFSET, 2*ZRTP_WORD_SIZE);
     }
 
     /**
@@ -89,7 +89,7 @@ public class ZrtpPacketPingAck extends ZrtpPacketBase {
      * 
      */
     public final void setRemoteEpHash(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, REMOTE_EP_OFFSET, 2*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + REMOTE_EP_OFFSET, 2*ZRTP_WORD_SIZE);
     }
     
     /**
@@ -99,7 +99,7 @@ public class ZrtpPacketPingAck extends ZrtpPacketBase {
      */
     @SuppressWarnings("unused")
     public final byte[] getLocalEpHash() {
-        return ZrtpUtils.readRegion(packetBuffer, LOCAL_EP_OFFSET, 2*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + LOCAL_EP_OFFSET, 2*ZRTP_WORD_SIZE);
     }
     
     /**
@@ -107,7 +107,7 @@ public class ZrtpPacketPingAck extends ZrtpPacketBase {
      * 
      */
     public final void setLocalEpHash(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, LOCAL_EP_OFFSET, 2*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + LOCAL_EP_OFFSET, 2*ZRTP_WORD_SIZE);
     }
     
     /**
@@ -115,10 +115,10 @@ public class ZrtpPacketPingAck extends ZrtpPacketBase {
      * 
      */
     public final void setPeerSSRC(final int data) {
-        ZrtpUtils.int32ToArrayInPlace(data, packetBuffer, PEER_SSRC_OFFSET);
+        ZrtpUtils.int32ToArrayInPlace(data, packetBuffer, packetOffset + PEER_SSRC_OFFSET);
     }
     
     private void setVersion(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, VERSION_OFFSET, ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + VERSION_OFFSET, ZRTP_WORD_SIZE);
     }
 }
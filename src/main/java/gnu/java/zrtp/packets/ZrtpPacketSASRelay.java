@@ -22,6 +22,8 @@ package gnu.java.zrtp.packets;
 import gnu.java.zrtp.ZrtpConstants;
 import gnu.java.zrtp.utils.ZrtpUtils;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
@@ -78,21 +80,83 @@ public class ZrtpPacketSASRelay extends ZrtpPacketBase {
             // allocate new buffer, maybe shorter
             byte[] tmp = new byte[length];
             // copy header data to new place
-            System.arraycopy(packetBuffer, 0, tmp, 0, (ZRTP_HEADER_LENGTH + ZRTP_SAS_RELAY_FIXED_LENGTH) * ZRTP_WORD_SIZE);
+            System.arraycopy(packetBuffer, packetOffset, tmp, 0, (ZRTP_HEADER_LENGTH + ZRTP_SAS_RELAY_FIXED_LENGTH) * ZRTP_WORD_SIZE);
             packetBuffer = tmp;
+            packetOffset = 0;
         }
-        packetBuffer[SIG_LENGTH_OFFSET] = (byte)sl;
+        packetBuffer[packetOffset + SIG_LENGTH_OFFSET] = (byte)sl;
         if (sl > 255) {
-            packetBuffer[FILLER_OFFSET+1] = 1;  // set 9th bit if necessary
+            packetBuffer[packetOffset + FILLER_OFFSET+1] = 1;  // set 9th bit if necessary
         }
         setLength((length-CRC_SIZE) / 4);
         setZrtpId();
     }
 
     public ZrtpPacketSASRelay(final byte[] data) {
-        super(data);
-        signatureLength = packetBuffer[SIG_LENGTH_OFFSET] & 0xff;
-        if (packetBuffer[FILLER_OFFSET+1] == 1) {  // if we have a 9th bit - set it
+        this(data, 0);
+    }
+
+    /**
+     * Construct a view of a received SASRelay packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     */
+    public ZrtpPacketSASRelay(final byte[] data, final int offset) {
+        super(data, offset);
+        parse();
+    }
+
+    /**
+     * Use this object as view of another received SASRelay packet.
+     *
+     * The state engine reuses one view object per packet type instead of
+     * creating a new object for each received packet.
+     *
+     * @param data the received packet data
+     * @return this object
+     */
+    public ZrtpPacketSASRelay wrap(final byte[] data) {
+        return wrap(data, 0);
+    }
+
+    /**
+     * Use this object as view of a received SASRelay packet inside a larger buffer.
+     *
+     * @param data the buffer that holds the received packet
+     * @param offset offset of the ZRTP message inside the buffer
+     * @return this object
+     */
+    public ZrtpPacketSASRelay wrap(final byte[] data, final int offset) {
+        setPacketBuffer(data, offset);
+        parse();
+        return this;
+    }
+
+    /**
+     * Use this object as view of a received SASRelay packet in a ByteBuffer.
+     *
+     * The packet starts at the buffer's position and ends at its limit.
+     * Heap buffers are used in place, the content of a direct buffer is
+     * copied.
+     *
+     * @param buffer the buffer that holds the received packet
+     * @return this object or null if the message length exceeds the
+     *         remaining bytes of the buffer
+     */
+    @SuppressWarnings("unused")
+    public ZrtpPacketSASRelay wrap(final ByteBuffer buffer) {
+        if (!isMessageInside(buffer)) {
+            return null;
+        }
+        wrap(arrayOf(buffer), offsetOf(buffer));
+        setPacketLimit(limitOf(buffer));
+        return this;
+    }
+
+    private void parse() {
+        signatureLength = packetBuffer[packetOffset + SIG_LENGTH_OFFSET] & 0xff;
+        if (packetBuffer[packetOffset + FILLER_OFFSET+1] == 1) {  // if we have a 9th bit - set it
             signatureLength |= 0x100;
         }
     }
@@ -100,24 +164,24 @@ public class ZrtpPacketSASRelay extends ZrtpPacketBase {
 
     @SuppressWarnings("unused")
     public final boolean isSASFlag() {
-        return ((packetBuffer[FLAGS_OFFSET] & 0x4) == 0x4); 
+        return ((packetBuffer[packetOffset + FLAGS_OFFSET] & 0x4) == 0x4); 
     }
     
     public final byte[] getIv() {
-        return ZrtpUtils.readRegion(packetBuffer, IV_OFFSET, 4*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + IV_OFFSET, 4*ZRTP_WORD_SIZE);
     }
         
     public final byte[] getHmac() {
-        return ZrtpUtils.readRegion(packetBuffer, HMAC_OFFSET, 2*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + HMAC_OFFSET, 2*ZRTP_WORD_SIZE);
     }
 
     public ZrtpConstants.SupportedSASTypes getSas() {
 
         for (ZrtpConstants.SupportedSASTypes sh : ZrtpConstants.SupportedSASTypes.values()) {
             byte[] s = sh.name;
-            if (s[0] == packetBuffer[SAS_OFFSET] && s[1] == packetBuffer[SAS_OFFSET + 1]
-                    && s[2] == packetBuffer[SAS_OFFSET + 2]
-                    && s[3] == packetBuffer[SAS_OFFSET + 3]) {
+            if (s[0] == packetBuffer[packetOffset + SAS_OFFSET] && s[1] == packetBuffer[packetOffset + SAS_OFFSET + 1]
+                    && s[2] == packetBuffer[packetOffset + SAS_OFFSET + 2]
+                    && s[3] == packetBuffer[packetOffset + SAS_OFFSET + 3]) {
                 return sh;
             }
         }
@@ -125,18 +189,18 @@ public class ZrtpPacketSASRelay extends ZrtpPacketBase {
     }
 
     public final byte[] getTrustedSas() {
-        return ZrtpUtils.readRegion(packetBuffer, TRUSTED_SAS_OFFSET, 8*ZRTP_WORD_SIZE);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + TRUSTED_SAS_OFFSET, 8*ZRTP_WORD_SIZE);
     }
 
     public final byte[] getDataToSecure() {
         // 9 is ZRTP_HEADER plus non secure confirm data       
         int length = (getLength() - 9) * ZRTP_WORD_SIZE;
-        return ZrtpUtils.readRegion(packetBuffer, FILLER_OFFSET, length);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + FILLER_OFFSET, length);
     }
 
     @SuppressWarnings("unused")
     public final byte[] getSignatureData() {
-        return ZrtpUtils.readRegion(packetBuffer, SIG_DATA_OFFSET, signatureLength);
+        return ZrtpUtils.readRegion(packetBuffer, packetOffset + SIG_DATA_OFFSET, signatureLength);
     }
 
     @SuppressWarnings("unused")
@@ -153,29 +217,29 @@ public class ZrtpPacketSASRelay extends ZrtpPacketBase {
      */
     @SuppressWarnings("unused")
     public final void setSASFlag() {
-        packetBuffer[FLAGS_OFFSET] |= 0x4; 
+        packetBuffer[packetOffset + FLAGS_OFFSET] |= 0x4; 
     }
 
     public final void setHmac(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, HMAC_OFFSET, 2*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + HMAC_OFFSET, 2*ZRTP_WORD_SIZE);
     }
 
     public final void setIv(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, IV_OFFSET, 4*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + IV_OFFSET, 4*ZRTP_WORD_SIZE);
     }
         
     public final void setSasType(final byte[] data) { 
-        System.arraycopy(data, 0, packetBuffer, SAS_OFFSET, ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + SAS_OFFSET, ZRTP_WORD_SIZE);
     }
     
     public final void setTrustedSas(final byte[] data) {
-        System.arraycopy(data, 0, packetBuffer, TRUSTED_SAS_OFFSET, 8*ZRTP_WORD_SIZE);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + TRUSTED_SAS_OFFSET, 8*ZRTP_WORD_SIZE);
     }
     
     public final void setDataToSecure(final byte[] data) {
         // 9 is ZRTP_HEADER plus non secure confirm data       
         int length = (getLength() - 9) * ZRTP_WORD_SIZE;
-        System.arraycopy(data, 0, packetBuffer, FILLER_OFFSET, length);
+        System.arraycopy(data, 0, packetBuffer, packetOffset + FILLER_OFFSET, length);
     }
 
     @SuppressWarnings("unused")
@@ -183,7 +247,7 @@ public class ZrtpPacketSASRelay extends ZrtpPacketBase {
         if (data.length > signatureLength) {
             return;                                 // TODO throw exception here?
         }
-        System.arraycopy(data, 0, packetBuffer, SIG_DATA_OFFSET, data.length);       
+        System.arraycopy(data, 0, packetBuffer, packetOffset + SIG_DATA_OFFSET, data.length);       
     }
     
 //    /* ***
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp.utils;
+
+import java.math.BigInteger;
+
+/**
+ * Convert Curve25519 x-coordinates between Montgomery and Weierstrass form.
+ *
+ * ZRTP sends the E255 public value and computes the E255 shared secret as
+ * x-coordinate of the Weierstrass form of Curve25519 (big endian), the
+ * form the BouncyCastle EC classes use. The X25519 functions use the
+ * u-coordinate of the Montgomery form (little endian). Both forms are
+ * related by x = u + A/3 mod p with A = 486662.
+ *
+ * The functions work on 32 bit limbs and do not allocate memory.
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ *
+ */
+public class Curve25519Coordinates {
+
+    public static final int COORDINATE_SIZE = 32;
+
+    private static final int LIMBS = 8;
+
+    private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+
+    // p and A/3 mod p as little endian 32 bit limbs
+    private static final int[] P_LIMBS = toLimbs(P);
+    private static final int[] DELTA_LIMBS = toLimbs(BigInteger.valueOf(486662)
+            .multiply(BigInteger.valueOf(3).modInverse(P)).mod(P));
+
+    private static int[] toLimbs(BigInteger value) {
+        int[] limbs = new int[LIMBS];
+        for (int i = 0; i < LIMBS; i++) {
+            limbs[i] = value.shiftRight(32 * i).intValue();
+        }
+        return limbs;
+    }
+
+    /**
+     * Convert a Montgomery u-coordinate into a Weierstrass x-coordinate.
+     *
+     * @param u
+     *    u-coordinate, 32 bytes little endian, fully reduced as the X25519
+     *    functions return it
+     * @param uOff
+     *    offset of u-coordinate
+     * @param x
+     *    buffer for the x-coordinate, 32 bytes big endian
+     * @param xOff
+     *    offset of x-coordinate
+     */
+    public static void montgomeryToWeierstrass(byte[] u, int uOff, byte[] x, int xOff) {
+        int[] r = new int[LIMBS];
+        long carry = 0;
+        for (int i = 0; i < LIMBS; i++) {
+            carry += (readLittle(u, uOff + 4 * i) & 0xffffffffL) + (DELTA_LIMBS[i] & 0xffffffffL);
+            r[i] = (int)carry;
+            carry >>>= 32;
+        }
+        // u < p and delta < p, thus the sum is less than 2p
+        if (carry != 0 || compare(r, P_LIMBS) >= 0) {
+            subtract(r, P_LIMBS);
+        }
+        for (int i = 0; i < LIMBS; i++) {
+            writeBig(r[i], x, xOff + COORDINATE_SIZE - 4 * (i + 1));
+        }
+        java.util.Arrays.fill(r, 0);
+    }
+
+    /**
+     * Convert a Weierstrass x-coordinate into a Montgomery u-coordinate.
+     *
+     * @param x
+     *    x-coordinate, 32 bytes big endian
+     * @param xOff
+     *    offset of x-coordinate
+     * @param u
+     *    buffer for the u-coordinate, 32 bytes little endian
+     * @param uOff
+     *    offset of u-coordinate
+     * @return
+     *    false if x is not a valid field element (x &gt;= p), true otherwise
+     */
+    public static boolean weierstrassToMontgomery(byte[] x, int xOff, byte[] u, int uOff) {
+        int[] r = new int[LIMBS];
+        for (int i = 0; i < LIMBS; i++) {
+            r[i] = readBig(x, xOff + COORDINATE_SIZE - 4 * (i + 1));
+        }
+        if (compare(r, P_LIMBS) >= 0) {
+            return false;
+        }
+        if (subtract(r, DELTA_LIMBS) != 0) {
+            // x < delta, add p to get back into the field
+            long carry = 0;
+            for (int i = 0; i < LIMBS; i++) {
+                carry += (r[i] & 0xffffffffL) + (P_LIMBS[i] & 0xffffffffL);
+                r[i] = (int)carry;
+                carry >>>= 32;
+            }
+        }
+        for (int i = 0; i < LIMBS; i++) {
+            writeLittle(r[i], u, uOff + 4 * i);
+        }
+        java.util.Arrays.fill(r, 0);
+        return true;
+    }
+
+    private static int compare(int[] a, int[] b) {
+        for (int i = LIMBS - 1; i >= 0; i--) {
+            int c = Integer.compare(a[i] ^ Integer.MIN_VALUE, b[i] ^ Integer.MIN_VALUE);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    // a = a - b, returns the borrow
+    private static int subtract(int[] a, int[] b) {
+        long borrow = 0;
+        for (int i = 0; i < LIMBS; i++) {
+            borrow += (a[i] & 0xffffffffL) - (b[i] & 0xffffffffL);
+            a[i] = (int)borrow;
+            borrow >>= 32;
+        }
+        return (int)borrow;
+    }
+
+    private static int readLittle(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+    }
+
+    private static void writeLittle(int v, byte[] b, int off) {
+        b[off] = (byte)v;
+        b[off + 1] = (byte)(v >> 8);
+        b[off + 2] = (byte)(v >> 16);
+        b[off + 3] = (byte)(v >> 24);
+    }
+
+    private static int readBig(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private static void writeBig(int v, byte[] b, int off) {
+        b[off] = (byte)(v >> 24);
+        b[off + 1] = (byte)(v >> 16);
+        b[off + 2] = (byte)(v >> 8);
+        b[off + 3] = (byte)v;
+    }
+}
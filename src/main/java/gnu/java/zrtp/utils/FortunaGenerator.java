@@ -74,6 +74,13 @@ import org.bouncycastle.crypto.prng.RandomGenerator;
  * extent of seed file management, however, and those using this class are
  * encouraged to think deeply about when, how often, and where to store the
  * seed.</dd>
+ * <dt>Buffered Mode</dt>
+ * <dd>The generator serves random data from a buffer and changes the
+ * generator key each time it refills the buffer. Applications that request
+ * many small amounts of random data, for example ZRTP nonces and IVs, may
+ * use a larger buffer, see {@link #FortunaGenerator(byte[], int)}, to reduce
+ * the number of key changes. The generator clears each byte it hands out,
+ * thus the buffer contains no data that the generator returned before.</dd>
  * </dl>
  * <p>
  * <b>References:</b>
@@ -140,6 +147,11 @@ public class FortunaGenerator implements RandomGenerator {
     private static final int SEED_FILE_SIZE = 64;
     private static final int NUM_POOLS = 32;
     private static final int MIN_POOL_SIZE = 64;
+    private static final int DEFAULT_BUFFER_SIZE = 256;
+
+    /** The buffer size that the buffered mode uses. */
+    public static final int BUFFERED_SIZE = 4096;
+
     private final Generator generator;
     private final Digest[] pools;
     private long lastReseed = 0;
@@ -159,11 +171,28 @@ public class FortunaGenerator implements RandomGenerator {
     }
     
     public FortunaGenerator(byte[] seed) {
+        this(seed, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create a Fortuna generator with a specific buffer size.
+     * <p>
+     * The generator changes its key after it filled the buffer. A larger
+     * buffer reduces the number of key changes if the application requests
+     * many small amounts of random data. {@link #BUFFERED_SIZE} is a good
+     * size for this.
+     *
+     * @param seed the initial seed, may be null.
+     * @param bufferSize the buffer size, rounded up to the cipher's block size.
+     */
+    public FortunaGenerator(byte[] seed, int bufferSize) {
         generator = new Generator(new AESEngine(), new SHA256Digest());
         pools = new Digest[NUM_POOLS];
         for (int i = 0; i < NUM_POOLS; i++)
             pools[i] = new SHA256Digest();
-        buffer = new byte[256];	
+        int blockSize = generator.cipher.getBlockSize();
+        bufferSize = Math.max(bufferSize, blockSize);
+        buffer = new byte[(bufferSize + blockSize - 1) / blockSize * blockSize];
     	if (seed != null) {
     		generator.init(seed);
     		fillBlock();
@@ -234,6 +263,8 @@ public class FortunaGenerator implements RandomGenerator {
         while (count < length) {
             int amount = Math.min(buffer.length - ndx, length - count);
             System.arraycopy(buffer, ndx, out, offset + count, amount);
+            // Don't keep data that we handed out
+            Arrays.fill(buffer, ndx, ndx + amount, (byte) 0);
             count += amount;
             ndx += amount;
             if (ndx >= buffer.length) {
@@ -370,6 +401,23 @@ public class FortunaGenerator implements RandomGenerator {
         initialized = true;
     }
 
+    /**
+     * Reseed the generator with external seed data.
+     * <p>
+     * Other than setSeedStatus() this function keeps the current generator
+     * state and mixes the seed into the generator key, the same way the
+     * generator uses the entropy pools during a re-seed. The function drops
+     * the buffered random data.
+     *
+     * @param seed the seed data, for example from another Fortuna generator.
+     */
+    public void reseed(byte[] seed) {
+        generator.addRandomBytes(seed, 0, seed.length);
+        fillBlock();
+        ndx = 0;
+        initialized = true;
+    }
+
     /**
      * The Fortuna generator function. The generator is a PRNG in its own right;
      * Fortuna itself is basically a wrapper around this generator that manages
@@ -404,10 +452,11 @@ public class FortunaGenerator implements RandomGenerator {
                 int amount = Math.min(LIMIT, length - count);
                 nextBytesInternal(out, offset + count, amount);
                 count += amount;
+                // The key length is a multiple of the block size, encrypt
+                // the counter directly into the new key
                 for (int i = 0; i < key.length; i += counter.length) {
-                    fillBlock();
-                    int l = Math.min(key.length - i, cipher.getBlockSize());
-                    System.arraycopy(buffer, 0, key, i, l);
+                    cipher.processBlock(counter, 0, key, i);
+                    incrementCounter();
                 }
                 resetKey();
             } while (count < length);
@@ -459,6 +508,13 @@ public class FortunaGenerator implements RandomGenerator {
                 count += amount;
                 ndx += amount;
                 if (ndx >= buffer.length) {
+                    // Fast path: encrypt the counter of whole blocks
+                    // directly into the output
+                    while (length - count >= buffer.length) {
+                        cipher.processBlock(counter, 0, out, offset + count);
+                        incrementCounter();
+                        count += buffer.length;
+                    }
                     fillBlock();
                     ndx = 0;
                 }
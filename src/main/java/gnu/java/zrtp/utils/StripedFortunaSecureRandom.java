@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp.utils;
+
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A SecureRandom that uses a striped pool of Fortuna generators.
+ *
+ * SecureRandom serializes all calls to nextBytes(), thus parallel ZRTP
+ * handshakes that share one FortunaSecureRandom wait for each other. This
+ * class uses several independent Fortuna generators (stripes), each
+ * protected by its own lock. A thread uses the stripe selected by its
+ * thread id. If another thread holds this lock the thread tries the other
+ * stripes before it waits.
+ *
+ * Each stripe gets its own seed from the system's SecureRandom. A shared
+ * Fortuna generator, the accumulator, collects the seed data that the
+ * application adds with setSeed(). A stripe takes new seed data from the
+ * accumulator after some time or after it produced some amount of random
+ * data. The stripes use the buffered mode of the Fortuna generator
+ * because ZRTP requests many small amounts of random data.
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ */
+public class StripedFortunaSecureRandom extends SecureRandom {
+
+    private final StripedSpi spi;
+
+    /**
+     * Create a SecureRandom with two stripes per available processor.
+     */
+    public StripedFortunaSecureRandom() {
+        this(2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a SecureRandom with a number of stripes.
+     *
+     * @param stripes
+     *    The number of Fortuna generators, rounded up to a power of two,
+     *    max 64.
+     */
+    public StripedFortunaSecureRandom(int stripes) {
+        this(new StripedSpi(stripes, null));
+    }
+
+    /**
+     * Create a SecureRandom from a saved seed status.
+     *
+     * The accumulator and the stripes get their seed from the seed status,
+     * see getSeedStatus(), thus the constructor does not wait for the
+     * system's SecureRandom. Use a seed status only once, save a new seed
+     * status right after this, see ZrtpEntropyHarvester.
+     *
+     * @param stripes
+     *    The number of Fortuna generators, rounded up to a power of two,
+     *    max 64.
+     * @param seedStatus
+     *    The saved seed status, null to seed from the system's SecureRandom.
+     */
+    public StripedFortunaSecureRandom(int stripes, byte[] seedStatus) {
+        this(new StripedSpi(stripes, seedStatus));
+    }
+
+    private StripedFortunaSecureRandom(StripedSpi spi) {
+        super(spi, null);
+        this.spi = spi;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return "Fortuna";
+    }
+
+    @Override
+    public void nextBytes(byte[] bytes) {
+        spi.engineNextBytes(bytes);
+    }
+
+    @Override
+    public void setSeed(byte[] seed) {
+        spi.engineSetSeed(seed);
+    }
+
+    @Override
+    public byte[] generateSeed(int numBytes) {
+        return spi.engineGenerateSeed(numBytes);
+    }
+
+    /**
+     * Adds entropy data to an entropy pool of the accumulator.
+     *
+     * @param poolNumber specifies which pool receives the entropy data, 0 - 31
+     * @param data buffer with new entropy data.
+     * @param offset offset into the buffer
+     * @param length number of bytes to add to the pool.
+     * @see FortunaGenerator#addSeedMaterial(int, byte[], int, int)
+     */
+    public void addSeedMaterial(int poolNumber, byte[] data, int offset, int length) {
+        spi.accumulatorLock.lock();
+        try {
+            spi.accumulator.addSeedMaterial(poolNumber, data, offset, length);
+        } finally {
+            spi.accumulatorLock.unlock();
+        }
+    }
+
+    /**
+     * Return the accumulator's seed status.
+     *
+     * An application may store the seed status and use it to create the
+     * SecureRandom after a restart.
+     *
+     * @return The seed status.
+     */
+    public byte[] getSeedStatus() {
+        spi.accumulatorLock.lock();
+        try {
+            return spi.accumulator.getSeedStatus();
+        } finally {
+            spi.accumulatorLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of Fortuna generators.
+     */
+    @SuppressWarnings("unused")
+    public int getStripes() {
+        return spi.stripes.length;
+    }
+
+    private static class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final FortunaGenerator fortuna;
+        private long lastReseed;
+        private long bytesSinceReseed;
+
+        private Stripe(byte[] seed) {
+            fortuna = new FortunaGenerator(seed, FortunaGenerator.BUFFERED_SIZE);
+            lastReseed = System.currentTimeMillis();
+        }
+    }
+
+    private static class StripedSpi extends SecureRandomSpi {
+
+        /*
+         * A stripe reseeds from the accumulator after this time or after
+         * it produced this number of bytes.
+         */
+        private static final long RESEED_INTERVAL = 10000;
+        private static final long RESEED_BYTES = 1 << 20;
+        private static final int RESEED_SIZE = 32;
+        private static final int MAX_STRIPES = 64;
+
+        private final Stripe[] stripes;
+        private final int mask;
+
+        private final FortunaGenerator accumulator;
+        private final ReentrantLock accumulatorLock = new ReentrantLock();
+
+        private StripedSpi(int count, byte[] seedStatus) {
+            int size = 1;
+            while (size < count && size < MAX_STRIPES) {
+                size <<= 1;
+            }
+            mask = size - 1;
+            stripes = new Stripe[size];
+            if (seedStatus == null) {
+                accumulator = new FortunaGenerator(engineGenerateSeed(256));
+                for (int i = 0; i < size; i++) {
+                    stripes[i] = new Stripe(engineGenerateSeed(256));
+                }
+                return;
+            }
+            // Mix in the time in case the application uses a seed status twice
+            accumulator = new FortunaGenerator(seedStatus);
+            byte[] time = new byte[8];
+            ZrtpUtils.int32ToArrayInPlace((int) System.nanoTime(), time, 0);
+            ZrtpUtils.int32ToArrayInPlace((int) System.currentTimeMillis(), time, 4);
+            accumulator.reseed(time);
+            for (int i = 0; i < size; i++) {
+                byte[] seed = new byte[64];
+                accumulator.nextBytes(seed, 0, seed.length);
+                stripes[i] = new Stripe(seed);
+            }
+        }
+
+        @Override
+        protected byte[] engineGenerateSeed(int numBytes) {
+            byte[] someData = new byte[numBytes];
+            new SecureRandom().nextBytes(someData);
+            return someData;
+        }
+
+        @Override
+        protected void engineNextBytes(byte[] bytes) {
+            Stripe stripe = lockStripe();
+            try {
+                long now = System.currentTimeMillis();
+                if (stripe.bytesSinceReseed >= RESEED_BYTES || now - stripe.lastReseed >= RESEED_INTERVAL) {
+                    stripe.fortuna.reseed(accumulatorBytes());
+                    stripe.lastReseed = now;
+                    stripe.bytesSinceReseed = 0;
+                }
+                stripe.fortuna.nextBytes(bytes, 0, bytes.length);
+                stripe.bytesSinceReseed += bytes.length;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+
+        @Override
+        protected void engineSetSeed(byte[] seed) {
+            accumulatorLock.lock();
+            try {
+                accumulator.addSeedMaterial(seed);
+            } finally {
+                accumulatorLock.unlock();
+            }
+        }
+
+        /*
+         * Lock the thread's stripe, if it is busy try the other stripes
+         * before waiting for the thread's stripe.
+         */
+        private Stripe lockStripe() {
+            int home = (int) Thread.currentThread().getId() & mask;
+            for (int i = 0; i <= mask; i++) {
+                Stripe stripe = stripes[(home + i) & mask];
+                if (stripe.lock.tryLock()) {
+                    return stripe;
+                }
+            }
+            Stripe stripe = stripes[home];
+            stripe.lock.lock();
+            return stripe;
+        }
+
+        private byte[] accumulatorBytes() {
+            byte[] seed = new byte[RESEED_SIZE];
+            accumulatorLock.lock();
+            try {
+                accumulator.nextBytes(seed, 0, seed.length);
+            } finally {
+                accumulatorLock.unlock();
+            }
+            return seed;
+        }
+    }
+}
@@ -65,12 +65,54 @@
 
 package gnu.java.zrtp.utils;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
 /**
+ * CRC-32C (Castagnoli) checksum of ZRTP packets.
+ *
+ * The class computes the CRC with the slice-by-8 algorithm, it processes
+ * 8 bytes per step using 8 tables. On Java 9 and later zrtpGenerateCksum()
+ * uses java.util.zip.CRC32C, the JVM computes this CRC with the CPU's
+ * CRC32C instruction if available. The library is compiled for Java 8, thus
+ * it looks up the JDK class at runtime.
+ *
+ * The zrtpUpdateCksum() methods compute the CRC incrementally: start with
+ * ~0, call zrtpUpdateCksum() for each part of the data and use
+ * zrtpEndCksum() to get the CRC.
+ *
  * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
  *
  */
 public class ZrtpCrc32 {
 
+    /*
+     * Use the JDK CRC32C for data of at least this length, shorter data
+     * is faster with the tables.
+     */
+    private static final int JDK_CRC_MIN_LENGTH = 32;
+
+    /*
+     * Creates a java.util.zip.CRC32C, null on Java 8.
+     */
+    private static final MethodHandle newJdkCrc32c = lookupJdkCrc32c();
+
+    private static MethodHandle lookupJdkCrc32c()
+    {
+        try {
+            Class<?> crcClass = Class.forName("java.util.zip.CRC32C");
+            return MethodHandles.publicLookup()
+                    .findConstructor(crcClass, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
     private static int CRC32C(int crc32, byte d)
     {
         return (crc32>>>8)^crc_c[(crc32^d)&0xFF];
@@ -162,6 +204,39 @@ public class ZrtpCrc32 {
         0xBE2DA0A5, 0x4C4623A6, 0x5F16D052, 0xAD7D5351,
     };
 
+    /*
+     * The slice-by-8 tables, crc_8[0] is crc_c, crc_8[k] is the CRC of a
+     * byte followed by k zero bytes.
+     */
+    private static final int crc_8[][] = new int[8][];
+
+    static {
+        crc_8[0] = crc_c;
+        for (int k = 1; k < 8; k++) {
+            crc_8[k] = new int[256];
+            for (int i = 0; i < 256; i++) {
+                int c = crc_8[k-1][i];
+                crc_8[k][i] = (c >>> 8) ^ crc_c[c & 0xFF];
+            }
+        }
+    }
+
+    private static final int[] t0 = crc_8[0], t1 = crc_8[1], t2 = crc_8[2], t3 = crc_8[3];
+    private static final int[] t4 = crc_8[4], t5 = crc_8[5], t6 = crc_8[6], t7 = crc_8[7];
+
+    private static int slice8(int crc32, int lo, int hi)
+    {
+        lo ^= crc32;
+        return t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF] ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+                ^ t3[hi & 0xFF] ^ t2[(hi >>> 8) & 0xFF] ^ t1[(hi >>> 16) & 0xFF] ^ t0[hi >>> 24];
+    }
+
+    private static int readIntLE(byte[] buffer, int off)
+    {
+        return (buffer[off] & 0xFF) | ((buffer[off+1] & 0xFF) << 8)
+                | ((buffer[off+2] & 0xFF) << 16) | (buffer[off+3] << 24);
+    }
+
     public static boolean zrtpCheckCksum(byte[] buffer, int off, int len, int crc32)
     {
         int chksum = zrtpGenerateCksum(buffer, off, len);
@@ -170,14 +245,92 @@ public class ZrtpCrc32 {
         return (crc32 == chksum);
     }
 
+    public static boolean zrtpCheckCksum(ByteBuffer buffer, int crc32)
+    {
+        int chksum = zrtpGenerateCksum(buffer);
+        chksum = zrtpEndCksum(chksum);
+        return (crc32 == chksum);
+    }
+
     public static int zrtpGenerateCksum(byte[] buffer, int off, int len)
     {
-        int crc32 = ~0;
+        if (newJdkCrc32c != null && len >= JDK_CRC_MIN_LENGTH) {
+            try {
+                Checksum crc = (Checksum) newJdkCrc32c.invokeExact();
+                crc.update(buffer, off, len);
+                return ~(int) crc.getValue();
+            } catch (Throwable e) {
+                // fall back to the tables
+            }
+        }
+        return zrtpUpdateCksum(~0, buffer, off, len);
+    }
+
+    /**
+     * Compute the CRC of the remaining bytes of a buffer.
+     *
+     * The method does not change the buffer's position.
+     *
+     * @param buffer the data
+     * @return the CRC, use zrtpEndCksum() to get the checksum
+     */
+    public static int zrtpGenerateCksum(ByteBuffer buffer)
+    {
+        if (buffer.hasArray()) {
+            return zrtpGenerateCksum(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return zrtpUpdateCksum(~0, buffer.duplicate());
+    }
 
-        /* Calculate the CRC. */
-        for (int i = 0; i < len ; i++)
-            crc32 = CRC32C(crc32, buffer[off+i]);
+    /**
+     * Add data to a CRC.
+     *
+     * @param crc32 the CRC of the previous data, ~0 for the first data
+     * @param buffer the data
+     * @param off offset of the data
+     * @param len length of the data
+     * @return the new CRC
+     */
+    public static int zrtpUpdateCksum(int crc32, byte[] buffer, int off, int len)
+    {
+        int end = off + len;
+        for (; off + 8 <= end; off += 8) {
+            crc32 = slice8(crc32, readIntLE(buffer, off), readIntLE(buffer, off + 4));
+        }
+        for (; off < end; off++) {
+            crc32 = CRC32C(crc32, buffer[off]);
+        }
+        return crc32;
+    }
 
+    /**
+     * Add the remaining bytes of a buffer to a CRC.
+     *
+     * The method sets the buffer's position to its limit.
+     *
+     * @param crc32 the CRC of the previous data, ~0 for the first data
+     * @param buffer the data
+     * @return the new CRC
+     */
+    public static int zrtpUpdateCksum(int crc32, ByteBuffer buffer)
+    {
+        int pos = buffer.position();
+        int limit = buffer.limit();
+        if (buffer.hasArray()) {
+            crc32 = zrtpUpdateCksum(crc32, buffer.array(), buffer.arrayOffset() + pos, limit - pos);
+        }
+        else {
+            ByteOrder order = buffer.order();
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            for (; pos + 8 <= limit; pos += 8) {
+                crc32 = slice8(crc32, buffer.getInt(pos), buffer.getInt(pos + 4));
+            }
+            buffer.order(order);
+            for (; pos < limit; pos++) {
+                crc32 = CRC32C(crc32, buffer.get(pos));
+            }
+        }
+        buffer.position(limit);
         return crc32;
     }
 
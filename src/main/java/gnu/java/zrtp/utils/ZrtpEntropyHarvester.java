@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Background entropy harvester and seed file for the Fortuna generators.
+ *
+ * The FortunaGenerator does not poll random sources itself. This class
+ * collects the timing of received ZRTP packets and some system data and
+ * adds them, one after the other, to the 32 entropy pools of a
+ * StripedFortunaSecureRandom. A background thread does this once per
+ * harvest interval, recording a packet timing only stores a timestamp.
+ *
+ * The harvester also stores the seed status in a seed file and restores
+ * it at startup. Thus the first handshake after a restart does not wait
+ * until the system's SecureRandom seeded the Fortuna generators. The
+ * harvester writes a new seed file right after it read the seed file and
+ * then periodically, and replaces the seed file atomically.
+ *
+ * Usually an application installs the harvester before it uses ZRTP:
+ *
+ * <pre>
+ *     ZrtpEntropyHarvester harvester = ZrtpEntropyHarvester.install(new File("zrtp.seed"));
+ *     ...
+ *     config.setEntropyHarvester(harvester);
+ *     ...
+ *     // before exit
+ *     harvester.stop();
+ * </pre>
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ */
+public class ZrtpEntropyHarvester {
+
+    private static final int NUM_POOLS = 32;
+    private static final int NUM_SAMPLES = 256;
+    private static final int MIN_SEED_SIZE = 32;
+    private static final int MAX_SEED_SIZE = 1024;
+
+    /*
+     * Add data of the system's SecureRandom and save the seed file every
+     * this number of harvest cycles.
+     */
+    private static final int SYSTEM_SEED_CYCLES = 60;
+    private static final int SAVE_CYCLES = 600;
+
+    private final StripedFortunaSecureRandom random;
+    private final File seedFile;
+    private final long interval;
+
+    /*
+     * Packet timestamps, the harvest thread reads them without
+     * synchronization, a lost or torn sample does not matter.
+     */
+    private final long[] samples = new long[NUM_SAMPLES];
+    private final AtomicInteger sampleIndex = new AtomicInteger();
+    private int harvestedIndex = 0;
+    private long lastSample = 0;
+
+    private final byte[] item = new byte[8];
+    private int pool = 0;
+    private long cycles = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition wakeup = lock.newCondition();
+    private Thread worker = null;
+
+    /**
+     * Create a harvester that restores the seed status from a seed file.
+     *
+     * If the seed file does not exist or is not valid the harvester seeds
+     * from the system's SecureRandom.
+     *
+     * @param seedFile
+     *    The seed file, null if the harvester shall not use a seed file.
+     */
+    public ZrtpEntropyHarvester(File seedFile) {
+        this(new StripedFortunaSecureRandom(2 * Runtime.getRuntime().availableProcessors(), readSeedFile(seedFile)),
+                seedFile, 1000);
+    }
+
+    /**
+     * Create a harvester for a SecureRandom.
+     *
+     * @param random
+     *    The SecureRandom that receives the entropy data.
+     * @param seedFile
+     *    The seed file, null if the harvester shall not use a seed file.
+     * @param interval
+     *    The harvest interval in milliseconds.
+     */
+    public ZrtpEntropyHarvester(StripedFortunaSecureRandom random, File seedFile, long interval) {
+        this.random = random;
+        this.seedFile = seedFile;
+        this.interval = (interval < 10) ? 10 : interval;
+    }
+
+    /**
+     * Create, install and start a harvester.
+     *
+     * The method restores the seed status from the seed file, sets the
+     * harvester's SecureRandom as ZRTP's SecureRandom and starts the
+     * harvester. Call this method before ZRTP uses random data.
+     *
+     * @param seedFile
+     *    The seed file, null if the harvester shall not use a seed file.
+     * @return
+     *    The started harvester.
+     * @throws java.security.InvalidParameterException
+     *    If ZRTP already uses a SecureRandom.
+     */
+    public static ZrtpEntropyHarvester install(File seedFile) {
+        ZrtpEntropyHarvester harvester = new ZrtpEntropyHarvester(seedFile);
+        ZrtpSecureRandom.setInstance(harvester.getSecureRandom());
+        harvester.start();
+        return harvester;
+    }
+
+    /**
+     * @return the SecureRandom that receives the entropy data.
+     */
+    public StripedFortunaSecureRandom getSecureRandom() {
+        return random;
+    }
+
+    /**
+     * Start the harvest thread.
+     *
+     * The harvest thread writes a new seed file when it starts.
+     */
+    public void start() {
+        lock.lock();
+        try {
+            if (worker != null) {
+                return;
+            }
+            worker = Executors.defaultThreadFactory().newThread(new Runnable() {
+                public void run() {
+                    harvestLoop();
+                }
+            });
+            worker.setName("ZRTP entropy harvester");
+            worker.setDaemon(true);
+            worker.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the harvest thread and save the seed file.
+     */
+    public void stop() {
+        Thread thread;
+        lock.lock();
+        try {
+            thread = worker;
+            worker = null;
+            wakeup.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        saveSeedFile();
+    }
+
+    /**
+     * Record the arrival time of a packet.
+     *
+     * ZRtp calls this method for each received ZRTP packet if the harvester
+     * is set in ZrtpConfigure. Applications may call it for other events
+     * with unpredictable timing, for example received RTP packets.
+     */
+    public void addPacketTiming() {
+        samples[sampleIndex.getAndIncrement() & (NUM_SAMPLES - 1)] = System.nanoTime();
+    }
+
+    /**
+     * Save the seed status in the seed file.
+     *
+     * The method writes a temporary file and moves it to the seed file.
+     * The method creates the temporary file with permissions that allow
+     * only the owner to read it.
+     *
+     * @return true if the seed file was written, false otherwise.
+     */
+    public boolean saveSeedFile() {
+        if (seedFile == null) {
+            return false;
+        }
+        File tmpFile = new File(seedFile.getPath() + ".tmp");
+        RandomAccessFile tmp = null;
+        try {
+            // A stale temporary file may have other permissions
+            ZrtpUtils.createOwnerOnlyFile(tmpFile);
+            tmp = new RandomAccessFile(tmpFile, "rw");
+            tmp.write(random.getSeedStatus());
+            tmp.getChannel().force(true);
+            tmp.close();
+            tmp = null;
+            try {
+                Files.move(tmpFile.toPath(), seedFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), seedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            if (tmp != null) {
+                try {
+                    tmp.close();
+                } catch (IOException e1) {
+                    // ignore
+                }
+            }
+            tmpFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Read a seed file.
+     *
+     * @param seedFile
+     *    The seed file, may be null.
+     * @return
+     *    The seed status or null if the seed file does not exist or is not
+     *    valid.
+     */
+    public static byte[] readSeedFile(File seedFile) {
+        if (seedFile == null || !seedFile.isFile()) {
+            return null;
+        }
+        long length = seedFile.length();
+        if (length < MIN_SEED_SIZE || length > MAX_SEED_SIZE) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(seedFile.toPath());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void harvestLoop() {
+        Thread self = Thread.currentThread();
+        // Never use the same seed status twice
+        saveSeedFile();
+        while (true) {
+            harvest();
+            lock.lock();
+            try {
+                if (worker != self) {
+                    return;
+                }
+                wakeup.await(interval, TimeUnit.MILLISECONDS);
+                if (worker != self) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /*
+     * Add the packet timings and the system data to the pools, one pool
+     * after the other.
+     */
+    private void harvest() {
+        int end = sampleIndex.get();
+        if (end - harvestedIndex > NUM_SAMPLES) {
+            harvestedIndex = end - NUM_SAMPLES;
+        }
+        for (; harvestedIndex != end; harvestedIndex++) {
+            long sample = samples[harvestedIndex & (NUM_SAMPLES - 1)];
+            // The jitter is in the low bits of the time between packets
+            addItem(sample - lastSample);
+            lastSample = sample;
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        addItem(System.nanoTime());
+        addItem(System.currentTimeMillis());
+        addItem(runtime.freeMemory() ^ ((long) Thread.activeCount() << 32));
+        addItem(System.identityHashCode(new Object()));
+
+        if (cycles % SYSTEM_SEED_CYCLES == 0) {
+            byte[] seed = new SecureRandom().generateSeed(MIN_SEED_SIZE);
+            for (int i = 0; i < seed.length; i += item.length) {
+                random.addSeedMaterial(pool, seed, i, item.length);
+                pool = (pool + 1) % NUM_POOLS;
+            }
+        }
+        addItem(System.nanoTime());
+        cycles++;
+        if (cycles % SAVE_CYCLES == 0) {
+            saveSeedFile();
+        }
+    }
+
+    private void addItem(long value) {
+        for (int i = 0; i < item.length; i++) {
+            item[i] = (byte) (value >> (i * 8));
+        }
+        random.addSeedMaterial(pool, item, 0, item.length);
+        pool = (pool + 1) % NUM_POOLS;
+    }
+}
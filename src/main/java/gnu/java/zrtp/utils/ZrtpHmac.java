@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp.utils;
+
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * A HMAC that keeps its key between computations.
+ *
+ * The Bouncycastle HMac stores copies (Memoable) of the digest states
+ * after it processed the inner and outer key pads and restores these
+ * states after each MAC. Thus a HMac that uses the same key again only
+ * needs to restore the states. This class remembers the current key and
+ * initializes the HMac only if the key changes, for example the KDF uses
+ * the same key for all SRTP keys. The class does not allocate memory if
+ * the key does not change.
+ *
+ * Objects of this class are not thread safe.
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ */
+public final class ZrtpHmac {
+
+    private final HMac hmac;
+
+    private final byte[] key = new byte[128];
+    private int keyLength = -1;
+
+    /*
+     * True if the HMac processed data after init() or doFinal()
+     */
+    private boolean dirty = false;
+
+    /**
+     * Create a HMAC.
+     *
+     * @param digest the digest to use, must implement Memoable to reuse
+     *               the keyed states.
+     */
+    public ZrtpHmac(Digest digest) {
+        hmac = new HMac(digest);
+    }
+
+    /**
+     * Set the key, resets the HMAC.
+     *
+     * @param keyIn buffer that holds the key
+     * @param offset offset of the key
+     * @param length length of the key
+     */
+    public void init(byte[] keyIn, int offset, int length) {
+        if (length == keyLength && sameKey(keyIn, offset, length)) {
+            // doFinal() already restored the keyed state
+            if (dirty) {
+                hmac.reset();
+                dirty = false;
+            }
+            return;
+        }
+        hmac.init(new KeyParameter(keyIn, offset, length));
+        dirty = false;
+        if (length <= key.length) {
+            System.arraycopy(keyIn, offset, key, 0, length);
+            keyLength = length;
+        }
+        else {
+            keyLength = -1;
+        }
+    }
+
+    public void update(byte[] in, int offset, int length) {
+        hmac.update(in, offset, length);
+        dirty = true;
+    }
+
+    /**
+     * Compute the MAC and reset the HMAC to the current key.
+     *
+     * @param out buffer that receives the MAC
+     * @param offset offset in the buffer
+     * @return the length of the MAC
+     */
+    public int doFinal(byte[] out, int offset) {
+        dirty = false;
+        return hmac.doFinal(out, offset);
+    }
+
+    public int getMacSize() {
+        return hmac.getMacSize();
+    }
+
+    /**
+     * Forget the key.
+     *
+     * Clears the stored copy of the key, the next init() initializes the
+     * HMAC again.
+     */
+    public void clearKey() {
+        Arrays.fill(key, (byte) 0);
+        keyLength = -1;
+    }
+
+    private boolean sameKey(byte[] keyIn, int offset, int length) {
+        int diff = 0;
+        for (int i = 0; i < length; i++) {
+            diff |= key[i] ^ keyIn[offset + i];
+        }
+        return diff == 0;
+    }
+}
@@ -22,13 +22,16 @@ import java.security.SecureRandom;
 /**
  * Utility class that provides a singleton for secure random numbers
  * inside the entire ZRTP library.
+ *
+ * The default singleton is a StripedFortunaSecureRandom, thus threads that
+ * run parallel handshakes do not wait for each other.
  */
 public class ZrtpSecureRandom extends SecureRandom {
     private static SecureRandom instance;
 
     public static synchronized SecureRandom getInstance() {
         if (instance == null) {
-            instance = new FortunaSecureRandom();
+            instance = new StripedFortunaSecureRandom();
         }
 
         return instance;
@@ -19,6 +19,12 @@
 
 package gnu.java.zrtp.utils;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
 /**
  * Some helpful functions, all public static
  * 
@@ -204,6 +210,30 @@ public class ZrtpUtils {
         }
         return 0;
     }
+
+    /**
+     * Create a new, empty file that only the owner may read and write.
+     *
+     * On POSIX file systems the file gets these permissions when it is
+     * created, thus other users never see its content. A stale file of the
+     * same name is deleted first.
+     *
+     * @param file the file to create
+     * @throws IOException if the file cannot be created
+     */
+    public static void createOwnerOnlyFile(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(file.toPath(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            return;
+        }
+        Files.createFile(file.toPath());
+        file.setReadable(false, false);
+        file.setWritable(false, false);
+        file.setReadable(true, true);
+        file.setWritable(true, true);
+    }
    
 //    public static void main(String argv[]) {
 //        byte[] a = new byte[256];
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp.zidfile;
+
+/**
+ * Interface of the ZID cache that stores the ZID records of the peers.
+ *
+ * ZRtp uses this interface to get and to save the ZID record of the
+ * peer. An application may set its own ZID cache implementation using
+ * ZrtpConfigure or the ZRtp constructor. If the application does not
+ * set a ZID cache then ZRtp uses the ZidFile singleton.
+ *
+ * Implementations must be thread safe, several ZRtp sessions may use
+ * the same ZID cache concurrently.
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ *
+ */
+public interface ZidCache {
+
+    /**
+     * Get a ZID record from the cache.
+     *
+     * If no matching record exists in the cache the method creates it and
+     * fills it with default values.
+     *
+     * The returned record is a copy, changes become visible in the cache
+     * only after saveRecord().
+     *
+     * @param zid
+     *            the peer's ZID
+     * @return The existing or created ZID record or null in case of
+     *         problems.
+     */
+    ZidRecord getRecord(byte[] zid);
+
+    /**
+     * Save a ZID record into the cache.
+     *
+     * Before you can save the ZID record you must have performed a
+     * getRecord() first.
+     *
+     * @param zidRecord
+     *    The ZID record to save.
+     * @return
+     *    1 on success, -1 on failure
+     */
+    int saveRecord(ZidRecord zidRecord);
+
+    /**
+     * Get the own ZID associated with this ZID cache.
+     *
+     * @return
+     *    The own ZID
+     */
+    byte[] getZid();
+
+    /**
+     * Check if the ZID cache is ready to use.
+     *
+     * @return
+     *    True if the ZID cache is open, false otherwise
+     */
+    boolean isOpen();
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp.zidfile;
+
+import gnu.java.zrtp.utils.ZrtpSecureRandom;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ZID cache that keeps the ZID records in memory only.
+ *
+ * The records are stored in a ConcurrentHashMap. The map locks only the
+ * hash bin of a record, thus sessions that access records of different
+ * peers do not block each other. Each instance is an independent ZID
+ * cache, for example one per tenant. The cache does not survive a
+ * restart of the application.
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ *
+ */
+public class ZidCacheMemory implements ZidCache {
+
+    private static final int ZID_RECORD_LENGTH = 128;
+
+    private final byte[] associatedZid = new byte[ZidRecord.IDENTIFIER_LENGTH];
+
+    private final ConcurrentHashMap<ZidKey, byte[]> records;
+
+    /**
+     * Create an in-memory ZID cache with a new random own ZID.
+     */
+    public ZidCacheMemory() {
+        this(null);
+    }
+
+    /**
+     * Create an in-memory ZID cache.
+     *
+     * @param ownZid
+     *    the own ZID to use, if null generate a random ZID
+     */
+    public ZidCacheMemory(byte[] ownZid) {
+        this(ownZid, 16);
+    }
+
+    /**
+     * Create an in-memory ZID cache.
+     *
+     * @param ownZid
+     *    the own ZID to use, if null generate a random ZID
+     * @param concurrency
+     *    estimated number of threads that use the cache concurrently
+     */
+    public ZidCacheMemory(byte[] ownZid, int concurrency) {
+        if (ownZid == null) {
+            ZrtpSecureRandom.getInstance().nextBytes(associatedZid);
+        }
+        else {
+            System.arraycopy(ownZid, 0, associatedZid, 0, ZidRecord.IDENTIFIER_LENGTH);
+        }
+        records = new ConcurrentHashMap<ZidKey, byte[]>(64, 0.75f, concurrency);
+    }
+
+    public ZidRecord getRecord(byte[] zid) {
+        byte[] stored = records.get(new ZidKey(zid));
+        if (stored == null) {
+            ZidRecord rec = new ZidRecord();
+            rec.setIdentifier(zid);
+            rec.setValid();
+            byte[] created = rec.getBuffer().clone();
+            stored = records.putIfAbsent(new ZidKey(zid), created);
+            if (stored == null) {
+                return rec;
+            }
+        }
+        ZidRecord rec = new ZidRecord();
+        synchronized (stored) {
+            System.arraycopy(stored, 0, rec.getBuffer(), 0, ZID_RECORD_LENGTH);
+        }
+        return rec;
+    }
+
+    public int saveRecord(ZidRecord zidRecord) {
+        byte[] update = zidRecord.getBuffer();
+        ZidKey key = new ZidKey(zidRecord.getIdentifier());
+        byte[] stored = records.get(key);
+        if (stored == null) {
+            stored = records.putIfAbsent(key, update.clone());
+            if (stored == null) {
+                return 1;
+            }
+        }
+        synchronized (stored) {
+            System.arraycopy(update, 0, stored, 0, ZID_RECORD_LENGTH);
+        }
+        return 1;
+    }
+
+    public byte[] getZid() {
+        return associatedZid;
+    }
+
+    public boolean isOpen() {
+        return true;
+    }
+
+    /**
+     * Get the number of ZID records in this cache.
+     *
+     * @return
+     *    number of ZID records
+     */
+    public int size() {
+        return records.size();
+    }
+}
@@ -26,15 +26,45 @@ import java.io.EOFException;
 import java.io.RandomAccessFile;
 import java.io.File;
 
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import gnu.java.zrtp.utils.ZrtpUtils;
 
 
 /**
+ * ZID cache that stores the ZID records in a file.
+ *
+ * Applications usually use the singleton instance, see getInstance().
+ * To use several ZID files at the same time create own instances and
+ * set them with ZrtpConfigure.setZidCache().
+ *
+ * Access to the records is not serialized on one monitor: getRecord()
+ * and saveRecord() lock only a stripe selected by the hash of the ZID
+ * and use positional file I/O, thus sessions that handle different
+ * peers run concurrently. Only open() and close() are exclusive.
+ *
  * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
  *
  */
 
-public class ZidFile {
+public class ZidFile implements ZidCache {
     
     /*
      * Copied from ZidRecord, keep in synch
@@ -42,16 +72,134 @@ public class ZidFile {
     private static final int IDENTIFIER_LENGTH = 12;
     private static final int ZID_RECORD_LENGTH = 128;
 
+    /*
+     * In memory mapped mode grow the mapping in steps of this number
+     * of records.
+     */
+    private static final int MAP_GROW_RECORDS = 1024;
+
+    /*
+     * Number of lock stripes for record access, must be a power of 2.
+     */
+    private static final int NUM_STRIPES = 64;
+
     /*
      * The ZID file instance (singleton)
      */
     private static ZidFile instance = null;
 
-    private RandomAccessFile zidFile;
+    private volatile RandomAccessFile zidFile;
+    private FileChannel zidChannel;
     private byte[] associatedZid = null;
-    
-    private ZidFile() {
+
+    /*
+     * Memory mapped mode: the mapped region of the ZID file and its size.
+     * The mapping is null if the ZID file uses normal file I/O.
+     */
+    private volatile MappedByteBuffer mappedZid = null;
+    private volatile long mappedLength = 0L;
+    private final ReentrantLock mapLock = new ReentrantLock();
+
+    /*
+     * File position behind the last used record, new records go here.
+     */
+    private final AtomicLong endOfRecords = new AtomicLong();
+
+    /*
+     * Index of all valid peer records: maps the identifier to the
+     * position of the record in the ZID file. Built in open(),
+     * updated when getRecord() appends a new record.
+     */
+    private final ConcurrentHashMap<ZidKey, Long> zidIndex = new ConcurrentHashMap<ZidKey, Long>();
+
+    /*
+     * Record access holds the read lock, open and close the write lock.
+     */
+    private final ReentrantReadWriteLock openLock = new ReentrantReadWriteLock();
+
+    /*
+     * Lock stripes, the hash of the ZID selects the stripe of a record. The
+     * stripe is held during file I/O, a lock instead of a monitor does not
+     * pin a virtual thread.
+     */
+    private final ReentrantLock[] stripes = new ReentrantLock[NUM_STRIPES];
+
+    /**
+     * Durability policies for ZID record updates.
+     *
+     * <ul>
+     * <li> NONE: leave it to the operating system when the data reaches the disk </li>
+     * <li> PERIODIC: force the data to disk at a fixed interval </li>
+     * <li> BATCH: force the data to disk after each batch of written records,
+     *      in synchronous mode after each saveRecord() </li>
+     * </ul>
+     */
+    public enum Durability {
+        NONE, PERIODIC, BATCH
+    }
+
+    private volatile Durability durability = Durability.NONE;
+    private volatile long forceInterval = 1000L;
+    private volatile long lastForce = 0L;
+
+    /*
+     * PERIODIC policy: true if written data was not yet forced to disk. A
+     * background thread forces the data when the interval elapsed, it
+     * terminates when there is no more data to force.
+     */
+    private volatile boolean unforced = false;
+    private final AtomicBoolean periodicForceRunning = new AtomicBoolean();
+
+    /*
+     * The error of the last failed background write or force, null if the
+     * last one succeeded.
+     */
+    private volatile IOException backgroundFailure = null;
+
+    /*
+     * A record update that the write-behind thread did not yet write.
+     */
+    private static final class PendingRecord {
+        final ZidKey key;
+        final byte[] data;
+
+        PendingRecord(ZidKey key, byte[] data) {
+            this.key = key;
+            this.data = data;
+        }
+    }
+
+    /*
+     * Write-behind data: pending record updates keyed by file position, a
+     * newer update of a record replaces an older one that is still pending.
+     */
+    private final ConcurrentHashMap<Long, PendingRecord> pendingRecords = new ConcurrentHashMap<Long, PendingRecord>();
+    private volatile WriteBehind writeBehind = null;
+
+    /*
+     * Last access of each record for the eviction policy of compact().
+     * Records not accessed since open() are older than accessed records.
+     */
+    private final ConcurrentHashMap<ZidKey, Long> lastAccess = new ConcurrentHashMap<ZidKey, Long>();
+    private final AtomicLong accessClock = new AtomicLong();
+
+    /*
+     * Name and mode of the open ZID file, compact() reopens the file.
+     */
+    private String zidFileName = null;
+    private boolean memoryMappedMode = false;
+    private final Object writeBehindLock = new Object();
+
+    /**
+     * Create a ZIDFile instance that is independent of the singleton.
+     *
+     * Use open() to open or create the ZID file of this instance.
+     */
+    public ZidFile() {
         associatedZid = new byte[IDENTIFIER_LENGTH];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
     }
     
     /**
@@ -117,7 +265,36 @@ public class ZidFile {
      * @return 1 if file could be opened/created, 0 if the ZID instance already
      *         has an open file, -1 if open/creation of file failed.
      */
-    public synchronized int open(String name) {
+    public int open(String name) {
+        return open(name, false);
+    }
+
+    /**
+     * Open the named ZID file, optionally in memory mapped mode.
+     *
+     * In memory mapped mode ZIDFile maps the ZID file into memory and
+     * reads and writes the ZID records directly in the mapped region.
+     * This avoids a system call for each record access and leaves the
+     * caching to the operating system. The mapping grows if getRecord()
+     * needs to add new records.
+     *
+     * @param name
+     *            The name of the ZID file to open or create
+     * @param memoryMapped
+     *            if true map the ZID file into memory
+     * @return 1 if file could be opened/created, 0 if the ZID instance already
+     *         has an open file, -1 if open/creation of file failed.
+     */
+    public int open(String name, boolean memoryMapped) {
+        openLock.writeLock().lock();
+        try {
+            return openLocked(name, memoryMapped);
+        } finally {
+            openLock.writeLock().unlock();
+        }
+    }
+
+    private int openLocked(String name, boolean memoryMapped) {
 
         // check for an already active ZID file
         if (zidFile != null) {
@@ -164,25 +341,173 @@ public class ZidFile {
                 return -1;
             }
             rec.getIdentifierInto(associatedZid);
+            zidChannel = zidFile.getChannel();
+            zidFileName = name;
+            memoryMappedMode = memoryMapped;
+            if (!buildIndex() || (memoryMapped && !mapZidFile(endOfRecords.get()))) {
+                close();
+                return -1;
+            }
         }
         return ((zidFile == null) ? -1 : 1);
     }
 
+    /*
+     * Read the ZID file once and record the position of each valid peer
+     * record. If the file contains more than one record for the same
+     * identifier keep the first one, as the former linear search did.
+     *
+     * Records that were never written (all zero, for example the unused
+     * tail of a memory mapped file) mark the end of the used records.
+     */
+    private boolean buildIndex() {
+        zidIndex.clear();
+        endOfRecords.set(ZID_RECORD_LENGTH);
+        ZidRecord rec = new ZidRecord();
+        try {
+            long length = zidFile.length();
+            zidFile.seek(ZID_RECORD_LENGTH);
+            for (long pos = ZID_RECORD_LENGTH; pos + ZID_RECORD_LENGTH <= length; pos += ZID_RECORD_LENGTH) {
+                zidFile.readFully(rec.getBuffer());
+                if (rec.getBuffer()[0] != 0) {
+                    endOfRecords.set(pos + ZID_RECORD_LENGTH);
+                }
+                if (rec.isOwnZIDRecord() || !rec.isValid()) {
+                    continue;
+                }
+                ZidKey key = new ZidKey(rec.getIdentifier());
+                if (!zidIndex.containsKey(key)) {
+                    zidIndex.put(key, pos);
+                }
+            }
+        } catch (IOException e) {
+            zidIndex.clear();
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Map (or re-map) the ZID file so that the mapping covers at least
+     * minLength bytes plus some space for new records. Mapping beyond the
+     * end of the file extends the file with zero filled, thus unused,
+     * records.
+     *
+     * A previous mapping stays valid, it shares the pages with the new
+     * mapping. Thus concurrent readers and writers may still use it.
+     */
+    private boolean mapZidFile(long minLength) {
+        mapLock.lock();
+        try {
+            if (mappedZid != null && minLength <= mappedLength) {
+                return true;
+            }
+            long length = minLength + MAP_GROW_RECORDS * ZID_RECORD_LENGTH;
+            try {
+                mappedZid = zidChannel.map(FileChannel.MapMode.READ_WRITE, 0L, length);
+            } catch (IOException e) {
+                mappedZid = null;
+                mappedLength = 0L;
+                return false;
+            }
+            mappedLength = length;
+            return true;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    /*
+     * Read the record at position pos into the buffer.
+     */
+    private void readRecord(long pos, byte[] buffer) throws IOException {
+        MappedByteBuffer mapped = mappedZid;
+        if (mapped != null) {
+            ByteBuffer view = mapped.duplicate();
+            view.position((int)pos);
+            view.get(buffer, 0, ZID_RECORD_LENGTH);
+            return;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(buffer, 0, ZID_RECORD_LENGTH);
+        while (bb.hasRemaining()) {
+            if (zidChannel.read(bb, pos + bb.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /*
+     * Write the buffer as record at position pos, grow the mapping in memory
+     * mapped mode if necessary.
+     */
+    private void writeRecord(long pos, byte[] buffer) throws IOException {
+        if (mappedZid != null) {
+            if (pos + ZID_RECORD_LENGTH > mappedLength && !mapZidFile(pos + ZID_RECORD_LENGTH)) {
+                throw new IOException("Cannot map ZID file");
+            }
+            ByteBuffer view = mappedZid.duplicate();
+            view.position((int)pos);
+            view.put(buffer, 0, ZID_RECORD_LENGTH);
+            return;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(buffer, 0, ZID_RECORD_LENGTH);
+        while (bb.hasRemaining()) {
+            zidChannel.write(bb, pos + bb.position());
+        }
+    }
+
+    private ReentrantLock stripeOf(ZidKey key) {
+        return stripes[key.hashCode() & (NUM_STRIPES - 1)];
+    }
+
     /**
      * Check if ZIDFile has an active (open) file.
      *
      * @return
      *    True if ZIDFile has an active file, false otherwise
      */
-    public synchronized boolean isOpen() { 
+    public boolean isOpen() { 
         return (zidFile != null); 
     }
 
      /**
          * Close the ZID file. Closes the ZID file, and prepares to open a new
          * ZID file.
+         *
+         * Close disables write-behind and writes all queued record updates.
          */
-    public synchronized void close() {
+    public void close() {
+        setWriteBehind(false, 0L);
+        openLock.writeLock().lock();
+        try {
+            closeLocked();
+            lastAccess.clear();
+        } finally {
+            openLock.writeLock().unlock();
+        }
+    }
+
+    private void closeLocked() {
+        if (unforced && mappedZid == null && zidChannel != null) {
+            try {
+                force();
+            } catch (IOException e) {
+                // ignore, close anyway
+            }
+        }
+        unforced = false;
+        if (mappedZid != null) {
+            mappedZid.force();
+            mappedZid = null;
+            mappedLength = 0L;
+            // remove the unused tail of the mapping, ignore failures because
+            // unused records are skipped anyway
+            try {
+                zidChannel.truncate(endOfRecords.get());
+            } catch (IOException e) {
+                // ignore
+            }
+        }
         if (zidFile != null) {
             try {
                 zidFile.close();
@@ -192,6 +517,8 @@ public class ZidFile {
             }
             zidFile = null;
         }
+        zidChannel = null;
+        zidIndex.clear();
     }
 
     /**
@@ -209,83 +536,558 @@ public class ZidFile {
      * @return The existing or created ZID record or null in case of I/O
      *         problems.
      */
-    public synchronized ZidRecord getRecord(byte[] zid) {
-        long pos = 0L;
+    public ZidRecord getRecord(byte[] zid) {
+        ZidKey key = new ZidKey(zid);
+
+        openLock.readLock().lock();
+        try {
+            if (zidFile == null) {
+                return null;
+            }
+            ReentrantLock stripe = stripeOf(key);
+            stripe.lock();
+            try {
+                return getRecordLocked(zid, key);
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            openLock.readLock().unlock();
+        }
+    }
+
+    private ZidRecord getRecordLocked(byte[] zid, ZidKey key) {
         ZidRecord rec = new ZidRecord();
-        boolean numRead = false;
+        lastAccess.put(key, accessClock.incrementAndGet());
+        Long indexed = zidIndex.get(key);
 
-        // set read pointer behind first record, then read record
-        // the very first record is the "own" zid record.
+        if (indexed != null) {
+            long pos = indexed;
+            PendingRecord pending = pendingRecords.get(pos);
+            if (pending != null) {
+                System.arraycopy(pending.data, 0, rec.getBuffer(), 0, ZID_RECORD_LENGTH);
+            }
+            else {
+                try {
+                    readRecord(pos, rec.getBuffer());
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+            // remember position of record in file for save operation
+            rec.setPosition(pos);
+            return rec;
+        }
+
+        // No record with matching ZID found. Create a new ZID record
+        // at the end of the file and add it to the index.
+        long pos;
+        rec.setIdentifier(zid);
+        rec.setValid();
+        pos = endOfRecords.getAndAdd(ZID_RECORD_LENGTH);
         try {
-            zidFile.seek(ZID_RECORD_LENGTH);
-        } catch (IOException e2) {
+            writeRecord(pos, rec.getBuffer());
+        } catch (IOException e) {
             return null;
         }
-        do {
+        zidIndex.put(key, pos);
+        rec.setPosition(pos);
+        return rec;
+    }
+
+    /**
+     * Save a ZID record into the active ZID file.
+     *
+     * This method saves the content of a ZID record into the ZID file. Before
+     * you can save the ZID record you must have performed a getRecord()
+     * first.
+     *
+     * With write-behind the method queues the record. It returns -1 if the
+     * background thread failed to write or force the queued records, the
+     * record stays queued and the background thread tries again.
+     *
+     * @param zidRecord
+     *    The ZID record to save.
+     * @return
+     *    1 on success, -1 on failure
+     */
+    public int saveRecord(ZidRecord zidRecord) {
+        ZidKey key = new ZidKey(zidRecord.getIdentifier());
+
+        openLock.readLock().lock();
+        try {
+            if (zidFile == null) {
+                return -1;
+            }
+            ReentrantLock stripe = stripeOf(key);
+            stripe.lock();
             try {
-                pos = zidFile.getFilePointer();
-                zidFile.readFully(rec.getBuffer());
-                numRead = true;
-            } catch (EOFException e) {
-                numRead = false;
-            } catch (IOException e) {
+                // compact() may have moved or evicted the record since getRecord()
+                Long indexed = zidIndex.get(key);
+                long pos;
+                if (indexed != null) {
+                    pos = indexed;
+                }
+                else {
+                    pos = endOfRecords.getAndAdd(ZID_RECORD_LENGTH);
+                    zidIndex.put(key, pos);
+                }
+                zidRecord.setPosition(pos);
+                lastAccess.put(key, accessClock.incrementAndGet());
+
+                WriteBehind wb = writeBehind;
+                if (wb != null) {
+                    pendingRecords.put(pos, new PendingRecord(key, zidRecord.getBuffer().clone()));
+                    wb.wakeUp();
+                    // the record stays queued, but tell the caller that writing fails
+                    return (backgroundFailure == null) ? 1 : -1;
+                }
+                writeRecord(pos, zidRecord.getBuffer());
+            } finally {
+                stripe.unlock();
+            }
+            forceIfRequired(true);
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            openLock.readLock().unlock();
+        }
+        return 1;
+    }
+
+    /**
+     * Set the durability policy of ZID record updates.
+     *
+     * With the PERIODIC policy a background thread forces written data to
+     * disk at the latest one interval after it was written, also if no
+     * further updates follow.
+     *
+     * @param policy
+     *    the durability policy
+     * @param interval
+     *    the interval in milliseconds to force data to disk if the policy
+     *    is PERIODIC
+     */
+    public void setDurability(Durability policy, long interval) {
+        durability = policy;
+        forceInterval = interval;
+    }
+
+    /**
+     * Enables or disables write-behind of ZID record updates.
+     *
+     * If write-behind is enabled saveRecord() does not write the record but
+     * queues it and returns. A background thread writes the queued records
+     * in batches, several updates of the same record result in one write.
+     * getRecord() returns the queued data of a record, thus sessions always
+     * see the latest update.
+     *
+     * Disabling write-behind writes all queued records before it returns.
+     *
+     * @param enable
+     *    If set to true then write-behind is enabled.
+     * @param batchDelay
+     *    Time in milliseconds the background thread waits after an update to
+     *    collect more updates into the same batch.
+     */
+    public void setWriteBehind(boolean enable, long batchDelay) {
+        synchronized (writeBehindLock) {
+            if (enable) {
+                if (writeBehind == null) {
+                    WriteBehind wb = new WriteBehind(batchDelay);
+                    wb.setDaemon(true);
+                    wb.start();
+                    writeBehind = wb;
+                }
+                return;
+            }
+            if (writeBehind != null) {
+                WriteBehind wb = writeBehind;
+                writeBehind = null;
+                wb.stopRun();
                 try {
-                    zidFile.close();
-                } catch (IOException e1) {
-                    zidFile = null;
-                    return null;
+                    wb.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+                flush();
             }
-            if (!numRead) {
-                break;
+        }
+    }
+
+    /**
+     * Write all queued record updates and force the ZID file to disk.
+     *
+     * A successful flush clears a failure of the write-behind thread.
+     *
+     * @return
+     *    1 on success, -1 on failure
+     */
+    public int flush() {
+        openLock.readLock().lock();
+        try {
+            if (zidFile == null) {
+                return 1;
             }
+            writePending();
+            force();
+            backgroundFailure = null;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            openLock.readLock().unlock();
+        }
+        return 1;
+    }
 
-            // skip own ZID record and invalid records
-            if (rec.isOwnZIDRecord() || !rec.isValid()) {
+    /*
+     * Write all pending records. Take the stripe lock of each record to
+     * avoid that getRecord() sees neither the pending nor the written data.
+     */
+    private void writePending() throws IOException {
+        for (Long pos : pendingRecords.keySet()) {
+            PendingRecord pending = pendingRecords.get(pos);
+            if (pending == null) {
                 continue;
             }
+            ReentrantLock stripe = stripeOf(pending.key);
+            stripe.lock();
+            try {
+                pending = pendingRecords.remove(pos);
+                if (pending == null) {
+                    continue;
+                }
+                try {
+                    writeRecord(pos, pending.data);
+                } catch (IOException e) {
+                    // keep it queued unless a newer update replaced it
+                    pendingRecords.putIfAbsent(pos, pending);
+                    throw e;
+                }
+            } finally {
+                stripe.unlock();
+            }
+        }
+    }
 
-        } while (numRead && !rec.isSameIdentifier(zid));
+    /*
+     * Force data to disk as required by the durability policy. A batch is
+     * either one synchronous saveRecord() or one write-behind batch.
+     */
+    private void forceIfRequired(boolean batchDone) throws IOException {
+        Durability policy = durability;
+        if (policy == Durability.NONE) {
+            return;
+        }
+        if (policy == Durability.BATCH && batchDone) {
+            force();
+        }
+        else if (policy == Durability.PERIODIC) {
+            if (System.currentTimeMillis() - lastForce >= forceInterval) {
+                force();
+            }
+            else {
+                unforced = true;
+                startPeriodicForce();
+            }
+        }
+    }
+
+    private void force() throws IOException {
+        unforced = false;
+        MappedByteBuffer mapped = mappedZid;
+        if (mapped != null) {
+            mapped.force();
+        }
+        else {
+            zidChannel.force(false);
+        }
+        lastForce = System.currentTimeMillis();
+    }
+
+    private void startPeriodicForce() {
+        if (!periodicForceRunning.compareAndSet(false, true)) {
+            return;
+        }
+        Thread t = new Thread("ZidFile periodic force") {
+            public void run() {
+                periodicForce();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
 
-        // If we reached end of file, then no record with matching ZID
-        // found. We need to create a new ZID record.
-        if (!numRead) {
-            rec = new ZidRecord();
-            rec.setIdentifier(zid);
-            rec.setValid();
+    /*
+     * Force unforced data once per interval, terminate if there is no more
+     * data to force.
+     */
+    private void periodicForce() {
+        while (true) {
             try {
-                pos = zidFile.getFilePointer();
-                zidFile.write(rec.getBuffer());
+                Thread.sleep(forceInterval);
+            } catch (InterruptedException e) {
+                periodicForceRunning.set(false);
+                return;
+            }
+            if (durability != Durability.PERIODIC) {
+                periodicForceRunning.set(false);
+                return;
+            }
+            if (!unforced) {
+                periodicForceRunning.set(false);
+                // a writer may have set unforced before it saw the flag cleared
+                if (!unforced || !periodicForceRunning.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            openLock.readLock().lock();
+            try {
+                if (zidFile != null) {
+                    force();
+                }
+                else {
+                    unforced = false;
+                }
             } catch (IOException e) {
-                return null;
+                backgroundFailure = e;
+            } finally {
+                openLock.readLock().unlock();
             }
         }
-        // remember position of record in file for save operation
-        rec.setPosition(pos);
-        return rec;
     }
 
     /**
-     * Save a ZID record into the active ZID file.
+     * Background thread that writes queued record updates.
+     */
+    private class WriteBehind extends Thread {
+
+        private final long batchDelay;
+        private boolean newData = false;
+        private boolean stop = false;
+        private final Object sync = new Object();
+
+        WriteBehind(long delay) {
+            super("ZidFile write-behind");
+            batchDelay = delay;
+        }
+
+        void wakeUp() {
+            synchronized (sync) {
+                newData = true;
+                sync.notifyAll();
+            }
+        }
+
+        void stopRun() {
+            synchronized (sync) {
+                stop = true;
+                sync.notifyAll();
+            }
+        }
+
+        public void run() {
+            while (true) {
+                synchronized (sync) {
+                    while (!newData && !stop) {
+                        try {
+                            // wake up periodically to satisfy the PERIODIC policy
+                            sync.wait(durability == Durability.PERIODIC ? forceInterval : 0L);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (durability == Durability.PERIODIC) {
+                            break;
+                        }
+                    }
+                    if (stop) {
+                        return;
+                    }
+                    newData = false;
+                }
+                if (batchDelay > 0) {
+                    try {
+                        Thread.sleep(batchDelay);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                openLock.readLock().lock();
+                try {
+                    if (zidFile != null) {
+                        writePending();
+                        forceIfRequired(true);
+                        backgroundFailure = null;
+                    }
+                } catch (IOException e) {
+                    // keep running, the records stay queued if writeRecord
+                    // failed, saveRecord() reports the failure
+                    backgroundFailure = e;
+                } finally {
+                    openLock.readLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Compact the ZID file and remove stale records.
      *
-     * This method saves the content of a ZID record into the ZID file. Before
-     * you can save the ZID record you must have performed a getRecord()
-     * first.
+     * The method writes all records that are still in use into a new file
+     * and replaces the ZID file atomically with the new file. It removes
      *
-     * @param zidRecord
-     *    The ZID record to save.
+     * <ul>
+     * <li> invalid records and duplicate records of the same peer </li>
+     * <li> records without a valid, not expired RS1 or RS2 and without
+     *      a MitM key </li>
+     * <li> the least recently used records if more than maxEntries records
+     *      remain. Records not used since the ZID file was opened count as
+     *      least recently used, the oldest first. </li>
+     * </ul>
+     *
+     * Sessions may keep ZID records they got before compaction: saveRecord()
+     * stores a moved or removed record at its new or a new position.
+     *
+     * @param maxEntries
+     *    Maximum number of peer records to keep, 0 or less for no limit.
      * @return
-     *    1 on success
+     *    The number of reclaimed records, -1 on failure or -2 if the
+     *    compacted file replaced the ZID file but cannot be opened. On
+     *    failure the ZID file stays unchanged. If the method returns -2, or
+     *    returns -1 and isOpen() returns false, the ZID file is closed and
+     *    the application must open it again.
      */
-    public synchronized int saveRecord(ZidRecord zidRecord) {
+    public int compact(int maxEntries) {
+        openLock.writeLock().lock();
         try {
-            zidFile.seek(zidRecord.getPosition());
-            zidFile.write(zidRecord.getBuffer());
+            return compactLocked(maxEntries);
+        } finally {
+            openLock.writeLock().unlock();
+        }
+    }
+
+    private int compactLocked(int maxEntries) {
+        if (zidFile == null) {
+            return -1;
+        }
+        final String name = zidFileName;
+        final boolean mapped = memoryMappedMode;
+        File tmpFile = new File(name + ".tmp");
+
+        ArrayList<ZidRecord> keep = new ArrayList<ZidRecord>();
+        ZidRecord own = new ZidRecord();
+        int total = 0;
+        try {
+            writePending();
+            readRecord(0L, own.getBuffer());
+            HashSet<ZidKey> seen = new HashSet<ZidKey>();
+            long end = endOfRecords.get();
+            for (long pos = ZID_RECORD_LENGTH; pos < end; pos += ZID_RECORD_LENGTH) {
+                ZidRecord rec = new ZidRecord();
+                try {
+                    readRecord(pos, rec.getBuffer());
+                } catch (EOFException e) {
+                    break;                  // allocated but never written
+                }
+                if (rec.getBuffer()[0] == 0) {
+                    continue;               // never written, not a record
+                }
+                total++;
+                if (rec.isOwnZIDRecord() || !rec.isValid()) {
+                    continue;
+                }
+                if (!(rec.isRs1Valid() && rec.isRs1NotExpired()) && !(rec.isRs2Valid() && rec.isRs2NotExpired())
+                        && !rec.isMITMKeyAvailable()) {
+                    continue;
+                }
+                if (!seen.add(new ZidKey(rec.getIdentifier()))) {
+                    continue;
+                }
+                rec.setPosition(pos);
+                keep.add(rec);
+            }
         } catch (IOException e) {
             return -1;
         }
-        // fflush(zidFile);
-        return 1;
+
+        if (maxEntries > 0 && keep.size() > maxEntries) {
+            // most recently used first, not used records by file position
+            Collections.sort(keep, new Comparator<ZidRecord>() {
+                public int compare(ZidRecord r1, ZidRecord r2) {
+                    long a1 = accessOf(r1);
+                    long a2 = accessOf(r2);
+                    if (a1 != a2) {
+                        return (a1 > a2) ? -1 : 1;
+                    }
+                    return (r1.getPosition() > r2.getPosition()) ? -1 : ((r1.getPosition() == r2.getPosition()) ? 0 : 1);
+                }
+            });
+            keep.subList(maxEntries, keep.size()).clear();
+            // keep the file order of the remaining records
+            Collections.sort(keep, new Comparator<ZidRecord>() {
+                public int compare(ZidRecord r1, ZidRecord r2) {
+                    return (r1.getPosition() < r2.getPosition()) ? -1 : ((r1.getPosition() == r2.getPosition()) ? 0 : 1);
+                }
+            });
+        }
+
+        // Write the new file and make sure it is on disk before it replaces the ZID file
+        RandomAccessFile tmp = null;
+        try {
+            // The ZID file holds the retained secrets, only the owner may read it
+            ZrtpUtils.createOwnerOnlyFile(tmpFile);
+            tmp = new RandomAccessFile(tmpFile, "rw");
+            tmp.write(own.getBuffer());
+            for (ZidRecord rec : keep) {
+                tmp.write(rec.getBuffer());
+            }
+            tmp.getChannel().force(true);
+            tmp.close();
+            tmp = null;
+        } catch (IOException e) {
+            if (tmp != null) {
+                try {
+                    tmp.close();
+                } catch (IOException e1) {
+                    // ignore
+                }
+            }
+            tmpFile.delete();
+            return -1;
+        }
+
+        closeLocked();
+        int result = total - keep.size();
+        boolean replaced = true;
+        try {
+            try {
+                Files.move(tmpFile.toPath(), new File(name).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), new File(name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            replaced = false;
+            result = -1;
+        }
+        // Reopen the new or, if the move failed, the unchanged ZID file
+        if (openLocked(name, mapped) != 1) {
+            lastAccess.clear();
+            return replaced ? -2 : -1;
+        }
+        for (ZidKey key : lastAccess.keySet()) {
+            if (!zidIndex.containsKey(key)) {
+                lastAccess.remove(key);
+            }
+        }
+        return result;
+    }
+
+    private long accessOf(ZidRecord rec) {
+        Long access = lastAccess.get(new ZidKey(rec.getIdentifier()));
+        return (access == null) ? 0L : access;
     }
 
     /**
@@ -294,7 +1096,7 @@ public class ZidFile {
      * @return
      *    Pointer to the ZID
      */
-    public synchronized byte[] getZid() { 
+    public byte[] getZid() { 
         return associatedZid;
     }
 
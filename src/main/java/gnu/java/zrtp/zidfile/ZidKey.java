@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2006-2008 Werner Dittmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: Werner Dittmann <Werner.Dittmann@t-online.de>
+ */
+
+package gnu.java.zrtp.zidfile;
+
+import java.util.Arrays;
+
+/**
+ * Immutable hash key over a 12 byte ZRTP identifier.
+ *
+ * The ZID caches use this key to index their ZID records.
+ *
+ * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de&gt;
+ *
+ */
+final class ZidKey {
+    private final byte[] id;
+    private final int hash;
+
+    ZidKey(byte[] zid) {
+        id = new byte[ZidRecord.IDENTIFIER_LENGTH];
+        System.arraycopy(zid, 0, id, 0, ZidRecord.IDENTIFIER_LENGTH);
+        hash = Arrays.hashCode(id);
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ZidKey)) {
+            return false;
+        }
+        return Arrays.equals(id, ((ZidKey)o).id);
+    }
+}
@@ -0,0 +1,89 @@
+package demo;
+
+import java.util.Random;
+
+import gnu.java.zrtp.utils.ZrtpCrc32;
+
+/**
+ * Compare the CRC-32C implementations for typical ZRTP packet sizes.
+ *
+ * The benchmark prints the time per packet of the byte-wise table
+ * lookup, the slice-by-8 tables and zrtpGenerateCksum(), which uses the
+ * JDK CRC32C on Java 9 and later. Run it with
+ * 'java demo.Crc32Benchmark [seconds]'.
+ */
+public class Crc32Benchmark {
+
+    /*
+     * From HelloAck (16 bytes) to DHPart with DH3K (468 bytes) and more
+     */
+    private static final int[] SIZES = {16, 64, 128, 256, 468, 1024};
+
+    private static int sink;
+
+    /*
+     * The byte-wise CRC as ZrtpCrc32 computed it before, for comparison.
+     */
+    private static final int[] table = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++) {
+                c = (c >>> 1) ^ (0x82F63B78 & -(c & 1));
+            }
+            table[i] = c;
+        }
+    }
+
+    private static int byteWise(byte[] buffer, int off, int len) {
+        int crc32 = ~0;
+        for (int i = 0; i < len; i++) {
+            crc32 = (crc32 >>> 8) ^ table[(crc32 ^ buffer[off + i]) & 0xFF];
+        }
+        return crc32;
+    }
+
+    private static long measure(int method, byte[] data, long millis) {
+        long count = 0;
+        long start = System.nanoTime();
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < 10000; i++) {
+                switch (method) {
+                case 0:
+                    sink += byteWise(data, 0, data.length);
+                    break;
+                case 1:
+                    sink += ZrtpCrc32.zrtpUpdateCksum(~0, data, 0, data.length);
+                    break;
+                default:
+                    sink += ZrtpCrc32.zrtpGenerateCksum(data, 0, data.length);
+                    break;
+                }
+            }
+            count += 10000;
+        }
+        return (System.nanoTime() - start) / count;
+    }
+
+    public static void main(String[] args) {
+        long millis = (args.length > 0) ? Long.parseLong(args[0]) * 1000 : 500;
+
+        System.out.printf("%6s %12s %12s %12s%n", "bytes", "byte-wise", "slice-by-8", "generate");
+        for (int size : SIZES) {
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            if (byteWise(data, 0, size) != ZrtpCrc32.zrtpGenerateCksum(data, 0, size)) {
+                System.out.println("CRC mismatch for size " + size);
+                return;
+            }
+            // warm up
+            for (int m = 0; m < 3; m++) {
+                measure(m, data, millis / 2);
+            }
+            System.out.printf("%6d %9d ns %9d ns %9d ns%n", size,
+                    measure(0, data, millis), measure(1, data, millis), measure(2, data, millis));
+        }
+    }
+}
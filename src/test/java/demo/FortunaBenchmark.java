@@ -0,0 +1,60 @@
+package demo;
+
+import java.security.SecureRandom;
+
+import gnu.java.zrtp.utils.FortunaGenerator;
+
+/**
+ * Compare the default and the buffered mode of the Fortuna generator.
+ *
+ * The benchmark prints the time per 32 byte request, the size of a typical
+ * ZRTP nonce, and the throughput for 4 KiB requests. Run it with
+ * 'java demo.FortunaBenchmark [seconds]'.
+ */
+public class FortunaBenchmark {
+
+    private static final int SMALL = 32;
+    private static final int LARGE = 4096;
+
+    private static long run(FortunaGenerator fg, int size, long millis) {
+        byte[] out = new byte[size];
+        long count = 0;
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < 1000; i++) {
+                fg.nextBytes(out, 0, out.length);
+            }
+            count += 1000;
+        }
+        return count;
+    }
+
+    private static void measure(String name, int bufferSize, long millis) {
+        byte[] seed = new byte[64];
+        new SecureRandom().nextBytes(seed);
+        FortunaGenerator fg = new FortunaGenerator(seed, bufferSize);
+
+        // warm up
+        run(fg, SMALL, millis / 2);
+        run(fg, LARGE, millis / 2);
+
+        long start = System.nanoTime();
+        long requests = run(fg, SMALL, millis);
+        long nsPerRequest = (System.nanoTime() - start) / requests;
+
+        start = System.nanoTime();
+        requests = run(fg, LARGE, millis);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double mbPerSecond = requests * LARGE / seconds / (1024 * 1024);
+
+        System.out.printf("%-10s buffer %5d: %6d ns per %d byte request, %8.1f MiB/s with %d byte requests%n",
+                name, bufferSize, nsPerRequest, SMALL, mbPerSecond, LARGE);
+    }
+
+    public static void main(String[] args) {
+        long millis = (args.length > 0) ? Long.parseLong(args[0]) * 1000 : 2000;
+
+        measure("default", 256, millis);
+        measure("buffered", FortunaGenerator.BUFFERED_SIZE, millis);
+    }
+}
@@ -358,7 +358,8 @@ public class ZRTPTransformEngine
             config = new ZrtpConfigure();
         }
 
-        if (timeoutProvider == null) {
+        // ZRtp uses the shared timer service if the configuration sets one
+        if (timeoutProvider == null && config.getTimerService() == null) {
             timeoutProvider = new TimeoutProvider("ZRTP");
             timeoutProvider.setDaemon(true);
             timeoutProvider.start();
@@ -434,8 +435,10 @@ public class ZRTPTransformEngine
     }
 
     public void cleanup() {
-        timeoutProvider.stopRun();
-        timeoutProvider = null;
+        if (timeoutProvider != null) {
+            timeoutProvider.stopRun();
+            timeoutProvider = null;
+        }
     }
     
     /**
@@ -531,8 +534,9 @@ public class ZRTPTransformEngine
             if (!zPkt.hasMagic()) {
                 return null;
             }
-            byte[] extHeader = zPkt.getMessagePart();
-            zrtpEngine.processZrtpMessage(extHeader, zPkt.getSSRC());
+            // Let ZRTP parse the message in place, no need to copy it
+            zrtpEngine.processZrtpMessage(zPkt.getBuffer(),
+                    zPkt.getOffset() + ZRTP_PACKET_HEADER, zPkt.getSSRC());
         }
         return null;
     }